@@ -6,6 +6,7 @@ uniform bool u_Lighting;
 
 varying vec4 v_Color;          	// This is the color from the vertex shader interpolated across the 
   								// triangle per fragment.
+varying vec4 v_VertexColor;		// per-vertex color, multiplied by u_Color
   
 varying vec3 vertexPosition;		// vertex position in eye coordinates
 varying vec3 vertexNormal;			// vertex normal   in eye coordinates
@@ -27,7 +28,7 @@ float pdot(const vec3 v1, const vec3 v2) {
 	return max(dot(v1, v2), 0.0);
 }
 
-vec4 lightVertex(vec3 lightPosition, vec4 lightDiffuseColor) {
+vec4 lightVertex(vec4 color, vec3 lightPosition, vec4 lightDiffuseColor) {
 	vec3 lightDirection = normalize(lightPosition - vertexPosition);
 	float diffuseFactor = pdot(vertexNormal, lightDirection);
 	float specularFactor = 0.0;
@@ -35,22 +36,23 @@ vec4 lightVertex(vec3 lightPosition, vec4 lightDiffuseColor) {
 		specularFactor = pow(pdot(vertexNormal, normalize(lightDirection + vec3(0,0,1))), shininess);
 	}
 	// Multiply the color by the illumination level. It will be interpolated across the triangle.
-	return u_Color * lightDiffuseColor * diffuseFactor + specularColor * specularFactor;
+	return color * lightDiffuseColor * diffuseFactor + specularColor * specularFactor;
 }
 
 // The entry point for our fragment shader.
 void main()                    		
 {                              	
+	vec4 color = u_Color * v_VertexColor;
 	if (u_Lighting) {
-		gl_FragColor = u_Color * ambientColor
-				+ lightVertex(light0Position, light0DiffuseColor)
-				+ lightVertex(light1Position, light1DiffuseColor);
+		gl_FragColor = color * ambientColor
+				+ lightVertex(color, light0Position, light0DiffuseColor)
+				+ lightVertex(color, light1Position, light1DiffuseColor);
 		gl_FragColor = clamp(gl_FragColor, 0.0, 1.0);
 	
 		float fog = exp(-0.005 * gl_FragCoord.z / gl_FragCoord.w);
 		gl_FragColor = fog * gl_FragColor + (1.0-fog) * fogColor;
 	} else {
-		gl_FragColor = u_Color;
+		gl_FragColor = color;
 	}
 	// Pass through the color
     //gl_FragColor = v_Color;                                  		
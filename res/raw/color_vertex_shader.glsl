@@ -1,12 +1,16 @@
-uniform mat4 u_MVPMatrix;	// A constant representing the combined model/view/projection matrix.
-uniform mat4 u_MVMatrix;	// A constant representing the combined model/view matrix.	
+uniform mat4 u_VPMatrix;	// The combined view/projection matrix, set once per frame.
+uniform mat4 u_ViewMatrix;	// The view matrix, set once per frame.
+uniform mat4 u_ModelMatrix;	// The model matrix, the only matrix set per part.
 uniform mediump vec4 u_Color;		// Object color information we will pass in.
 uniform bool u_Lighting;
+uniform float u_PointSize;	// size of points, in pixels, when drawing GL_POINTS
 
 attribute vec4 a_Position;	// input. Vertex position in model coordinates
 attribute vec3 a_Normal;	// input. Vertex normal   in model coordinates
+attribute vec4 a_Color;		// input. Per-vertex color, multiplied by u_Color. White unless set
 
 varying vec4 v_Color;		// This will be passed into the fragment shader.
+varying vec4 v_VertexColor;	// a_Color, passed on to the fragment shader
 
 varying vec3 vertexPosition;		// vertex position in eye coordinates
 varying vec3 vertexNormal;			// vertex normal   in eye coordinates
@@ -42,13 +46,18 @@ vec4 lightVertex(vec3 lightPosition, vec4 lightDiffuseColor) {
 void main() {				// The entry point for our vertex shader.
 	// gl_Position is a special variable used to store the final position.
 	// Multiply the vertex by the matrix to get the final point in normalized screen coordinates.
-	gl_Position = u_MVPMatrix * a_Position;
+	vec4 worldPosition = u_ModelMatrix * a_Position;
+	gl_Position = u_VPMatrix * worldPosition;
+	gl_PointSize = u_PointSize;
+	v_VertexColor = a_Color;
 
 	if (u_Lighting) {
 		// Transform the vertex into eye space.
-		vertexPosition = vec3(u_MVMatrix * a_Position);
-		// Transform the normal's orientation into eye space.
-		vertexNormal = normalize(vec3(u_MVMatrix * vec4(a_Normal, 0.0)));
+		vertexPosition = vec3(u_ViewMatrix * worldPosition);
+		// Transform the normal's orientation into eye space. Parts are only
+		// ever scaled uniformly, so the model and view matrices serve as their
+		// own normal matrices
+		vertexNormal = normalize(vec3(u_ViewMatrix * (u_ModelMatrix * vec4(a_Normal, 0.0))));
 	
 		v_Color = u_Color * ambientColor
 				+ lightVertex(light0Position, light0DiffuseColor)
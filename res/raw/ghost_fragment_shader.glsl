@@ -0,0 +1,7 @@
+precision mediump float;
+
+uniform vec4 u_Color;		// Ghost color. Its alpha sets the translucency
+
+void main() {
+	gl_FragColor = u_Color;
+}
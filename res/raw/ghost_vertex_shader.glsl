@@ -0,0 +1,10 @@
+uniform mat4 u_VPMatrix;	// The combined view/projection matrix.
+uniform mat4 u_Bones[24];	// Each part's model matrix, by part slot. Must match AnimationRenderer.MAX_GHOST_BONES
+
+attribute vec4 a_Position;	// input. Vertex position in part coordinates
+attribute float a_Bone;		// input. The slot of the part this vertex belongs to
+
+void main() {
+	// Move the vertex with its part, then into normalized screen coordinates.
+	gl_Position = u_VPMatrix * (u_Bones[int(a_Bone)] * a_Position);
+}
@@ -26,6 +26,11 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 
 import android.content.Context;
 import android.content.res.AssetManager;
@@ -40,15 +45,12 @@ public class Animation {
 	// private final String DEFAULT_POSE = "data/Relaxed.bvh";
 	public static final String LIMITS_FILE = "data/SL.lim";
 
-	/* ###IK###
 	public static enum IKPartType {
 		IK_LHAND,
 		IK_RHAND,
 		IK_LFOOT,
-		IK_RFOOT,
-		NUM_IK
+		IK_RFOOT
 	}
-	 */
 
 	public static enum FigureType {
 		FIGURE_MALE,
@@ -82,13 +84,30 @@ public class Animation {
 	private boolean mirrored;
 	private boolean limits;
 
-	/* ####IK####
-    private boolean[] ikOn = new boolean[IKPartType.NUM_IK];
-    private IKTree ikTree;
-	 */
+	// which limbs hold their hand or foot on a goal, and the goals, x y z
+	// each, in the world space of ikSolver's skeleton
+	private final boolean[] ikOn = new boolean[IKPartType.values().length];
+	private final float[] ikGoals = new float[IKPartType.values().length * 3];
+	// null until a view gives me one; IK is off without it
+	private IKSolver ikSolver;
+	private final float[] ikRotations = new float[IKSolver.MAX_CHAIN * 3];
 
 	private String dataPath;
 
+	// null while loading, so the initial keys aren't undoable
+	private UndoHistory history;
+
+	// what copyFrame copied, for pasteFrame
+	private KeyframeClipboard clipboard;
+
+	// every joint with keys, the position first, from calcPartMirrors: its
+	// joint number, the index of its mirror here (its own if it has none),
+	// and six channel factors that mirror its keys
+	private BVHNode[] keyedNodes;
+	private int[] keyedJoints;
+	private int[] mirrorPermutation;
+	private float[] mirrorFactors;
+
 	public Animation(Context context, BVH newBVH) throws IOException {
 		this(context, newBVH, "");
 	}
@@ -136,16 +155,101 @@ public class Animation {
 		positionNode=bvh.lastLoadedPositionNode;
 		addKeyFrameAllJoints(0);
 
-		/* ###IK###
-		ikTree.set(frames);
-		setIK(IK_LHAND, false);
-		setIK(IK_RHAND, false);
-		setIK(IK_LFOOT, false);
-		setIK(IK_RFOOT, false);
-		 */
-
 		setLoop(false);
 		setDirty(false);
+
+		List<BVHNode> nodes = new ArrayList<BVHNode>();
+		nodes.add(positionNode);
+		collectNodes(frames, nodes);
+		history = new UndoHistory(nodes.toArray(new BVHNode[nodes.size()]), new UndoHistory.State() {
+			@Override public int[] saveState() {
+				return new int[] {totalFrames, framesPerSecond, loopInPoint, loopOutPoint};
+			}
+
+			@Override public void restoreState(int[] state) {
+				if (state[0] != totalFrames) setNumberOfFrames(state[0]);
+				framesPerSecond = state[1];
+				loopInPoint = state[2];
+				loopOutPoint = state[3];
+			}
+		});
+	}
+
+	private void collectNodes(BVHNode joint, List<BVHNode> nodes) {
+		nodes.add(joint);
+		for(int i=0;i<joint.numChildren();i++)
+			collectNodes(joint.child(i), nodes);
+	}
+
+	// an edit is one undo step, and one batch of signals
+	private void beginEdit(String label, Object coalesceKey) {
+		beginBatch();
+		if (history != null) history.begin(label, coalesceKey);
+	}
+
+	private void endEdit() {
+		try {
+			if (history != null) history.end();
+		} finally {
+			endBatch();
+		}
+	}
+
+	/**
+	 * Answers my undo history, or null while loading
+	 */
+	public UndoHistory getUndoHistory() {
+		return history;
+	}
+
+	public boolean canUndo() {
+		return history != null && history.canUndo();
+	}
+
+	public boolean canRedo() {
+		return history != null && history.canRedo();
+	}
+
+	/**
+	 * Revert the last edit
+	 *
+	 * @return false if there was nothing to undo
+	 */
+	public boolean undo() {
+		if (history == null) return false;
+		beginBatch();
+		try {
+			return restored(history.undo());
+		} finally {
+			endBatch();
+		}
+	}
+
+	/**
+	 * Repeat the last undone edit
+	 *
+	 * @return false if there was nothing to redo
+	 */
+	public boolean redo() {
+		if (history == null) return false;
+		beginBatch();
+		try {
+			return restored(history.redo());
+		} finally {
+			endBatch();
+		}
+	}
+
+	private boolean restored(BVHNode[] nodes) {
+		if (nodes == null) return false;
+		beginBatch();
+		try {
+			for (BVHNode node : nodes) emit.redrawTrack(getPartIndex(node));
+			setDirty(true);
+		} finally {
+			endBatch();
+		}
+		return true;
 	}
 
 	public void loadBVH(String bvhFile) throws IOException {
@@ -194,6 +298,146 @@ public class Animation {
 		return 1.0f/framesPerSecond;
 	}
 
+	/**
+	 * Convert to the given frame rate, at the same speed. Going from 120 to
+	 * 30 fps keeps one key in four
+	 *
+	 * @return false if resampling failed, and nothing changed
+	 */
+	public boolean retime(int fps) {
+		Resampler.TimeWarp warp = Resampler.TimeWarp.frameRate(framesPerSecond, fps);
+		// one edit, so undo restores the frame rate with the keys
+		beginEdit("Resample", null);
+		try {
+			if (!resample(warp, Resampler.framesFor(warp, totalFrames), false)) return false;
+			setFPS(fps);
+		} finally {
+			endEdit();
+		}
+		return true;
+	}
+
+	/**
+	 * Speed up or slow down the frames from up to to, to play in length
+	 * frames. The frames after follow right behind
+	 *
+	 * @return false if resampling failed, and nothing changed
+	 */
+	public boolean retime(int from, int to, int length) {
+		Resampler.TimeWarp warp = Resampler.TimeWarp.section(from, to, length);
+		return resample(warp, Resampler.framesFor(warp, totalFrames), false);
+	}
+
+	/**
+	 * Replace every joint's keys with them resampled through warp into
+	 * newFrames frames (see Resampler), and move the loop points to match.
+	 * The joints are resampled in parallel before anything changes
+	 *
+	 * @param everyFrame key every new frame, rather than only near old keys
+	 * @return false if resampling failed, and nothing changed
+	 */
+	public boolean resample(Resampler.TimeWarp warp, int newFrames, boolean everyFrame) {
+		KeyframeTrack[] tracks = new KeyframeTrack[keyedNodes.length];
+		for (int i = 0; i < tracks.length; i++) tracks[i] = keyedNodes[i].getTrack();
+		KeyframeTrack[] resampled;
+		try {
+			resampled = new Resampler(warp, newFrames, everyFrame).resample(tracks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Animation.resample(): failed", e);
+			return false;
+		}
+
+		beginEdit("Resample", null);
+		try {
+			setTracks(resampled, newFrames);
+			setLoopInPoint(Math.max(0, Math.min(newFrames - 1, Math.round(warp.target(loopInPoint)))));
+			setLoopOutPoint(Math.max(0, Math.min(newFrames - 1, Math.round(warp.target(loopOutPoint)))));
+		} finally {
+			endEdit();
+		}
+		return true;
+	}
+
+	/**
+	 * Replace the keys from up to to of every joint the source poses, which
+	 * must be mine, with its pose there, reduced to the keys needed to stay
+	 * within the tolerances (see Baker). The source is evaluated before
+	 * anything changes
+	 *
+	 * @return false if baking failed, and nothing changed
+	 */
+	public boolean bake(PoseSource source, int from, int to, float rotationTolerance, float positionTolerance) {
+		KeyframeTrack[] baked;
+		try {
+			baked = Baker.bake(source, from, to, rotationTolerance, positionTolerance);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Animation.bake(): failed", e);
+			return false;
+		}
+
+		replaceKeys("Bake", source, from, to, baked);
+		return true;
+	}
+
+	/**
+	 * Replace the keys from up to to of every joint the source poses, which
+	 * must be mine, with the tracks Baker made from it, as one edit. Baking
+	 * can then happen on another thread, and only this on mine
+	 */
+	public void replaceKeys(String label, PoseSource source, int from, int to, KeyframeTrack[] baked) {
+		beginEdit(label, null);
+		try {
+			for (int j = 0; j < baked.length; j++) {
+				BVHNode node = source.getJoint(j);
+				node.setTrack(node.getTrack().withKeysReplaced(from, to, baked[j]));
+				emit.redrawTrack(getPartIndex(node));
+			}
+			if (to > totalFrames) setNumberOfFrames(to);
+			setDirty(true);
+		} finally {
+			endEdit();
+		}
+	}
+
+	/**
+	 * Answers every joint with keys, the position first, in the order
+	 * setTracks takes their tracks
+	 */
+	public BVHNode[] getKeyedNodes() {
+		return keyedNodes.clone();
+	}
+
+	/**
+	 * Replace the keys of every joint getKeyedNodes answers, in that order,
+	 * and the number of frames, as one edit
+	 */
+	public void setTracks(KeyframeTrack[] tracks, int newFrames) {
+		beginEdit("Replace Keys", null);
+		try {
+			for (int i = 0; i < tracks.length; i++) {
+				keyedNodes[i].setTrack(tracks[i]);
+				emit.redrawTrack(keyedJoints[i]);
+			}
+			setNumberOfFrames(newFrames);
+		} finally {
+			endEdit();
+		}
+	}
+
+	/**
+	 * Answers a new animation of the default pose, for filling with keys
+	 * made elsewhere. BVH keeps per-load state, so it parses with its own
+	 */
+	public Animation blank() throws IOException {
+		return new Animation(context, new BVH());
+	}
+
 	public int getNumberOfFrames() {
 		// Log.d(TAG, "Animation.getNumberOfFrames()=%d",totalFrames);
 		return totalFrames;
@@ -215,30 +459,40 @@ public class Animation {
 	}
 
 	public void setEaseIn(BVHNode node, int frameNum, boolean state) {
-		if(node == null) {
-			Log.d(TAG, "Animation.setEaseIn(): node==0!");
-			return;
-		}
+		beginEdit("Ease In", null);
+		try {
+			if(node == null) {
+				Log.d(TAG, "Animation.setEaseIn(): node==0!");
+				return;
+			}
 
-		if(node.isKeyframe(frameNum)) {
-			setDirty(true);
-			node.setEaseIn(frameNum,state);
-			// tell main class that the keyframe has changed
-			emit.redrawTrack(getPartIndex(node));
+			if(node.isKeyframe(frameNum)) {
+				setDirty(true);
+				node.setEaseIn(frameNum,state);
+				// tell main class that the keyframe has changed
+				emit.redrawTrack(getPartIndex(node));
+			}
+		} finally {
+			endEdit();
 		}
 	}
 
 	public void setEaseOut(BVHNode node, int frameNum, boolean state) {
-		if(node == null) {
-			Log.d(TAG, "Animation.setEaseOut(): node==0!");
-			return;
-		}
+		beginEdit("Ease Out", null);
+		try {
+			if(node == null) {
+				Log.d(TAG, "Animation.setEaseOut(): node==0!");
+				return;
+			}
 
-		if(node.isKeyframe(frameNum)) {
-			setDirty(true);
-			node.setEaseOut(frameNum,state);
-			// tell main class that the keyframe has changed
-			emit.redrawTrack(getPartIndex(node));
+			if(node.isKeyframe(frameNum)) {
+				setDirty(true);
+				node.setEaseOut(frameNum,state);
+				// tell main class that the keyframe has changed
+				emit.redrawTrack(getPartIndex(node));
+			}
+		} finally {
+			endEdit();
 		}
 	}
 
@@ -288,170 +542,91 @@ public class Animation {
 		return loopOutPoint;
 	}
 
-/* ###IK###
-	private void applyIK(String name) {
-		BVHNode node=bvh.bvhFindNode(frames,name);
-
-		Rotation rot=node.frameData(frame).rotation();
-
-		if(node != null) {
-			//    	    for (int i=0; i<3; i++) {
-			rot.x+=node.ikRot.x;
-			rot.y+=node.ikRot.y;
-			rot.z+=node.ikRot.z;
-
-
-			node.ikRot.x=0;
-			node.ikRot.y=0;
-			node.ikRot.z=0;
-    	      node.frame[frame][i] += node.ikRot[i];
-    	      node.ikRot[i] = 0;
-			//    	      node.ikOn = false;
-
-			setDirty(true);
-			addKeyFrame(node);
-			node.setKeyframeRotation(frame,rot);
-			emit.redrawTrack(getPartIndex(node));
-			//    	    }
-		}
+	public void setIKSolver(IKSolver solver) {
+		ikSolver=solver;
+		if(solver != null) solver.setJointLimits(limits);
 	}
 
-	private void setIK(IKPartType part, boolean flag) {
-		if(ikOn[part]==flag) return;
-
-		ikOn[part]=flag;
-
-		if(flag)
-		{
-			switch(part)
-			{
-			case IK_LHAND: ikTree.setGoal(frame,"lHand"); break;
-			case IK_RHAND: ikTree.setGoal(frame,"rHand"); break;
-			case IK_LFOOT: ikTree.setGoal(frame,"lFoot"); break;
-			case IK_RFOOT: ikTree.setGoal(frame,"rFoot"); break;
-			default: break;
-			}
-		}
-		else
-		{
-			switch(part)
-			{
-			case IK_LHAND:
-				applyIK("lHand");
-				applyIK("lForeArm");
-				applyIK("lShldr");
-				applyIK("lCollar");
-				if(!ikOn[IK_RHAND])
-				{
-					applyIK("chest");
-					applyIK("abdomen");
-				}
-				break;
-			case IK_RHAND:
-				applyIK("rHand");
-				applyIK("rForeArm");
-				applyIK("rShldr");
-				applyIK("rCollar");
-				if (!ikOn[IK_LHAND])
-				{
-					applyIK("chest");
-					applyIK("abdomen");
-				}
-				break;
-			case IK_LFOOT:
-				applyIK("lThigh");
-				applyIK("lShin");
-				applyIK("lFoot");
-				break;
-			case IK_RFOOT:
-				applyIK("rThigh");
-				applyIK("rShin");
-				applyIK("rFoot");
-				break;
-			default:
-				break;
-			}
-		}
+	public IKSolver getIKSolver() {
+		return ikSolver;
 	}
 
-	public void setIK(BVHNode node, boolean flag) {
-		String jointName=node.name();
+	/**
+	 * Turn IK on or off for the limb the node turns with. See
+	 * setIK(IKPartType, boolean, int)
+	 */
+	public void setIK(BVHNode node, boolean flag, int frame) {
+		IKPartType part=IKSolver.limbOf(node.name());
+		if(part != null) setIK(part, flag, frame);
+	}
 
-		if(jointName.equals("lHand") ||
-				jointName.equals("lForeArm") ||
-				jointName.equals("lShldr") ||
-				jointName.equals("lCollar"))
-		{
-			setIK(IK_LHAND, flag);
-		}
-		else if(jointName.equals("rHand") ||
-				jointName.equals("rForeArm") ||
-				jointName.equals("rShldr") ||
-				jointName.equals("rCollar"))
-		{
-			setIK(IK_RHAND, flag);
-		}
-		else if(jointName.equals("lThigh") ||
-				jointName.equals("lShin") ||
-				jointName.equals("lFoot"))
-		{
-			setIK(IK_LFOOT, flag);
-		}
-		else if(jointName.equals("rThigh") ||
-				jointName.equals("rShin") ||
-				jointName.equals("rFoot"))
-		{
-			setIK(IK_RFOOT, flag);
+	/**
+	 * Turn IK on or off for the limb. Turning it on pins its hand or foot
+	 * where it is at frame: as other joints turn or the figure moves, the
+	 * limb turns to keep it there. Turning it off leaves the keys as solved
+	 */
+	public void setIK(IKPartType part, boolean flag, int frame) {
+		if(ikOn[part.ordinal()]==flag) return;
+		if(flag) {
+			if(ikSolver == null || ikSolver.getChainLength(part) == 0) return;
+			ikSolver.getEnd(part, frame, ikGoals, part.ordinal() * 3);
 		}
+		ikOn[part.ordinal()]=flag;
 	}
 
 	public boolean getIK(BVHNode node) {
-		String jointName=node.name();
-
-		if(jointName.equals("lHand") ||
-				jointName.equals("lForeArm") ||
-				jointName.equals("lShldr") ||
-				jointName.equals("lCollar"))
-		{
-			return getIK(IK_LHAND);
-		}
-		else if(jointName.equals("rHand") ||
-				jointName.equals("rForeArm") ||
-				jointName.equals("rShldr") ||
-				jointName.equals("rCollar"))
-		{
-			return getIK(IK_RHAND);
-		}
-		else if(jointName.equals("lThigh") ||
-				jointName.equals("lShin") ||
-				jointName.equals("lFoot"))
-		{
-			return getIK(IK_LFOOT);
-		}
-		else if(jointName.equals("rThigh") ||
-				jointName.equals("rShin") ||
-				jointName.equals("rFoot"))
-		{
-			return getIK(IK_RFOOT);
-		}
-		return false;
+		IKPartType part=IKSolver.limbOf(node.name());
+		return part != null && getIK(part);
 	}
 
-	private boolean getIK(IKPartType part) {
-		return ikOn[part];
+	public boolean getIK(IKPartType part) {
+		return ikOn[part.ordinal()];
 	}
 
-	private void solveIK() {
-		bvh.bvhResetIK(frames);
-		if(ikOn[IK_LFOOT]) getEndSite("lFoot").ikOn=true;
-		if(ikOn[IK_RFOOT]) getEndSite("rFoot").ikOn=true;
-		if(ikOn[IK_LHAND]) getEndSite("lHand").ikOn=true;
-		if(ikOn[IK_RHAND]) getEndSite("rHand").ikOn=true;
-
-		//  ikTree.setJointLimits(true);
-		ikTree.solve(frame);
+	/**
+	 * Move the limb's goal, turning IK on for it, and pose it there at frame.
+	 * Dragging the goal is one undoable edit, however many times it moves
+	 */
+	public void setIKGoal(IKPartType part, int frame, float x, float y, float z) {
+		if(ikSolver == null || ikSolver.getChainLength(part) == 0) return;
+		beginEdit("Inverse Kinematics", "ik " + part + " " + frame);
+		try {
+			ikOn[part.ordinal()]=true;
+			ikGoals[part.ordinal() * 3]=x;
+			ikGoals[part.ordinal() * 3 + 1]=y;
+			ikGoals[part.ordinal() * 3 + 2]=z;
+			solveIK(frame, null);
+			setDirty(true);
+			emit.frameChanged(frame);
+		} finally {
+			endEdit();
+		}
 	}
+
+	/**
+	 * Pose every IK limb at frame to reach its goal, keying its chain, except
+	 * a limb the moved node turns with, which the user is posing by hand
 	 */
+	private void solveIK(int frame, BVHNode moved) {
+		if(ikSolver == null) return;
+		IKPartType movedPart=moved == null ? null : IKSolver.limbOf(moved.name());
+		for(IKPartType part : IKPartType.values()) {
+			if(!ikOn[part.ordinal()] || part == movedPart) continue;
+			ikSolver.solve(part, frame, ikGoals, part.ordinal() * 3, ikRotations);
+			for(int k=0; k < ikSolver.getChainLength(part); k++) {
+				BVHNode node=ikSolver.getChainNode(part, k);
+				Rotation rot=new Rotation(ikRotations[k * 3], ikRotations[k * 3 + 1], ikRotations[k * 3 + 2]);
+				if(node.isKeyframe(frame)) {
+					node.setKeyframeRotation(frame, rot);
+				} else {
+					node.addKeyframe(frame,node.frameData(frame).position(), rot);
+					setEaseIn(node, frame, Settings.easeIn());
+					setEaseOut(node, frame, Settings.easeOut());
+				}
+				emit.redrawTrack(getPartIndex(node));
+			}
+		}
+	}
 
 	public void setRotation(int frame, BVHNode node, float x, float y, float z) {
 		setRotation(frame, node, new Rotation(x,y,z));
@@ -462,50 +637,45 @@ public class Animation {
 	}
 
 	public void setRotation(int frame, BVHNode node, Rotation rot) {
-		if (node != null) {
-			//			Log.v(TAG, "Animation.setRotation(" + node.name() + ")");
-
-			/* ###IK###
-			for(int i=0;i<NUM_IK;i++)
-			{
-				if(ikOn[i])
-				{
-					solveIK();
-					break;
-				}
-			}
-			 */
+		beginEdit("Rotate", node == null ? null : "rotation " + node.name() + " " + frame);
+		try {
+			if (node != null) {
+				//			Log.v(TAG, "Animation.setRotation(" + node.name() + ")");
 
-			if(node.isKeyframe(frame)) {
-				node.setKeyframeRotation(frame, rot);
-			} else {
-				node.addKeyframe(frame,node.frameData(frame).position(), rot);
-				setEaseIn(node, frame, Settings.easeIn());
-				setEaseOut(node, frame, Settings.easeOut());
-			}
-
-			//      node.dumpKeyframes();
-			BVHNode mirrorNode=node.getMirror();
-			if(mirrored && mirrorNode != null) {
-				Rotation mirrorRot = new Rotation(rot.x, -rot.y, -rot.z);
-				// new keyframe system
-				if(mirrorNode.isKeyframe(frame)) {
-					mirrorNode.setKeyframeRotation(frame, mirrorRot);
+				if(node.isKeyframe(frame)) {
+					node.setKeyframeRotation(frame, rot);
 				} else {
-					mirrorNode.addKeyframe(frame,node.frameData(frame).position(), mirrorRot);
-					setEaseIn(mirrorNode,frame,Settings.easeIn());
-					setEaseOut(mirrorNode,frame,Settings.easeOut());
+					node.addKeyframe(frame,node.frameData(frame).position(), rot);
+					setEaseIn(node, frame, Settings.easeIn());
+					setEaseOut(node, frame, Settings.easeOut());
 				}
 
-				// tell timeline that this mirrored keyframe has changed (added or changed is the same here)
-				emit.redrawTrack(getPartIndex(mirrorNode));
+				//      node.dumpKeyframes();
+				BVHNode mirrorNode=node.getMirror();
+				if(mirrored && mirrorNode != null) {
+					Rotation mirrorRot = new Rotation(rot.x, -rot.y, -rot.z);
+					// new keyframe system
+					if(mirrorNode.isKeyframe(frame)) {
+						mirrorNode.setKeyframeRotation(frame, mirrorRot);
+					} else {
+						mirrorNode.addKeyframe(frame,node.frameData(frame).position(), mirrorRot);
+						setEaseIn(mirrorNode,frame,Settings.easeIn());
+						setEaseOut(mirrorNode,frame,Settings.easeOut());
+					}
+
+					// tell timeline that this mirrored keyframe has changed (added or changed is the same here)
+					emit.redrawTrack(getPartIndex(mirrorNode));
+				}
+				solveIK(frame, node);
+				setDirty(true);
+				// tell timeline that this keyframe has changed (added or changed is the same here)
+				emit.redrawTrack(getPartIndex(node));
+				emit.frameChanged(frame);
+			} else {
+				Log.d(TAG, "Animaiton.setRotation(): node==0!");
 			}
-			setDirty(true);
-			// tell timeline that this keyframe has changed (added or changed is the same here)
-			emit.redrawTrack(getPartIndex(node));
-			emit.frameChanged(frame);
-		} else {
-			Log.d(TAG, "Animaiton.setRotation(): node==0!");
+		} finally {
+			endEdit();
 		}
 	}
 
@@ -519,9 +689,7 @@ public class Animation {
 
 	public void useRotationLimits(boolean flag) {
 		limits=flag;
-		/* ###IK###
-		ikTree.setJointLimits(flag);
-		 */
+		if(ikSolver != null) ikSolver.setJointLimits(flag);
 	}
 
 	public RotationLimits getRotationLimits(BVHNode node) {
@@ -558,32 +726,46 @@ public class Animation {
 	}
 
 	public void setPosition(int frame, float x, float y, float z) {
-		/* ###IK###
-		for(int i=0;i<NUM_IK;i++) {
-			if(ikOn[i]) {
-				solveIK();
-				break;
+		beginEdit("Move", "position " + frame);
+		try {
+			// new keyframe system
+			if(positionNode.isKeyframe(frame)) {
+				positionNode.setKeyframePosition(frame, new Position(x,y,z));
+			} else {
+				positionNode.addKeyframe(frame, new Position(x,y,z), new Rotation());
+				setEaseIn(positionNode,frame,Settings.easeIn());
+				setEaseOut(positionNode,frame,Settings.easeOut());
 			}
+			solveIK(frame, positionNode);
+			setDirty(true);
+			// tell timeline that this keyframe has changed (added or changed is the same here)
+			emit.redrawTrack(0);
+			emit.frameChanged(frame);
+		} finally {
+			endEdit();
 		}
-		 */
-		// new keyframe system
-		if(positionNode.isKeyframe(frame)) {
-			positionNode.setKeyframePosition(frame, new Position(x,y,z));
-		} else {
-			positionNode.addKeyframe(frame, new Position(x,y,z), new Rotation());
-			setEaseIn(positionNode,frame,Settings.easeIn());
-			setEaseOut(positionNode,frame,Settings.easeOut());
-		}
-		setDirty(true);
-		// tell timeline that this keyframe has changed (added or changed is the same here)
-		emit.redrawTrack(0);
-		emit.frameChanged(frame);
 	}
 
 	public Position getPosition(int frame) {
 		return positionNode.frameData(frame).position();
 	}
 
+	/**
+	 * Write the position at frame into position[offset..offset+2], without
+	 * allocating. Safe to call while the UI thread edits
+	 */
+	public void getPosition(int frame, float[] position, int offset) {
+		positionNode.getTrack().evaluate(frame, null, 0, position, offset);
+	}
+
+	/**
+	 * Answers a number that changes whenever keyframes are edited. It is
+	 * shared by all animations, so it may also change for edits elsewhere
+	 */
+	public int getVersion() {
+		return BVHNode.editVersion();
+	}
+
 	public String getPartName(int index) {
 		//  exception fot position pseudonode
 		if(index==0) return positionNode.name();
@@ -618,20 +800,30 @@ public class Animation {
 	}
 
 	public void addKeyFrameAllJoints(int frame) {
-		addKeyFrame(frame, getNode(0));
-		recursiveAddKeyFrame(frame, frames);
+		beginEdit("Add Keyframe", null);
+		try {
+			addKeyFrame(frame, getNode(0));
+			recursiveAddKeyFrame(frame, frames);
+		} finally {
+			endEdit();
+		}
 	}
 
 	public void addKeyFrame(int frame, BVHNode joint) {
-		joint.addKeyframe(frame,getPosition(frame),getRotation(frame, joint));
+		beginEdit("Add Keyframe", null);
+		try {
+			joint.addKeyframe(frame,getPosition(frame),getRotation(frame, joint));
 
-		setEaseIn(joint, frame, Settings.easeIn());
-		setEaseOut(joint, frame, Settings.easeOut());
+			setEaseIn(joint, frame, Settings.easeIn());
+			setEaseOut(joint, frame, Settings.easeOut());
 
-		setDirty(true);
+			setDirty(true);
 
-		emit.redrawTrack(getPartIndex(joint));
-		emit.frameChanged(frame);
+			emit.redrawTrack(getPartIndex(joint));
+			emit.frameChanged(frame);
+		} finally {
+			endEdit();
+		}
 	}
 
 	private boolean isKeyFrameHelper(int frame, BVHNode joint) {
@@ -669,15 +861,20 @@ public class Animation {
 
 	// silent = only send signal to timeline
 	public void deleteKeyFrame(int frameNum, BVHNode joint, boolean silent) {
-		// never delete first keyframe
-		if(frameNum != 0) {
-			joint.deleteKeyframe(frameNum);
-			setDirty(true);
-		}
+		beginEdit("Delete Keyframe", null);
+		try {
+			// never delete first keyframe
+			if(frameNum != 0) {
+				joint.deleteKeyframe(frameNum);
+				setDirty(true);
+			}
 
-		// if silent is true then only send a signal to the timeline but not to the animation view
-		if(!silent) emit.frameChanged(frameNum);
-		emit.redrawTrack(getPartIndex(joint));
+			// if silent is true then only send a signal to the timeline but not to the animation view
+			if(!silent) emit.frameChanged(frameNum);
+			emit.redrawTrack(getPartIndex(joint));
+		} finally {
+			endEdit();
+		}
 	}
 
 	public void deleteKeyFrame(int frame, BVHNode joint) {
@@ -701,10 +898,15 @@ public class Animation {
 	}
 
 	public void deleteKeyFrameAllJoints(int frame) {
-		// never delete the first keyframe
-		if(frame==0) return;
-		deleteKeyFrame(frame, getNode(0));
-		recursiveDeleteKeyFrame(frame, frames);
+		beginEdit("Delete Keyframe", null);
+		try {
+			// never delete the first keyframe
+			if(frame==0) return;
+			deleteKeyFrame(frame, getNode(0));
+			recursiveDeleteKeyFrame(frame, frames);
+		} finally {
+			endEdit();
+		}
 	}
 
 	public boolean toggleKeyFrame(int frame, BVHNode node) {
@@ -737,19 +939,84 @@ public class Animation {
 	}
 
 	public void cutFrame(int frame) {
-		// copy frame data into copy buffer
-		copyFrame(frame);
-		// always delete frame from all tracks
-		deleteFrame(frame, 0);
+		beginEdit("Cut Frame", null);
+		try {
+			// copy frame data into copy buffer
+			copyFrame(frame);
+			// always delete frame from all tracks
+			deleteFrame(frame, 0);
+		} finally {
+			endEdit();
+		}
 	}
 
 	public void copyFrame(int frame) {
-		bvh.bvhGetFrameData(frames,frame);
+		clipboard = copyFrames(frame, frame + 1, null);
 	}
 
 	public void pasteFrame(int frame) {
-		bvh.bvhSetFrameData(frames,frame);
-		addKeyFrameAllJoints(frame);
+		if (clipboard == null) return;
+		pasteFrames(clipboard, frame, KeyframeClipboard.Mode.OVERWRITE, 1.0f);
+	}
+
+	/**
+	 * Answers what copyFrame or cutFrame last copied, or null
+	 */
+	public KeyframeClipboard getClipboard() {
+		return clipboard;
+	}
+
+	/**
+	 * Copy the frames from up to to of the given joints, by joint number, or
+	 * of all joints if null
+	 */
+	public KeyframeClipboard copyFrames(int from, int to, int[] joints) {
+		if (joints == null) joints = allJoints();
+		BVHNode[] nodes = new BVHNode[joints.length];
+		for (int i = 0; i < joints.length; i++) nodes[i] = getNode(joints[i]);
+		return KeyframeClipboard.copy(nodes, joints, from, to);
+	}
+
+	/**
+	 * Paste copied frames at frame into the joints they were copied from,
+	 * growing the animation to fit. Each joint's track is made in one pass
+	 * over its keys
+	 *
+	 * @param weight for BLEND, how much of the pasted values to take
+	 */
+	public void pasteFrames(KeyframeClipboard clip, int frame, KeyframeClipboard.Mode mode, float weight) {
+		beginEdit("Paste Frames", null);
+		try {
+			for (int i = 0; i < clip.getJointCount(); i++) {
+				BVHNode joint = getNode(clip.getJoint(i));
+				if (joint == null) continue;
+				joint.setTrack(clip.pasteInto(joint.getTrack(), i, frame, mode, weight));
+				emit.redrawTrack(clip.getJoint(i));
+			}
+			int end = frame + clip.getLength();
+			if (mode == KeyframeClipboard.Mode.INSERT) setNumberOfFrames(totalFrames + clip.getLength());
+			else if (end > totalFrames) setNumberOfFrames(end);
+			setDirty(true);
+			emit.frameChanged(frame);
+		} finally {
+			endEdit();
+		}
+	}
+
+	/**
+	 * Answers the joint numbers of the position and every joint with keys
+	 */
+	private int[] allJoints() {
+		List<Integer> joints = new ArrayList<Integer>();
+		joints.add(0);
+		String name;
+		for (int i = 1; (name = bvh.bvhGetName(frames, i)).length() > 0; i++) {
+			BVHNode node = bvh.bvhFindNode(frames, name);
+			if (node != null && node.type != BVHNodeType.BVH_END) joints.add(i);
+		}
+		int[] result = new int[joints.size()];
+		for (int i = 0; i < result.length; i++) result[i] = joints.get(i);
+		return result;
 	}
 
 	private void calcPartMirrors() {
@@ -778,6 +1045,30 @@ public class Animation {
 			// next node
 			i++;
 		}
+
+		// the permutation and channel factors for mirroring in bulk
+		List<BVHNode> nodes = new ArrayList<BVHNode>();
+		List<Integer> joints = new ArrayList<Integer>();
+		nodes.add(bvh.lastLoadedPositionNode);
+		joints.add(0);
+		for(i=1;(n=bvh.bvhGetName(frames, i)).length() > 0;i++) {
+			BVHNode node=bvh.bvhFindNode(frames,n);
+			if(node.type == BVHNodeType.BVH_END) continue;
+			nodes.add(node);
+			joints.add(i);
+		}
+		keyedNodes = nodes.toArray(new BVHNode[nodes.size()]);
+		keyedJoints = new int[keyedNodes.length];
+		mirrorPermutation = new int[keyedNodes.length];
+		mirrorFactors = new float[keyedNodes.length * 6];
+		for(i=0;i<keyedNodes.length;i++) {
+			BVHNode node = keyedNodes[i];
+			keyedJoints[i] = joints.get(i);
+			int partner = node.getMirror() == null ? -1 : nodes.indexOf(node.getMirror());
+			mirrorPermutation[i] = partner >= 0 ? partner : i;
+			float[] factors = node.type == BVHNodeType.BVH_POS ? KeyframeTrack.MIRROR_POSITIONS : KeyframeTrack.MIRROR_ROTATIONS;
+			System.arraycopy(factors, 0, mirrorFactors, i * 6, 6);
+		}
 	}
 
 	public int numKeyFrames(int jointNumber) {
@@ -794,37 +1085,38 @@ public class Animation {
 
 	// moves the position and rotation data of one body part to another key frame position
 	public void moveKeyFrame(int jointNumber, int from, int to, boolean copy) {
-		Log.d(TAG, "Animation.moveKeyFrame(): jointNumber: " + jointNumber);
+		// the edit batches all signals until it ends, to avoid flickering
+		beginEdit(copy ? "Copy Keyframe" : "Move Keyframe", null);
+		try {
+			Log.d(TAG, "Animation.moveKeyFrame(): jointNumber: " + jointNumber);
 
-		// make sure we don't drag a trail of mirror keys behind
-		setMirrored(false);
+			// make sure we don't drag a trail of mirror keys behind
+			setMirrored(false);
 
-		// get the joint structure
-		BVHNode joint=getNode(jointNumber);
-		final FrameData frameData = joint.frameData(from);
-		//  frameData.dump();
-
-		// block all further signals to avoid flickering
-		blockSignals(true);
+			// get the joint structure
+			BVHNode joint=getNode(jointNumber);
+			final FrameData frameData = joint.frameData(from);
+			//  frameData.dump();
 
-		// silently (true) delete key frame if not copy mode
-		// we do copy mode here to avoid code duplication
-		if(!copy) deleteKeyFrame(from, joint, true);
+			// silently (true) delete key frame if not copy mode
+			// we do copy mode here to avoid code duplication
+			if(!copy) deleteKeyFrame(from, joint, true);
 
-		// move rotation or position of the body part
-		if(joint.type == BVHNodeType.BVH_POS) {
-			Position pos=frameData.position();
-			setPosition(to, pos.x,pos.y,pos.z);
-		} else {
-			Rotation rot = frameData.rotation();
-			setRotation(to, joint, rot.x, rot.y, rot.z);
+			// move rotation or position of the body part
+			if(joint.type == BVHNodeType.BVH_POS) {
+				Position pos=frameData.position();
+				setPosition(to, pos.x,pos.y,pos.z);
+			} else {
+				Rotation rot = frameData.rotation();
+				setRotation(to, joint, rot.x, rot.y, rot.z);
+			}
+			// only now set ease in/out, because setRotation/setPosition sets to default when the
+			// target position has no keyframe yet
+			joint.setEaseIn(to,frameData.easeIn());
+			joint.setEaseOut(to,frameData.easeOut());
+		} finally {
+			endEdit();
 		}
-		// only now set ease in/out, because setRotation/setPosition sets to default when the
-		// target position has no keyframe yet
-		joint.setEaseIn(to,frameData.easeIn());
-		joint.setEaseOut(to,frameData.easeOut());
-		// now re-enable signals so we get updates on screen
-		blockSignals(false);
 	}
 
 	public void moveKeyFrame(int jointNumber, int from, int to) {
@@ -851,52 +1143,76 @@ public class Animation {
 		return bvh.bvhFindNode(frames,getPartName(jointNumber));
 	}
 
-	private void insertFrameHelper(int frame, BVHNode joint) {
-		joint.insertFrame(frame);
+	private void insertFrameHelper(int frame, int count, BVHNode joint) {
+		joint.insertFrames(frame, count);
 		for(int i=0;i<joint.numChildren();i++)
-			insertFrameHelper(frame, joint.child(i));
+			insertFrameHelper(frame, count, joint.child(i));
 	}
 
 	// slot
 	public void insertFrame(int pos, int track) {
-		if(track==-1) {
-			// insert positional frame
-			BVHNode joint = getNode(0);
-			if(joint != null) joint.insertFrame(pos);
-			// insert all rotational frames
-			insertFrameHelper(pos, frames);
-		} else {
-			BVHNode joint=getNode(track);
-			if(joint != null) joint.insertFrame(pos);
+		insertFrames(pos, 1, track);
+	}
+
+	// insert count empty frames at pos into a joint, or all joints if track==-1.
+	// Each joint's later keys are shifted as a whole, not one by one
+	public void insertFrames(int pos, int count, int track) {
+		beginEdit("Insert Frames", null);
+		try {
+			if(count <= 0) return;
+			if(track==-1) {
+				// insert positional frame
+				BVHNode joint = getNode(0);
+				if(joint != null) joint.insertFrames(pos, count);
+				// insert all rotational frames
+				insertFrameHelper(pos, count, frames);
+			} else {
+				BVHNode joint=getNode(track);
+				if(joint != null) joint.insertFrames(pos, count);
+			}
+			setDirty(true);
+		} finally {
+			endEdit();
 		}
-		setDirty(true);
 	}
 
 	// recursively remove frames from joint and all its children
-	private void deleteFrameHelper(int frame, BVHNode joint) {
+	private void deleteFrameHelper(int frame, int count, BVHNode joint) {
 		//  Log.d(TAG, "Animation.deleteFrameHelper(joint %s,frame %d)",joint.name().toLatin1().constData(),frame);
-		joint.deleteFrame(frame);
+		joint.deleteFrames(frame, count);
 		for(int i=0;i<joint.numChildren();i++)
-			deleteFrameHelper(frame, joint.child(i));
+			deleteFrameHelper(frame, count, joint.child(i));
 		emit.redrawTrack(getPartIndex(joint));
 	}
 
 	// delete frame from a joint, if track==0 recursively delete from all joints
 	// slot
 	public void deleteFrame(int pos, int track) {
-		//  Log.d(TAG, "Animation.deleteFrame(joint %d,frame %d)",track,frame);
-
-		if(track==-1) {
-			// delete positional frame
-			BVHNode joint=getNode(0);
-			if(joint != null) joint.deleteFrame(pos);
-			// delete all rotational frames
-			deleteFrameHelper(pos, frames);
-		} else {
-			BVHNode joint=getNode(track);
-			if(joint != null) joint.deleteFrame(pos);
+		deleteFrames(pos, 1, track);
+	}
+
+	// delete the count frames from pos on, [pos, pos+count), from a joint, or
+	// all joints if track==-1, closing the gap
+	public void deleteFrames(int pos, int count, int track) {
+		beginEdit("Delete Frames", null);
+		try {
+			//  Log.d(TAG, "Animation.deleteFrame(joint %d,frame %d)",track,frame);
+			if(count <= 0) return;
+
+			if(track==-1) {
+				// delete positional frame
+				BVHNode joint=getNode(0);
+				if(joint != null) joint.deleteFrames(pos, count);
+				// delete all rotational frames
+				deleteFrameHelper(pos, count, frames);
+			} else {
+				BVHNode joint=getNode(track);
+				if(joint != null) joint.deleteFrames(pos, count);
+			}
+			setDirty(true);
+		} finally {
+			endEdit();
 		}
-		setDirty(true);
 	}
 
 	private void optimizeHelper(BVHNode joint) {
@@ -910,36 +1226,56 @@ public class Animation {
 	}
 
 	public void optimize() {
-		optimizeHelper(positionNode);
-		optimizeHelper(frames);
-		setDirty(true);
-	}
-
-	private void mirrorHelper(BVHNode joint) {
-		// make sure only to mirror one side of l/r joints, and joints that have no mirror node
-		if(!joint.name().startsWith("l")) {
-			joint.mirror();
-			emit.redrawTrack(getPartIndex(joint));
-			if(joint.getMirror() != null)
-				emit.redrawTrack(joint.getMirrorIndex());
+		beginEdit("Optimize", null);
+		try {
+			optimizeHelper(positionNode);
+			optimizeHelper(frames);
+			setDirty(true);
+		} finally {
+			endEdit();
 		}
-
-		for(int i=0;i<joint.numChildren();i++)
-			mirrorHelper(joint.child(i));
 	}
 
 	// mirror a joint or the whole animation, if joint==0
 	public void mirror(BVHNode joint) {
-		if(joint == null) {
-			positionNode.mirror();
-			mirrorHelper(frames);
-		} else {
-			joint.mirror();
-			emit.redrawTrack(getPartIndex(joint));
-			if(joint.getMirror() != null)
-				emit.redrawTrack(joint.getMirrorIndex());
+		beginEdit("Mirror", null);
+		try {
+			if(joint == null) {
+				mirrorFrames(Integer.MIN_VALUE, Integer.MAX_VALUE);
+			} else {
+				joint.mirror();
+				emit.redrawTrack(getPartIndex(joint));
+				if(joint.getMirror() != null)
+					emit.redrawTrack(joint.getMirrorIndex());
+			}
+			setDirty(true);
+		} finally {
+			endEdit();
+		}
+	}
+
+	/**
+	 * Mirror the whole animation left to right on the frames from up to to
+	 * only: each joint takes its mirror joint's keys there, with the mirror's
+	 * channels negated. Every joint's new track is made in one pass over its
+	 * mirror's keys
+	 */
+	public void mirrorFrames(int from, int to) {
+		beginEdit("Mirror", null);
+		try {
+			boolean whole = from == Integer.MIN_VALUE && to == Integer.MAX_VALUE;
+			// read every track before replacing any, as partners swap
+			KeyframeTrack[] tracks = new KeyframeTrack[keyedNodes.length];
+			for (int i = 0; i < tracks.length; i++) tracks[i] = keyedNodes[i].getTrack();
+			for (int i = 0; i < tracks.length; i++) {
+				KeyframeTrack mirrored = tracks[mirrorPermutation[i]].multiplied(from, to, mirrorFactors, i * 6);
+				keyedNodes[i].setTrack(whole ? mirrored : tracks[i].withKeysReplaced(from, to, mirrored));
+				emit.redrawTrack(keyedJoints[i]);
+			}
+			setDirty(true);
+		} finally {
+			endEdit();
 		}
-		setDirty(true);
 	}
 
 	public boolean dirty() {
@@ -994,23 +1330,147 @@ public class Animation {
 		public void redrawTrack(int track);
 		public void frameChanged(int frame);
 		public void animationDirty(boolean state);
+		/**
+		 * Everything a batch changed, in place of the signals above
+		 */
+		public void animationChanged(ChangeSet changes);
+	}
+
+	/**
+	 * I am what a batch of edits changed, delivered once when the batch ends
+	 * instead of a signal for every change
+	 */
+	public static class ChangeSet {
+		private final BitSet tracks = new BitSet();
+		private int firstFrame = Integer.MAX_VALUE;
+		private int lastFrame = Integer.MIN_VALUE;
+		private int numberOfFrames = -1;
+		private boolean dirtyChanged;
+		private boolean dirty;
+
+		public boolean isEmpty() {
+			return tracks.isEmpty() && !hasFrames() && numberOfFrames < 0 && !dirtyChanged;
+		}
+
+		/**
+		 * Answers the joint numbers of the tracks to redraw. Don't change it
+		 */
+		public BitSet getTracks() {
+			return tracks;
+		}
+
+		/**
+		 * Answers whether any frame changed; if so, they are all within
+		 * getFirstFrame to getLastFrame
+		 */
+		public boolean hasFrames() {
+			return firstFrame <= lastFrame;
+		}
+
+		public int getFirstFrame() {
+			return firstFrame;
+		}
+
+		public int getLastFrame() {
+			return lastFrame;
+		}
+
+		/**
+		 * Answers the new number of frames, or -1 if it didn't change
+		 */
+		public int getNumberOfFrames() {
+			return numberOfFrames;
+		}
+
+		public boolean isDirtyChanged() {
+			return dirtyChanged;
+		}
+
+		/**
+		 * Answers the dirty state at the end of the batch
+		 */
+		public boolean isDirty() {
+			return dirty;
+		}
 	}
 
-	private class NullListener implements OnAnimationChangeListener {
-		public void numberOfFrames(int num) {}
-		public void redrawTrack(int track) {}
-		public void frameChanged(int frame) {}
-		public void animationDirty(boolean state) {}
+	/**
+	 * Passes signals on to the listeners, or during a batch, collects them
+	 */
+	private class Emitter implements OnAnimationChangeListener {
+		public void numberOfFrames(int num) {
+			if (pending != null) pending.numberOfFrames = num;
+			else for (OnAnimationChangeListener listener : listeners) listener.numberOfFrames(num);
+		}
+
+		public void redrawTrack(int track) {
+			if (pending != null) {
+				if (track >= 0) pending.tracks.set(track);
+			} else {
+				for (OnAnimationChangeListener listener : listeners) listener.redrawTrack(track);
+			}
+		}
+
+		public void frameChanged(int frame) {
+			if (pending == null) {
+				for (OnAnimationChangeListener listener : listeners) listener.frameChanged(frame);
+			} else {
+				pending.firstFrame = Math.min(pending.firstFrame, frame);
+				pending.lastFrame = Math.max(pending.lastFrame, frame);
+			}
+		}
+
+		public void animationDirty(boolean state) {
+			if (pending == null) {
+				for (OnAnimationChangeListener listener : listeners) listener.animationDirty(state);
+			} else {
+				pending.dirtyChanged = true;
+				pending.dirty = state;
+			}
+		}
+
+		public void animationChanged(ChangeSet changes) {
+			for (OnAnimationChangeListener listener : listeners) listener.animationChanged(changes);
+		}
 	}
 
-	private OnAnimationChangeListener emit = new NullListener();
+	// copied on write, so a listener may add or remove one while being told
+	private final List<OnAnimationChangeListener> listeners = new CopyOnWriteArrayList<OnAnimationChangeListener>();
+	private final OnAnimationChangeListener emit = new Emitter();
+	private int batchDepth;
+	private ChangeSet pending;
 
-	public void setListener(OnAnimationChangeListener listener) {
-		if (listener == null) emit = new NullListener();
-		else emit = listener;
+	/**
+	 * Tell the listener about my changes, until removed. Adding one already
+	 * added does nothing
+	 */
+	public void addListener(OnAnimationChangeListener listener) {
+		if (!listeners.contains(listener)) listeners.add(listener);
+	}
+
+	public void removeListener(OnAnimationChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Start collecting signals instead of sending them, until the matching
+	 * endBatch. Batches nest; every edit method is one already
+	 */
+	public void beginBatch() {
+		if (batchDepth++ == 0) pending = new ChangeSet();
 	}
 
-	void blockSignals(boolean yes) {}
+	/**
+	 * End a batch, sending the listeners one animationChanged for everything
+	 * in it once the outermost one ends
+	 */
+	public void endBatch() {
+		if (batchDepth == 0) throw new IllegalStateException("endBatch without beginBatch");
+		if (--batchDepth > 0) return;
+		ChangeSet changes = pending;
+		pending = null;
+		if (!changes.isEmpty()) emit.animationChanged(changes);
+	}
 
 
 	/*
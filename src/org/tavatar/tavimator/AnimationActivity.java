@@ -1,5 +1,7 @@
 package org.tavatar.tavimator;
 
+import java.io.File;
+
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.os.Build;
@@ -15,10 +17,13 @@ import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.ToggleButton;
 
 public class AnimationActivity extends ActionBarActivity {
 	private static final String TAG = "AnimationActivity";
+	/** ghosts shown on each side of the current frame when onion skinning */
+	private static final int ONION_SKIN_FRAMES = 5;
 	/** Hold a reference to our GLSurfaceView */
 	private AnimationView mGLSurfaceView;
 
@@ -80,6 +85,32 @@ public class AnimationActivity extends ActionBarActivity {
 		boolean on = mGLSurfaceView.getGyroscope().getSensing();
 		menu.findItem(R.id.action_turn_gyro_on).setVisible(!on);
 		menu.findItem(R.id.action_turn_gyro_off).setVisible(on);
+		Animation animation = mGLSurfaceView.getSelectedAnimation();
+		menu.findItem(R.id.action_undo).setVisible(animation != null && animation.canUndo());
+		menu.findItem(R.id.action_redo).setVisible(animation != null && animation.canRedo());
+		menu.findItem(R.id.action_lock_feet).setVisible(animation != null && animation.getIKSolver() != null);
+		boolean ghosts = mGLSurfaceView.getOnionSkinFrames() > 0;
+		menu.findItem(R.id.action_show_onion_skin).setVisible(!ghosts);
+		menu.findItem(R.id.action_hide_onion_skin).setVisible(ghosts);
+		boolean trails = mGLSurfaceView.getMotionTrails().isEnabled();
+		menu.findItem(R.id.action_show_motion_trails).setVisible(!trails);
+		menu.findItem(R.id.action_hide_motion_trails).setVisible(trails);
+		boolean bones = mGLSurfaceView.getSkeletonShown();
+		menu.findItem(R.id.action_show_skeleton).setVisible(!bones);
+		menu.findItem(R.id.action_hide_skeleton).setVisible(bones);
+		boolean sticks = mGLSurfaceView.getStickFigures();
+		menu.findItem(R.id.action_use_stick_figures).setVisible(!sticks);
+		menu.findItem(R.id.action_use_meshes_only).setVisible(sticks);
+		boolean stats = mGLSurfaceView.getFrameStats().isEnabled();
+		menu.findItem(R.id.action_show_frame_stats).setVisible(!stats);
+		menu.findItem(R.id.action_hide_frame_stats).setVisible(stats);
+		menu.findItem(R.id.action_save_frame_stats).setVisible(stats);
+		AnimationView.PickMode pick = mGLSurfaceView.getPickMode();
+		menu.findItem(R.id.action_pick_by_color).setVisible(stats && pick != AnimationView.PickMode.COLOR);
+		menu.findItem(R.id.action_pick_by_ray_cast).setVisible(stats && pick != AnimationView.PickMode.RAY_CAST);
+		menu.findItem(R.id.action_pick_cross_check).setVisible(stats && pick != AnimationView.PickMode.CROSS_CHECK);
+		menu.findItem(R.id.action_benchmark_uniforms).setVisible(stats);
+		menu.findItem(R.id.action_benchmark_ik).setVisible(stats);
 		return super.onPrepareOptionsMenu(menu);
 	}
 
@@ -90,20 +121,159 @@ public class AnimationActivity extends ActionBarActivity {
 	        case R.id.action_turn_gyro_on:
 	    		mGLSurfaceView.getGyroscope().setTracking(true);
 	    		mGLSurfaceView.getGyroscope().setSensing(true);
+	    		mGLSurfaceView.repaint();
     			Log.d(TAG, "Tracking on");
     			supportInvalidateOptionsMenu();
 	            return true;
 	        case R.id.action_turn_gyro_off:
 	    		mGLSurfaceView.getGyroscope().setTracking(false);
 	    		mGLSurfaceView.getGyroscope().setSensing(false);
+	    		mGLSurfaceView.repaint();
     			Log.d(TAG, "Tracking off");
     			supportInvalidateOptionsMenu();
 	            return true;
+	        case R.id.action_undo:
+	        	if (mGLSurfaceView.getSelectedAnimation().undo()) mGLSurfaceView.repaint();
+	        	supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_redo:
+	        	if (mGLSurfaceView.getSelectedAnimation().redo()) mGLSurfaceView.repaint();
+	        	supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_lock_feet:
+	        	lockFeet();
+	            return true;
+	        case R.id.action_show_onion_skin:
+	        	mGLSurfaceView.setOnionSkinFrames(ONION_SKIN_FRAMES);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_hide_onion_skin:
+	        	mGLSurfaceView.setOnionSkinFrames(0);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_show_motion_trails:
+	        	mGLSurfaceView.setMotionTrailsShown(true);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_hide_motion_trails:
+	        	mGLSurfaceView.setMotionTrailsShown(false);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_show_skeleton:
+	        	mGLSurfaceView.setSkeletonShown(true);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_hide_skeleton:
+	        	mGLSurfaceView.setSkeletonShown(false);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_use_stick_figures:
+	        	mGLSurfaceView.setStickFigures(true);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_use_meshes_only:
+	        	mGLSurfaceView.setStickFigures(false);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_show_frame_stats:
+	        	mGLSurfaceView.setFrameStatsShown(true);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_hide_frame_stats:
+	        	mGLSurfaceView.setFrameStatsShown(false);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_save_frame_stats:
+	        	saveFrameStats();
+	            return true;
+	        case R.id.action_pick_by_color:
+	        	mGLSurfaceView.setPickMode(AnimationView.PickMode.COLOR);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_pick_by_ray_cast:
+	        	mGLSurfaceView.setPickMode(AnimationView.PickMode.RAY_CAST);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_pick_cross_check:
+	        	mGLSurfaceView.setPickMode(AnimationView.PickMode.CROSS_CHECK);
+    			supportInvalidateOptionsMenu();
+	            return true;
+	        case R.id.action_benchmark_uniforms:
+	        	mGLSurfaceView.benchmarkPartUniforms();
+	            return true;
+	        case R.id.action_benchmark_ik:
+	        	mGLSurfaceView.benchmarkIK();
+	            return true;
 	        default:
 	            return super.onOptionsItemSelected(item);
 	    }
 	}
 
+	/**
+	 * Pin the selected animation's feet where they stand, and tell how many
+	 * frames that changed. Solving and baking happen off the UI thread; only
+	 * the resulting edit comes back to it
+	 */
+	private void lockFeet() {
+		final Animation animation = mGLSurfaceView.getSelectedAnimation();
+		final FootLockSolver lock = new FootLockSolver(animation.getIKSolver().getSkeleton());
+		new Thread("lock feet") {
+			@Override public void run() {
+				int corrected;
+				KeyframeTrack[] baked = null;
+				try {
+					corrected = lock.solve(FootLockSolver.DEFAULT_HEIGHT_TOLERANCE, FootLockSolver.DEFAULT_SPEED_TOLERANCE);
+					if (corrected > 0) baked = lock.bake();
+				} catch (Exception e) {
+					Log.e(TAG, "could not lock feet", e);
+					corrected = -1;
+				}
+				final int frames = corrected;
+				final KeyframeTrack[] tracks = baked;
+				runOnUiThread(new Runnable() {
+					@Override public void run() {
+						if (tracks != null) {
+							animation.replaceKeys("Lock Feet", lock, lock.getFirstCorrected(), lock.getLastCorrected() + 1, tracks);
+							mGLSurfaceView.repaint();
+							supportInvalidateOptionsMenu();
+						}
+						String message = frames < 0 ? getString(R.string.feet_not_locked)
+								: getString(R.string.feet_locked, frames, animation.getNumberOfFrames());
+						Toast.makeText(AnimationActivity.this, message, Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		}.start();
+	}
+
+	/**
+	 * Write the recorded frame statistics to external storage, off the UI
+	 * thread, for offline analysis
+	 */
+	private void saveFrameStats() {
+		final FrameStats stats = mGLSurfaceView.getFrameStats();
+		final File directory = getExternalFilesDir(null);
+		new Thread("save frame stats") {
+			@Override public void run() {
+				String message;
+				try {
+					File file = stats.writeCsv(directory);
+					Log.d(TAG, "frame stats saved to " + file);
+					message = getString(R.string.frame_stats_saved, file.getPath());
+				} catch (Exception e) {
+					Log.e(TAG, "could not save frame stats", e);
+					message = getString(R.string.frame_stats_not_saved);
+				}
+				final String toast = message;
+				runOnUiThread(new Runnable() {
+					@Override public void run() {
+						Toast.makeText(AnimationActivity.this, toast, Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		}.start();
+	}
+
 	private boolean isVolumeDownPressed = false;
 	private boolean isVolumeUpPressed = false;
 
@@ -126,6 +296,7 @@ public class AnimationActivity extends ActionBarActivity {
 		if (isVolumeUpPressed && isVolumeDownPressed) {
 			mGLSurfaceView.resetCamera();
 		}
+		mGLSurfaceView.repaint();
 		return true;
 	}
 
@@ -142,6 +313,7 @@ public class AnimationActivity extends ActionBarActivity {
 		}
 
 		mGLSurfaceView.getCameraTrackball().setZoomRate(1.0f);
+		mGLSurfaceView.repaint();
 		return true;
 	}
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -14,19 +15,18 @@ import android.graphics.Color;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.os.Build;
 import android.os.SystemClock;
 import android.util.Log;
 import android.util.TypedValue;
 
 import org.tavatar.tavimator.R;
-import com.learnopengles.android.common.RawResourceReader;
-import com.learnopengles.android.common.ShaderHelper;
 
 /**
  * This class implements our custom renderer. Note that the GL10 parameter passed in is unused for OpenGL ES 2.0
  * renderers -- the static class GLES20 is used instead.
  */
-public class AnimationRenderer implements GLSurfaceView.Renderer {
+public class AnimationRenderer implements GLSurfaceView.Renderer, PartsProgram {
 	private final String TAG = "AnimationRenderer";
 	private final AnimationView mView;
 	private final Context mActivityContext;
@@ -35,12 +35,6 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 	// first animation counts 0-ANIMATION_INCREMENT-1, next ANIMATION_INCREMENT++
 	public static final int ANIMATION_INCREMENT = 100;
 
-	private enum DrawMode {
-		MODE_PARTS,
-		MODE_SKELETON,
-		MODE_ROT_AXES
-	};
-
 	/**
 	 * Store the model matrix. This matrix is used to move models from object space (where each model can be thought
 	 * of being located at the center of the universe) to world space.
@@ -57,8 +51,12 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 	/** Store the projection matrix. This is used to project the scene onto a 2D viewport. */
 	private float[] mProjectionMatrix = new float[16];
 
-	/** Allocate storage for the final combined matrix. This will be passed into the shader program. */
-	private float[] mMVPMatrix = new float[16];
+	/**
+	 * The combined view/projection matrix. It is the same for every part, so
+	 * it is computed and passed to the shaders once per frame; each part then
+	 * only passes its model matrix
+	 */
+	private float[] mViewProjectionMatrix = new float[16];
 
 	private float[] backgroundColor = new float[4];
 
@@ -66,11 +64,14 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 	private final FloatBuffer mCubePositions;
 	private final FloatBuffer mCubeNormals;
 
-	/** This will be used to pass in the transformation matrix. */
-	private int mMVPMatrixHandle;				
+	/** This will be used to pass in the view/projection matrix, once per frame. */
+	private int mVPMatrixHandle;
 
-	/** This will be used to pass in the modelview matrix. */
-	private int mMVMatrixHandle;
+	/** This will be used to pass in the view matrix, once per frame. */
+	private int mViewMatrixHandle;
+
+	/** This will be used to pass in the model matrix, per part. */
+	private int mModelMatrixHandle;
 
 	/** This will be used to pass in model position information. */
 	private int mPositionHandle;
@@ -84,6 +85,9 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 	/** This will be used to pass in model normal information. */
 	private int mNormalHandle;
 
+	/** This will be used to pass in per-vertex color, multiplied with u_Color. */
+	private int mVertexColorHandle;
+
 	private int mFogColorHandle;
 
 	/** How many bytes per float. */
@@ -98,18 +102,104 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 	/** This is a handle to our per-vertex cube shading program. */
 	private int mPerVertexProgramHandle;
 
+	/**
+	 * Onion skin ghosts are drawn with their own program, which moves every
+	 * part by its own matrix (u_Bones, indexed by part slot) so a whole
+	 * ghost is one draw call
+	 */
+	private int mGhostProgramHandle;
+	private int mGhostVPMatrixHandle;
+	private int mGhostBonesHandle;
+	private int mGhostColorHandle;
+	private int mGhostBoneHandle;
+
+	/** Size of u_Bones in ghost_vertex_shader */
+	private static final int MAX_GHOST_BONES = 24;
+
+	private final float[] ghostBones = new float[MAX_GHOST_BONES * 16];
+	private final int[] ghostSlots = new int[PoseSnapshot.MAX_PARTS];
+
 	private SLPartsRenderer figureRenderer = new SLPartsFemale(this);
 
-	private boolean skeleton;
+	/**
+	 * Compiles shader programs, or loads them from the last run
+	 */
+	private final ProgramCache programCache;
+
+	/**
+	 * Projected radius, in pixels, down to which a part is drawn at each level
+	 * of detail. Smaller parts get the last level, or a stick figure
+	 */
+	private static final float[] LOD_PIXELS = {40, 12};
+	private static final float STICK_PIXELS = 4;
+	private static final int LOD_STICK = -1;
+
+	private final float[] lodCenter = new float[4];
+	private final float[] lodWorld = new float[4];
+
+	private final boolean[] stickParts = new boolean[PoseSnapshot.MAX_PARTS];
+	private final float[] partColors = new float[PoseSnapshot.MAX_PARTS * 4];
+
+	/**
+	 * Skeleton bones and joints, rotation axis circles and stick figure parts,
+	 * refilled every frame and drawn in two calls. A bone and a stick per part,
+	 * and three circles
+	 */
+	private final SkeletonOverlay overlay = new SkeletonOverlay(
+			PoseSnapshot.MAX_PARTS * 2 + 3 * SkeletonOverlay.CIRCLE_SEGMENTS, PoseSnapshot.MAX_PARTS);
+	private final float[] axisMatrix = new float[16];
+	private final float[] axisRotation = new float[3];
+
+	/** radius of the rotation axis circles, in a part's own units */
+	private static final float AXIS_RADIUS = 10;
+	/** size of the skeleton's joint markers, in pixels */
+	private static final float JOINT_POINT_SIZE = 7;
+
+	private static final float[] OVERLAY_COLORS = {
+		0.0f, 1.0f, 1.0f, 1.0f, // cyan: bones
+		1.0f, 0.0f, 0.0f, 1.0f, // red: selected joint, x axis
+		0.0f, 0.0f, 1.0f, 1.0f, // blue: highlighted joint, z axis
+		0.0f, 1.0f, 0.0f, 1.0f, // green: other joints, y axis
+	};
+	private static final int BONE_COLOR = 0;
+	private static final int SELECTED_COLOR = 4;
+	private static final int HIGHLIGHTED_COLOR = 8;
+	private static final int JOINT_COLOR = 12;
+	private static final int[] AXIS_COLORS = {4, 12, 8};
+
+	/**
+	 * CPU picker, fed the camera and pose every frame
+	 */
+	private RayPicker rayPicker = new RayPicker(figureRenderer);
+
+	/**
+	 * Per-stage timing and counters, for the debug overlay
+	 */
+	private final FrameStats frameStats = new FrameStats();
+	private int viewWidth;
+	private int viewHeight;
+
 	private boolean selecting;
 	private int selectName;
 
+	/**
+	 * Offscreen ID buffer that answers picks without re-rendering the scene
+	 */
+	private final PickBuffer pickBuffer = new PickBuffer();
+
+	/**
+	 * The snapshot the last frame showed. The pick buffer is rendered from it
+	 * too, so it matches the screen between frames
+	 */
+	private PoseSnapshot drawnPose = new PoseSnapshot();
+
 	/**
 	 * Initialize the model data.
 	 */
 	public AnimationRenderer(AnimationView view) {
 		mView = view;
 		mActivityContext = view.getContext();
+		programCache = new ProgramCache(mActivityContext);
 
 		// Define points for a cube.		
 
@@ -246,16 +336,6 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 
 	}
 
-	protected String getVertexShader()
-	{
-		return RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.color_vertex_shader);
-	}
-
-	protected String getFragmentShader()
-	{
-		return RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.color_fragment_shader);
-	}
-
 	/** This will be used to pass in model position information. */
 	public int getPositionHandle() {
 		return mPositionHandle;
@@ -281,33 +361,58 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 		//		  GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
 		GLES20.glDisable(GLES20.GL_DITHER);
 
+		pickBuffer.contextLost();
+		mView.getMotionTrails().contextLost();
+		overlay.contextLost();
+		uploadFloor();
 
-
-		final String vertexShader = getVertexShader();   		
-		final String fragmentShader = getFragmentShader();			
-
-		final int vertexShaderHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, vertexShader);		
-		final int fragmentShaderHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader);		
-
-		mPerVertexProgramHandle = createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, 
-				new String[] {"a_Position",  "a_Color", "a_Normal"});								                                							       
+		// from the program binary cache after the first run; the context is
+		// also kept over pauses where possible (see AnimationView), so this is
+		// mostly only reached on a real context loss
+		mPerVertexProgramHandle = programCache.program(R.raw.color_vertex_shader, R.raw.color_fragment_shader,
+				new String[] {"a_Position",  "a_Color", "a_Normal"});
 
 		// Set our per-vertex lighting program.
 		GLES20.glUseProgram(mPerVertexProgramHandle);
 
 		// Set program handles for cube drawing.
-		mMVPMatrixHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_MVPMatrix");
-		mMVMatrixHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_MVMatrix"); 
+		mVPMatrixHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_VPMatrix");
+		mViewMatrixHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_ViewMatrix");
+		mModelMatrixHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_ModelMatrix");
 		mColorHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_Color");
 		mLightingHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_Lighting");
 		mPositionHandle = GLES20.glGetAttribLocation(mPerVertexProgramHandle, "a_Position");
 		mNormalHandle = GLES20.glGetAttribLocation(mPerVertexProgramHandle, "a_Normal");
+		mVertexColorHandle = GLES20.glGetAttribLocation(mPerVertexProgramHandle, "a_Color");
+		GLES20.glVertexAttrib4f(mVertexColorHandle, 1, 1, 1, 1);
 		mFogColorHandle = GLES20.glGetAttribLocation(mPerVertexProgramHandle, "fogColor");
+		// only the overlay draws points
+		GLES20.glUniform1f(GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_PointSize"), JOINT_POINT_SIZE);
 
 		GLES20.glUniform4f(mFogColorHandle, 0.5f, 0.5f, 0.5f, 0.3f); /* fog color */
 		GLES20.glUniform4f(mFogColorHandle, backgroundColor[0], backgroundColor[1], backgroundColor[2], backgroundColor[3]);
+
+		createGhostProgram();
 	}	
 
+	private void createGhostProgram() {
+		mGhostProgramHandle = 0;
+		if (figureRenderer.getPartSlotCount() > MAX_GHOST_BONES) {
+			Log.w(TAG, "too many parts for onion skinning: " + figureRenderer.getPartSlotCount());
+			return;
+		}
+		// a_Position shares location 0 with the main program, so the parts'
+		// position arrays work in both
+		mGhostProgramHandle = programCache.program(R.raw.ghost_vertex_shader, R.raw.ghost_fragment_shader,
+				new String[] {"a_Position",  "a_Color", "a_Normal", "a_Bone"});
+		mGhostVPMatrixHandle = GLES20.glGetUniformLocation(mGhostProgramHandle, "u_VPMatrix");
+		mGhostBonesHandle = GLES20.glGetUniformLocation(mGhostProgramHandle, "u_Bones");
+		mGhostColorHandle = GLES20.glGetUniformLocation(mGhostProgramHandle, "u_Color");
+		mGhostBoneHandle = GLES20.glGetAttribLocation(mGhostProgramHandle, "a_Bone");
+
+		GLES20.glUseProgram(mPerVertexProgramHandle);
+	}
+
 	//*
 	public static String printMatrix(float[] m) {
 		return "" + 
@@ -327,17 +432,19 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 
 	/**
 	 * Answers a color for color picking, basis. Works on a color buffer with as
-	 * little as 12 bits of precision, thus supporting 4096 pick indices. The
-	 * color is suitable for passing directly to OpenGL
+	 * little as 12 bits of precision, thus supporting 4096 pick indices. Each
+	 * channel holds a nibble as n/15, which 4, 5, 6 and 8 bit channels all
+	 * store and read back within half a step. The color is suitable for
+	 * passing directly to OpenGL
 	 * 
 	 * @param index
 	 * @return
 	 */
 	public static float[] indexToColor(int index) {
 		float[] pickColor = new float[4];
-		pickColor[0] = (index >> 4 & 0xF0) / 255f;
-		pickColor[1] = (index << 0 & 0xF0) / 255f;
-		pickColor[2] = (index << 4 & 0xF0) / 255f;
+		pickColor[0] = (index >> 8 & 0xF) / 15f;
+		pickColor[1] = (index >> 4 & 0xF) / 15f;
+		pickColor[2] = (index >> 0 & 0xF) / 15f;
 		pickColor[3] = 1f;
 		return pickColor;
 	}
@@ -353,14 +460,66 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 	 */
 	public static int colorToIndex(byte r, byte g, byte b, byte a) {
 		return 
-				(r & 0xF0) << 4 |
-				(g & 0xF0) >> 0 |
-				(b & 0xF0) >> 4 ;
+				toNibble(r) << 8 |
+				toNibble(g) << 4 |
+				toNibble(b) << 0 ;
+	}
+
+	// the nearest n for a channel read back as n/15
+	private static int toNibble(byte channel) {
+		return ((channel & 0xFF) * 15 + 127) / 255;
+	}
+
+	public PickBuffer getPickBuffer() {
+		return pickBuffer;
+	}
+
+	public RayPicker getRayPicker() {
+		return rayPicker;
+	}
+
+	public FrameStats getFrameStats() {
+		return frameStats;
+	}
+
+	/**
+	 * Render the pick buffer for the scene shown by the last frame, and
+	 * publish its IDs to the UI thread
+	 */
+	private void renderPickBuffer() {
+		frameStats.beginStage(FrameStats.Stage.PICK);
+		pickBuffer.begin(viewMatrix, drawnPose.animation, drawnPose.frame);
+		GLES20.glClearColor(1.0f, 1.0f, 1.0f, 1.0f); // white
+		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+		updateViewUniforms();
+		selecting = true;
+		GLES20.glUniform1i(mLightingHandle, 0);
+
+		drawAnimations();
+
+		selecting = false;
+		GLES20.glUniform1i(mLightingHandle, 1);
+		pickBuffer.end();
+		frameStats.endStage();
 	}
 
 	// x and y are already converted to GL pixel coordinates
 	public int pickPart(int x, int y) {
+		if (!pickBuffer.isUsable()) return pickPartFromBackBuffer(x, y);
+		if (pickBuffer.isStale()) renderPickBuffer();
+		int selection = pickBuffer.indexAt(x, y);
+		// invalidated by an edit while rendering; fall back to a direct pick
+		if (selection == PickBuffer.NOT_READY) return pickPartFromBackBuffer(x, y);
+		return selection;
+	}
+
+	/**
+	 * Pick by re-rendering a few pixels of the back buffer and reading them
+	 * back. Used when the offscreen pick buffer is unavailable
+	 */
+	private int pickPartFromBackBuffer(int x, int y) {
 		final int SIZE = 5;
+		frameStats.beginStage(FrameStats.Stage.PICK);
 
 		//	  glMatrixMode(GL_PROJECTION);
 		//	  glPushMatrix();
@@ -372,6 +531,7 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 		GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
 		GLES20.glClearColor(1.0f, 1.0f, 1.0f, 1.0f); // white
 		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+		updateViewUniforms();
 		selecting = true;
 		GLES20.glUniform1i(mLightingHandle, 0);        
 
@@ -384,6 +544,7 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 		GLES20.glReadPixels(x, y, 1, 1, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, colorBuffer);
 		colorBuffer.position(0);
 		int selection = colorToIndex(colorBuffer.get(), colorBuffer.get(), colorBuffer.get(), colorBuffer.get());
+		frameStats.endStage();
 
 		// special case: white (the clear color) is no selection
 		if (selection == 4095) selection = -1;
@@ -409,24 +570,33 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 		final float far = 2000.0f;
 
 		Matrix.frustumM(mProjectionMatrix, 0, left, right, bottom, top, near, far);
+
+		pickBuffer.resize(width, height);
+		viewWidth = width;
+		viewHeight = height;
+		mView.repaint();
 	}	
 
 	@Override
 	public void onDrawFrame(GL10 glUnused) 
 	{
+		frameStats.beginFrame();
 		GLES20.glClearColor(0.5f, 0.5f, 0.5f, 0.3f); /* fog color */
 		GLES20.glClearColor(backgroundColor[0], backgroundColor[1], backgroundColor[2], backgroundColor[3]);
 		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
-		mView.getGyroscope().updateOrientation();
-//		mView.updateSelectionOrientation();
-		updateAnimationsTransforms();
+		// the gyroscope, camera and pose are updated on the simulation thread;
+		// just pick up its latest snapshot
+		PoseSnapshot pose = mView.getSimulation().getExchange().acquire();
+		if (pose.sequence != drawnPose.sequence) frameStats.addSimulation(pose);
+		drawnPose = pose;
+		System.arraycopy(pose.viewMatrix, 0, viewMatrix, 0, 16);
 
-		mView.getCameraTrackball().basicUpdateOrientation();
-		mView.getCameraTrackball().getStore().update();
-		mView.getCameraTrackball().updateTweenedGlobalTransform();
-		mView.getCamera().getViewMatrix(viewMatrix, 0);
-//		mView.updateSelectionTouchOrientation();
+		frameStats.beginStage(FrameStats.Stage.TRANSFORMS);
+		pickBuffer.updateScene(viewMatrix, pose.animation, pose.frame);
+		rayPicker.capture(pose, mProjectionMatrix, viewWidth, viewHeight);
+		frameStats.beginStage(FrameStats.Stage.DRAW);
+		updateViewUniforms();
 
 		// Do a complete rotation every 10 seconds.
 		long time = SystemClock.uptimeMillis() % 10000L;        
@@ -488,26 +658,90 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 		Matrix.setIdentityM(mModelMatrix, 0);
 		updateUniforms();
 		drawFloor();
+		drawTrails();
+		drawGhosts(pose);
+		frameStats.endStage();
 
 		// uncomment to debug picking
 		//        pickPart(touchX, touchY);
+
+		// I render when dirty; keep going only while something is still moving,
+		// computing the next pose while this one is on screen. Once it all
+		// settles, refresh the pick buffer so taps and hover can be answered
+		// without waiting on GL
+		if (pose.animating || mView.isAnimating()) mView.repaint();
+		else if (pickBuffer.isStale() && pickBuffer.isUsable()) renderPickBuffer();
+
+		if (frameStats.endFrame()) mView.showFrameStats(frameStats.takeSummary());
 	}
 
 
-	private void updateUniforms() {
-		// This multiplies the view matrix by the model matrix, and stores the result in the MVP matrix
-		// (which currently contains model * view).
-		Matrix.multiplyMM(mMVPMatrix, 0, viewMatrix, 0, mModelMatrix, 0);   
+	/**
+	 * Pass in the view and view/projection matrices, which hold for every
+	 * part drawn until the view changes
+	 */
+	private void updateViewUniforms() {
+		Matrix.multiplyMM(mViewProjectionMatrix, 0, mProjectionMatrix, 0, viewMatrix, 0);
+		GLES20.glUniformMatrix4fv(mVPMatrixHandle, 1, false, mViewProjectionMatrix, 0);
+		GLES20.glUniformMatrix4fv(mViewMatrixHandle, 1, false, viewMatrix, 0);
+		frameStats.countUniforms(2);
+	}
 
-		// Pass in the modelview matrix.
-		GLES20.glUniformMatrix4fv(mMVMatrixHandle, 1, false, mMVPMatrix, 0);                
+	/**
+	 * Pass in the model matrix. The shader combines it with the per frame
+	 * matrices, so there is nothing to multiply here
+	 */
+	private void updateUniforms() {
+		GLES20.glUniformMatrix4fv(mModelMatrixHandle, 1, false, mModelMatrix, 0);
+		frameStats.countUniforms(1);
+	}
 
-		// This multiplies the modelview matrix by the projection matrix, and stores the result in the MVP matrix
-		// (which now contains model * view * projection).
-		Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
+	/**
+	 * Time the per part matrix work of the old scheme, which multiplied
+	 * view * model and projection * modelview and passed both for every part,
+	 * against passing just the model matrix, over the given number of passes
+	 * through the last drawn pose. Must be called on the GL thread, between
+	 * frames; the results are logged and returned as a summary
+	 */
+	public String benchmarkPartUniforms(int passes) {
+		PoseSnapshot pose = drawnPose;
+		int parts = Math.max(1, pose.count);
+		float[] modelView = new float[16];
+		float[] modelViewProjection = new float[16];
+		GLES20.glUseProgram(mPerVertexProgramHandle);
 
-		// Pass in the combined matrix.
-		GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+		// both upload two matrices per part, as the old shader took them; the
+		// locations don't matter for the cost
+		long start = System.nanoTime();
+		for (int pass = 0; pass < passes; pass++) {
+			for (int part = 0; part < parts; part++) {
+				Matrix.multiplyMM(modelView, 0, viewMatrix, 0, pose.transforms, part * 16);
+				GLES20.glUniformMatrix4fv(mModelMatrixHandle, 1, false, modelView, 0);
+				Matrix.multiplyMM(modelViewProjection, 0, mProjectionMatrix, 0, modelView, 0);
+				GLES20.glUniformMatrix4fv(mVPMatrixHandle, 1, false, modelViewProjection, 0);
+			}
+		}
+		GLES20.glFinish();
+		long perFrameMatrices = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int pass = 0; pass < passes; pass++) {
+			Matrix.multiplyMM(mViewProjectionMatrix, 0, mProjectionMatrix, 0, viewMatrix, 0);
+			GLES20.glUniformMatrix4fv(mVPMatrixHandle, 1, false, mViewProjectionMatrix, 0);
+			GLES20.glUniformMatrix4fv(mViewMatrixHandle, 1, false, viewMatrix, 0);
+			for (int part = 0; part < parts; part++) {
+				GLES20.glUniformMatrix4fv(mModelMatrixHandle, 1, false, pose.transforms, part * 16);
+			}
+		}
+		GLES20.glFinish();
+		long perPartMatrices = System.nanoTime() - start;
+		updateViewUniforms();
+
+		long total = (long) passes * parts;
+		String summary = String.format("part uniforms, %d parts x %d: MV+MVP %dns/part, model only %dns/part",
+				parts, passes, perFrameMatrices / total, perPartMatrices / total);
+		Log.d(TAG, summary);
+		return summary;
 	}
 
 	/**
@@ -532,121 +766,207 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 		updateUniforms();
 
 		// Draw the cube.
-		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 36);                               
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 36);
+		frameStats.countDrawCall();                               
 	}
 
 
-	private void updateAnimationsTransforms() {
-		updateFigureTransforms(mView.getSelectedAnimation(), mView.getFrame(), 0);
+	private void drawAnimations() {
+		drawFigure(drawnPose, 0);
 		/*
 		for(int index=0; index < mView.getAnimationCount(); index++) {
-			updateFigureTransforms(mView.getAnimationNumber(index), index);
+			drawFigure(mView.getAnimationNumber(index), index);
 		}
 		 */
 	}
 
-	private void updateFigureTransforms(Animation anim, int frame, int index) {
-		// int figType = anim.getFigureType().ordinal();
-		int figType = 1;
-
-		// save current drawing matrix
-		float[] modelMatrix = new float[16];
-		Matrix.setIdentityM(modelMatrix, 0);
-
-		// scale drawing matrix to avatar scale specified
-		float scale = anim.getAvatarScale();
-		Matrix.scaleM(modelMatrix, 0, scale, scale, scale);
-
-		Position pos = anim.getPosition(frame);
-		Matrix.translateM(modelMatrix, 0, pos.x, pos.y, pos.z);
+	private void drawFigure(PoseSnapshot pose, int index) {
+		if (pose.animation == null) return;
+		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+		GLES20.glDisable(GLES20.GL_CULL_FACE);	    
+		for (int part = 0; part < pose.count; part++) drawPart(pose, part);
+		GLES20.glEnable(GLES20.GL_CULL_FACE);	    
 
-		// visual compensation
-		Matrix.translateM(modelMatrix, 0, 0, 2, 0);
-		updatePartTransforms(frame, anim.getMotion(), mView.getJoints(figType), modelMatrix);
+		// the overlay goes on top of everything
+		fillOverlay(pose);
+		GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+		drawOverlay();
+		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
 	}
 
-	float[] inverseGlobalParentOrientation = new float[16];
+	/**
+	 * Draw one part of a snapshot. The snapshot's parts are already in the
+	 * order the original recursive walk visited them
+	 */
+	private void drawPart(PoseSnapshot pose, int part) {
+		Animation anim = pose.animation;
+		BVHNode motion = pose.nodes[part];
+		selectName = pose.pickIndices[part];
+
+		int color = part * 4;
+		if(selecting) {
+			System.arraycopy(indexToColor(selectName), 0, partColors, color, 4);
+		} else {
+
+			if(anim.getMirrored() && (mView.getMirrorSelected() == selectName || mView.getSelectedPartIndex() == selectName)) {
+				setPartColor(color, 1.0f, 0.635f, 0.059f, 1.0f); // gold
+			} else if(mView.getSelectedPartIndex() == selectName) {
+				setPartColor(color, 0.6f, 0.3f, 0.3f, 1.0f); // red
+			} else if(mView.getPartHighlighted()==selectName) {
+				setPartColor(color, 0.4f, 0.5f, 0.3f, 1.0f); // green
+			} else {
+				setPartColor(color, 0.6f, 0.5f, 0.5f, 1.0f); // grey peach
+				//					setPartColor(color, 0.9f, 0.667f, 0.561f, 1.0f); // peach
+			}
 
-	private void updatePartTransforms(int frame, BVHNode motion, BVHNode joints, float[] parentMatrix) {
-		if(motion == null || joints == null) return;
-		if (motion == mView.getSelectedPart()) {
-			Matrix.invertM(inverseGlobalParentOrientation, 0, parentMatrix, 0);
-			inverseGlobalParentOrientation[12] = 0.0f;
-			inverseGlobalParentOrientation[13] = 0.0f;
-			inverseGlobalParentOrientation[14] = 0.0f;
-		}
-		System.arraycopy(parentMatrix, 0, motion.cachedTransform, 0, 16);
-		Matrix.translateM(motion.cachedTransform, 0, joints.offset[0], joints.offset[1], joints.offset[2]);
-		if(motion.type==BVHNodeType.BVH_NO_SL) {
-			motion = motion.child(0);
+			// limbs held by IK are tinted blue
+			Animation.IKPartType limb = pose.limbs[part];
+			if(limb != null && anim.getIK(limb)) partColors[color + 2] += 0.3f;
 		}
 
-		motion.rotateMatrixForFrame(motion.cachedTransform, frame);
+		System.arraycopy(pose.transforms, part * 16, mModelMatrix, 0, 16);
+		int lod = levelOfDetail(motion.name());
+		stickParts[part] = lod == LOD_STICK;
+		if (lod == LOD_STICK) return;
 
-		for(int i = 0; i < motion.numChildren(); i++) {
-			updatePartTransforms(frame, motion.child(i), joints.child(i), motion.cachedTransform);
-		}
-	}
+		GLES20.glUniform4fv(mColorHandle, 1, partColors, color);
+		frameStats.countUniforms(1); // color
+		updateUniforms();
+		figureRenderer.drawPartNamed(motion.name(), lod);
 
-	private void drawAnimations() {
-		drawFigure(mView.getSelectedAnimation(), 0);
 		/*
-		for(int index=0; index < mView.getAnimationCount(); index++) {
-			drawFigure(mView.getAnimationNumber(index), index);
-		}
+		for(int index=0; index < propList.size(); index++) {
+			Prop* prop=propList.at(index);
+			if(prop->isAttached()==selectName) drawProp(prop);
+		} // for
 		 */
 	}
 
-	private void drawFigure(Animation anim, int index) {
-		selectName = index*ANIMATION_INCREMENT;
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-		GLES20.glDisable(GLES20.GL_CULL_FACE);	    
-		drawPart(anim, anim.getMotion(), DrawMode.MODE_PARTS);
-		GLES20.glEnable(GLES20.GL_CULL_FACE);	    
-		selectName = index*ANIMATION_INCREMENT;
-		drawPart(anim, anim.getMotion(), DrawMode.MODE_ROT_AXES);
-		selectName = index*ANIMATION_INCREMENT;
-		GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-		drawPart(anim, anim.getMotion(), DrawMode.MODE_SKELETON);
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+	private void setPartColor(int color, float r, float g, float b, float a) {
+		partColors[color    ] = r;
+		partColors[color + 1] = g;
+		partColors[color + 2] = b;
+		partColors[color + 3] = a;
 	}
 
-	private void drawPart(Animation anim, BVHNode motion, DrawMode mode) {
-		float[] color = new float[4];
-
-		if(motion == null) return;
-		selectName++;
-		if(motion.type==BVHNodeType.BVH_NO_SL) {
-			selectName++;
-			motion = motion.child(0);
+	/**
+	 * Answers the level of detail to draw the named part at, with
+	 * mModelMatrix as its transform, from the radius of its bounds projected
+	 * onto the screen; or LOD_STICK to leave it to the stick figure
+	 */
+	private int levelOfDetail(String name) {
+		float[] box = figureRenderer.getPartBounds(name);
+		if (box == null) return 0;
+		for (int axis = 0; axis < 3; axis++) lodCenter[axis] = (box[axis] + box[axis + 3]) / 2;
+		lodCenter[3] = 1;
+		Matrix.multiplyMV(lodWorld, 0, mModelMatrix, 0, lodCenter, 0);
+		// only the eye depth is needed: the third row of the view matrix
+		float depth = -(viewMatrix[2] * lodWorld[0] + viewMatrix[6] * lodWorld[1]
+				+ viewMatrix[10] * lodWorld[2] + viewMatrix[14]);
+		if (depth <= 0) return 0;
+
+		float dx = box[3] - box[0];
+		float dy = box[4] - box[1];
+		float dz = box[5] - box[2];
+		// the avatar scale is in the transform; the view doesn't scale
+		float scale = Matrix.length(mModelMatrix[0], mModelMatrix[1], mModelMatrix[2]);
+		float radius = 0.5f * Matrix.length(dx, dy, dz) * scale;
+		float pixels = radius * mProjectionMatrix[5] * viewHeight / 2 / depth;
+
+		for (int lod = 0; lod < LOD_PIXELS.length; lod++) {
+			if (pixels >= LOD_PIXELS[lod]) return lod;
 		}
+		if (pixels < STICK_PIXELS && mView.getStickFigures()) return LOD_STICK;
+		return SLPartsRenderer.LOD_LEVELS - 1;
+	}
+
+	/**
+	 * Fill the overlay from the snapshot's joint matrices: the stick figure
+	 * parts, and unless picking, the skeleton and the selected part's
+	 * rotation axes. drawPart must have run for every part first
+	 */
+	private void fillOverlay(PoseSnapshot pose) {
+		overlay.clear();
+		boolean skeleton = mView.getSkeletonShown() && !selecting;
+		int selected = -1;
+		for (int part = 0; part < pose.count; part++) {
+			int parent = pose.parents[part];
+			int name = pose.pickIndices[part];
+			if (name == mView.getSelectedPartIndex()) selected = part;
+			if (parent < 0) continue;
+
+			// a stick runs from a part's joint to each child's
+			if (stickParts[parent]) {
+				overlay.addLine(pose.transforms, parent * 16 + 12, pose.transforms, part * 16 + 12,
+						partColors, parent * 4);
+			}
 
-		/*	
-		if(mode == DrawMode.MODE_SKELETON && skeleton && !selecting)
-		{
-			glColor4f(0,1,1,1);
-			glLineWidth(1);
-			glBegin(GL_LINES);
-			glVertex3f(-joints->offset[0],-joints->offset[1],-joints->offset[2]);
-			glVertex3f(0,0,0);
-			glEnd();
-
-			if(joints->type!=BVH_ROOT)
+			/*	
+			if(mode == DrawMode.MODE_SKELETON && skeleton && !selecting)
 			{
-				// draw joint spheres in skeleton mode, red for selected parts,
-				// blue for hightlighted and green for all others
-				if(partSelected==selectName)
-					glColor4f(1,0,0,1);
-				else if(partHighlighted==selectName)
-					glColor4f(0,0,1,1);
-				else
-					glColor4f(0,1,0,1);
-
-				glutSolidSphere(1,16,16);
+				glColor4f(0,1,1,1);
+				glLineWidth(1);
+				glBegin(GL_LINES);
+				glVertex3f(-joints->offset[0],-joints->offset[1],-joints->offset[2]);
+				glVertex3f(0,0,0);
+				glEnd();
+
+				if(joints->type!=BVH_ROOT)
+				{
+					// draw joint spheres in skeleton mode, red for selected parts,
+					// blue for hightlighted and green for all others
+					if(partSelected==selectName)
+						glColor4f(1,0,0,1);
+					else if(partHighlighted==selectName)
+						glColor4f(0,0,1,1);
+					else
+						glColor4f(0,1,0,1);
+
+					glutSolidSphere(1,16,16);
+				}
+			}
+			 */
+			if (skeleton) {
+				overlay.addLine(pose.transforms, parent * 16 + 12, pose.transforms, part * 16 + 12,
+						OVERLAY_COLORS, BONE_COLOR);
+				int color = JOINT_COLOR;
+				if (name == mView.getSelectedPartIndex()) color = SELECTED_COLOR;
+				else if (name == mView.getPartHighlighted()) color = HIGHLIGHTED_COLOR;
+				overlay.addPoint(pose.transforms, part * 16 + 12, OVERLAY_COLORS, color);
 			}
 		}
-		 */
+		if (!selecting && selected >= 0) addRotationAxes(pose, selected);
+	}
 
+	/**
+	 * Add a circle around each rotation axis of the part, in the order its
+	 * channels apply them, so each circle shows the axis as the earlier
+	 * rotations have left it
+	 */
+	private void addRotationAxes(PoseSnapshot pose, int part) {
+		BVHNode motion = pose.nodes[part];
+		if (motion.type == BVHNodeType.BVH_END) return;
+
+		// the joint's frame before its own rotations: at its origin, oriented
+		// like its parent, or just scaled like the figure for the root
+		int parent = pose.parents[part];
+		if (parent >= 0) {
+			System.arraycopy(pose.transforms, parent * 16, axisMatrix, 0, 12);
+		} else {
+			int p = part * 16;
+			float scale = Matrix.length(pose.transforms[p], pose.transforms[p + 1], pose.transforms[p + 2]);
+			Matrix.setIdentityM(axisMatrix, 0);
+			Matrix.scaleM(axisMatrix, 0, scale, scale, scale);
+		}
+		System.arraycopy(pose.transforms, part * 16 + 12, axisMatrix, 12, 4);
+
+		motion.getTrack().evaluate(pose.frame, axisRotation, 0, null, 0);
+		float ikX = 0, ikY = 0, ikZ = 0;
+		if(motion.ikOn) {
+			ikX = motion.ikRot.x;
+			ikY = motion.ikRot.y;
+			ikZ = motion.ikRot.z;
+		}
 
 		/*
 			if(mode == DrawMode.MODE_ROT_AXES && !selecting && partSelected==selectName)
@@ -660,215 +980,237 @@ public class AnimationRenderer implements GLSurfaceView.Renderer {
 				}
 			}
 		 */
-
-		if(mode == DrawMode.MODE_PARTS) {
-			if(selecting) {
-				GLES20.glUniform4fv(mColorHandle, 1, indexToColor(selectName), 0);
-			} else {
-
-				if(anim.getMirrored() && (mView.getMirrorSelected() == selectName || mView.getSelectedPartIndex() == selectName)) {
-					GLES20.glUniform4f(mColorHandle, 1.0f, 0.635f, 0.059f, 1.0f); // gold
-				} else if(mView.getSelectedPartIndex() == selectName) {
-					GLES20.glUniform4f(mColorHandle, 0.6f, 0.3f, 0.3f, 1.0f); // red
-				} else if(mView.getPartHighlighted()==selectName) {
-					GLES20.glUniform4f(mColorHandle, 0.4f, 0.5f, 0.3f, 1.0f); // green
-				} else {
-					GLES20.glUniform4f(mColorHandle, 0.6f, 0.5f, 0.5f, 1.0f); // grey peach
-					//					GLES20.glUniform4f(mColorHandle, 0.9f, 0.667f, 0.561f, 1.0f); // peach
-				}
-
-				/*
-			if(anim.getIK(motion)) {
-				glGetFloatv(GL_CURRENT_COLOR,color);
-				glColor4f(color[0],color[1],color[2]+0.3,1.0f);
+		for(int i = 0; i < motion.numChannels; i++) {
+			switch(motion.channelType[i]) {
+			case BVH_XROT:
+				overlay.addCircle(axisMatrix, 0, AXIS_RADIUS, OVERLAY_COLORS, AXIS_COLORS[0]);
+				Matrix.rotateM(axisMatrix, 0, axisRotation[0]+ikX, 1, 0, 0);
+				break;
+			case BVH_YROT:
+				overlay.addCircle(axisMatrix, 1, AXIS_RADIUS, OVERLAY_COLORS, AXIS_COLORS[1]);
+				Matrix.rotateM(axisMatrix, 0, axisRotation[1]+ikY, 0, 1, 0);
+				break;
+			case BVH_ZROT:
+				overlay.addCircle(axisMatrix, 2, AXIS_RADIUS, OVERLAY_COLORS, AXIS_COLORS[2]);
+				Matrix.rotateM(axisMatrix, 0, axisRotation[2]+ikZ, 0, 0, 1);
+				break;
+			default: break;
 			}
-				 */
-			}
-
-			System.arraycopy(motion.cachedTransform, 0, mModelMatrix, 0, 16);
-			updateUniforms();
-			figureRenderer.drawPartNamed(motion.name());
-
-			/*
-			for(int index=0; index < propList.size(); index++) {
-				Prop* prop=propList.at(index);
-				if(prop->isAttached()==selectName) drawProp(prop);
-			} // for
-			 */
-		}
-
-		for(int i = 0; i < motion.numChildren(); i++) {
-			drawPart(anim, motion.child(i), mode);
 		}
 	}
 
-	private FloatBuffer lightTiles;
-	private FloatBuffer darkTiles;
+	/**
+	 * Draw the overlay, colored per vertex, in world coordinates
+	 */
+	private void drawOverlay() {
+		if (overlay.isEmpty()) return;
+		GLES20.glDisableVertexAttribArray(mNormalHandle);
+		GLES20.glUniform1i(mLightingHandle, 0);
+		GLES20.glUniform4f(mColorHandle, 1.0f, 1.0f, 1.0f, 1.0f);
+		Matrix.setIdentityM(mModelMatrix, 0);
+		updateUniforms();
+		GLES20.glLineWidth(selecting ? 3.0f : 2.0f);
+		int calls = overlay.draw(mPositionHandle, mVertexColorHandle);
+		for (int i = 0; i < calls; i++) frameStats.countDrawCall();
+		frameStats.countUniforms(2);
+
+		GLES20.glVertexAttrib4f(mVertexColorHandle, 1, 1, 1, 1);
+		GLES20.glUniform1i(mLightingHandle, selecting ? 0 : 1);
+	}
 
-	private void loadFloor() {
-		final int BYTES_PER_FLOAT = 4;
-		final int FLOATS_PER_VEC = 3;
-		final int BUFFER_SIZE = 1200;
-
-		lightTiles = ByteBuffer.allocateDirect(BUFFER_SIZE * BYTES_PER_FLOAT * FLOATS_PER_VEC)
-				.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		lightTiles.position(0);
-
-		darkTiles = ByteBuffer.allocateDirect(BUFFER_SIZE * BYTES_PER_FLOAT * FLOATS_PER_VEC)
-				.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		darkTiles.position(0);
-
-		for(int i = -10; i < 10; i++) {
-			for(int j = -10; j < 10; j++) {
-				FloatBuffer buf;
-				if((i+j) % 2 != 0) { // dark
-					buf = darkTiles;
-				} else { // light
-					buf = lightTiles;
-				}
+	private static final float[][] TRAIL_COLORS = {
+		{1.0f, 1.0f, 0.0f, 1.0f}, // yellow
+		{0.0f, 1.0f, 1.0f, 1.0f}, // cyan
+		{1.0f, 0.0f, 1.0f, 1.0f}, // magenta
+		{1.0f, 0.5f, 0.0f, 1.0f}, // orange
+		{0.0f, 1.0f, 0.0f, 1.0f}, // green
+	};
 
-				buf.put( i   *40); buf.put(0); buf.put( j   *40);
-				buf.put( i   *40); buf.put(0); buf.put((j+1)*40);
-				buf.put((i+1)*40); buf.put(0); buf.put((j+1)*40);
+	/**
+	 * Draw the motion trails, one line strip per joint, straight from their
+	 * vertex buffer
+	 */
+	private void drawTrails() {
+		MotionTrails trails = mView.getMotionTrails();
+		int frames = trails.bind(mPositionHandle);
+		if (frames == 0) return;
 
-				buf.put((i+1)*40); buf.put(0); buf.put( j   *40);
-				buf.put( i   *40); buf.put(0); buf.put( j   *40);
-				buf.put((i+1)*40); buf.put(0); buf.put((j+1)*40);
-			}
+		GLES20.glDisableVertexAttribArray(mNormalHandle);
+		GLES20.glUniform1i(mLightingHandle, 0);
+		Matrix.setIdentityM(mModelMatrix, 0);
+		updateUniforms();
+		GLES20.glLineWidth(2.0f);
+		for (int trail = 0; trail < trails.getTrailCount(); trail++) {
+			GLES20.glUniform4fv(mColorHandle, 1, TRAIL_COLORS[trail % TRAIL_COLORS.length], 0);
+			GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, trail * frames, frames);
+			frameStats.countUniforms(1);
+			frameStats.countDrawCall();
 		}
+		trails.unbind();
+		GLES20.glUniform1i(mLightingHandle, 1);
 	}
 
-	private void releaseFloor() {
-		lightTiles.limit(0);
-		lightTiles = null;
-		darkTiles.limit(0);
-		darkTiles = null;
-	}
-
-	private void drawFloor() {
-		//		  float alpha=(100-Settings::floorTranslucency())/100.0; // default is 33% transparent, so 0.67 alpha
-		float alpha = 0.67f;
+	/**
+	 * Draw the snapshot's onion skin ghosts, translucent, one draw call each.
+	 * Past frames are tinted blue and future ones red, fading with distance.
+	 * Ghosts are drawn last and don't write depth, so they never hide the
+	 * figure or each other
+	 */
+	private void drawGhosts(PoseSnapshot pose) {
+		if (pose.ghostCount == 0 || mGhostProgramHandle == 0) return;
 
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-		GLES20.glVertexAttrib3f(getNormalHandle(), 0, 1, 0);
-		GLES20.glDisableVertexAttribArray(getNormalHandle());
+		int farthest = 1;
+		for (int i = 0; i < pose.count; i++) {
+			ghostSlots[i] = figureRenderer.getPartSlot(pose.nodes[i].name());
+		}
+		for (int ghost = 0; ghost < pose.ghostCount; ghost++) {
+			farthest = Math.max(farthest, Math.abs(pose.ghostOffsets[ghost]));
+		}
 
-		boolean frameProtected = false;
+		GLES20.glUseProgram(mGhostProgramHandle);
+		GLES20.glUniformMatrix4fv(mGhostVPMatrixHandle, 1, false, mViewProjectionMatrix, 0);
+		frameStats.countUniforms(1);
+		GLES20.glDisableVertexAttribArray(mNormalHandle);
+		GLES20.glEnable(GLES20.GL_BLEND);
+		GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+		GLES20.glDepthMask(false);
+
+		for (int ghost = 0; ghost < pose.ghostCount; ghost++) {
+			// parts missing from the pose keep a zero matrix, which collapses them
+			Arrays.fill(ghostBones, 0.0f);
+			int base = ghost * PoseSnapshot.MAX_PARTS * 16;
+			for (int i = 0; i < pose.count; i++) {
+				if (ghostSlots[i] < 0) continue;
+				System.arraycopy(pose.ghostTransforms, base + i * 16, ghostBones, ghostSlots[i] * 16, 16);
+			}
+			GLES20.glUniformMatrix4fv(mGhostBonesHandle, MAX_GHOST_BONES, false, ghostBones, 0);
 
-		GLES20.glEnableVertexAttribArray(mPositionHandle);
+			int offset = pose.ghostOffsets[ghost];
+			float alpha = 0.4f * (farthest + 1 - Math.abs(offset)) / farthest;
+			if (offset < 0) GLES20.glUniform4f(mGhostColorHandle, 0.3f, 0.5f, 1.0f, alpha); // blue
+			else GLES20.glUniform4f(mGhostColorHandle, 1.0f, 0.5f, 0.3f, alpha); // red
+			frameStats.countUniforms(2);
 
-		// dark
-		if(frameProtected)
-			GLES20.glUniform4f(mColorHandle, 0.3f, 0.0f, 0.0f, alpha);
-		else
-			GLES20.glUniform4f(mColorHandle, 0.1f, 0.1f, 0.1f, alpha);
-		darkTiles.position(0);
-		GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
-				0, darkTiles);
-		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 1200);
+			figureRenderer.drawSkinned(mGhostBoneHandle);
+		}
 
-		// light
-		if(frameProtected)
-			GLES20.glUniform4f(mColorHandle, 0.8f, 0.0f, 0.0f, alpha);
-		else
-			GLES20.glUniform4f(mColorHandle, 0.6f, 0.6f, 0.6f, alpha);
-		lightTiles.position(0);
-		GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
-				0, lightTiles);
-		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 1200);
+		GLES20.glDepthMask(true);
+		GLES20.glDisable(GLES20.GL_BLEND);
+		GLES20.glDisableVertexAttribArray(mGhostBoneHandle);
+		GLES20.glUseProgram(mPerVertexProgramHandle);
 	}
 
-	/** 
-	 * Helper function to compile a shader.
-	 * 
-	 * @param shaderType The shader type.
-	 * @param shaderSource The shader source code.
-	 * @return An OpenGL handle to the shader.
+	/**
+	 * The checkerboard, interleaved as FLOOR_STRIDE bytes per vertex: x, y, z
+	 * floats then an RGBA byte color. Kept so the VBO can be rebuilt when the
+	 * GL context is lost
 	 */
-	private int compileShader(final int shaderType, final String shaderSource) 
-	{
-		int shaderHandle = GLES20.glCreateShader(shaderType);
+	private ByteBuffer floorVertices;
+	private int floorBuffer;
 
-		if (shaderHandle != 0) 
-		{
-			// Pass in the shader source.
-			GLES20.glShaderSource(shaderHandle, shaderSource);
+	private static final int FLOOR_TILES = 20;
+	private static final int FLOOR_TILE_SIZE = 40;
+	private static final int FLOOR_VERTEX_COUNT = FLOOR_TILES * FLOOR_TILES * 6;
+	private static final int FLOOR_STRIDE = 3 * 4 + 4;
 
-			// Compile the shader.
-			GLES20.glCompileShader(shaderHandle);
+	private void loadFloor() {
+		floorVertices = ByteBuffer.allocateDirect(FLOOR_VERTEX_COUNT * FLOOR_STRIDE)
+				.order(ByteOrder.nativeOrder());
 
-			// Get the compilation status.
-			final int[] compileStatus = new int[1];
-			GLES20.glGetShaderiv(shaderHandle, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
+		final byte dark = (byte)(0.1f * 255);
+		final byte light = (byte)(0.6f * 255);
 
-			// If the compilation failed, delete the shader.
-			if (compileStatus[0] == 0) 
-			{
-				Log.e(TAG, "Error compiling shader: " + GLES20.glGetShaderInfoLog(shaderHandle));
-				GLES20.glDeleteShader(shaderHandle);
-				shaderHandle = 0;
-			}
-		}
+		for(int i = -FLOOR_TILES/2; i < FLOOR_TILES/2; i++) {
+			for(int j = -FLOOR_TILES/2; j < FLOOR_TILES/2; j++) {
+				byte shade = (i+j) % 2 != 0 ? dark : light;
+				int x0 =  i   *FLOOR_TILE_SIZE, z0 =  j   *FLOOR_TILE_SIZE;
+				int x1 = (i+1)*FLOOR_TILE_SIZE, z1 = (j+1)*FLOOR_TILE_SIZE;
+
+				putFloorVertex(x0, z0, shade);
+				putFloorVertex(x0, z1, shade);
+				putFloorVertex(x1, z1, shade);
 
-		if (shaderHandle == 0)
-		{			
-			throw new RuntimeException("Error creating shader.");
+				putFloorVertex(x1, z0, shade);
+				putFloorVertex(x0, z0, shade);
+				putFloorVertex(x1, z1, shade);
+			}
 		}
+		floorVertices.position(0);
+	}
 
-		return shaderHandle;
-	}	
+	private void putFloorVertex(float x, float z, byte shade) {
+		floorVertices.putFloat(x).putFloat(0).putFloat(z);
+		floorVertices.put(shade).put(shade).put(shade).put((byte)0xFF);
+	}
 
 	/**
-	 * Helper function to compile and link a program.
-	 * 
-	 * @param vertexShaderHandle An OpenGL handle to an already-compiled vertex shader.
-	 * @param fragmentShaderHandle An OpenGL handle to an already-compiled fragment shader.
-	 * @param attributes Attributes that need to be bound to the program.
-	 * @return An OpenGL handle to the program.
+	 * Upload the floor to a VBO. Call once per GL context
 	 */
-	private int createAndLinkProgram(final int vertexShaderHandle, final int fragmentShaderHandle, final String[] attributes) 
-	{
-		int programHandle = GLES20.glCreateProgram();
-
-		if (programHandle != 0) 
-		{
-			// Bind the vertex shader to the program.
-			GLES20.glAttachShader(programHandle, vertexShaderHandle);			
+	private void uploadFloor() {
+		// glVertexAttribPointer with a buffer offset needs API 9
+		if (Build.VERSION.SDK_INT < 9) {
+			floorBuffer = 0;
+			return;
+		}
+		int[] handle = new int[1];
+		GLES20.glGenBuffers(1, handle, 0);
+		floorBuffer = handle[0];
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, floorBuffer);
+		floorVertices.position(0);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, FLOOR_VERTEX_COUNT * FLOOR_STRIDE,
+				floorVertices, GLES20.GL_STATIC_DRAW);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+	}
 
-			// Bind the fragment shader to the program.
-			GLES20.glAttachShader(programHandle, fragmentShaderHandle);
+	private void releaseFloor() {
+		if (floorBuffer != 0) {
+			GLES20.glDeleteBuffers(1, new int[] {floorBuffer}, 0);
+			floorBuffer = 0;
+		}
+		floorVertices.limit(0);
+		floorVertices = null;
+	}
 
-			// Bind attributes
-			if (attributes != null)
-			{
-				final int size = attributes.length;
-				for (int i = 0; i < size; i++)
-				{
-					GLES20.glBindAttribLocation(programHandle, i, attributes[i]);
-				}						
-			}
+	private void drawFloor() {
+		//		  float alpha=(100-Settings::floorTranslucency())/100.0; // default is 33% transparent, so 0.67 alpha
+		float alpha = 0.67f;
 
-			// Link the two shaders together into a program.
-			GLES20.glLinkProgram(programHandle);
+		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+		GLES20.glVertexAttrib3f(getNormalHandle(), 0, 1, 0);
+		GLES20.glDisableVertexAttribArray(getNormalHandle());
 
-			// Get the link status.
-			final int[] linkStatus = new int[1];
-			GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linkStatus, 0);
+		boolean frameProtected = false;
 
-			// If the link failed, delete the program.
-			if (linkStatus[0] == 0) 
-			{				
-				Log.e(TAG, "Error compiling program: " + GLES20.glGetProgramInfoLog(programHandle));
-				GLES20.glDeleteProgram(programHandle);
-				programHandle = 0;
-			}
+		// the tile shades are baked into the vertex colors; u_Color tints them
+		if(frameProtected)
+			GLES20.glUniform4f(mColorHandle, 1.0f, 0.0f, 0.0f, alpha);
+		else
+			GLES20.glUniform4f(mColorHandle, 1.0f, 1.0f, 1.0f, alpha);
+
+		if (floorBuffer != 0) {
+			GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, floorBuffer);
+			GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
+					FLOOR_STRIDE, 0);
+			GLES20.glVertexAttribPointer(mVertexColorHandle, 4, GLES20.GL_UNSIGNED_BYTE, true,
+					FLOOR_STRIDE, 3 * 4);
+		} else {
+			floorVertices.position(0);
+			GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
+					FLOOR_STRIDE, floorVertices);
+			floorVertices.position(3 * 4);
+			GLES20.glVertexAttribPointer(mVertexColorHandle, 4, GLES20.GL_UNSIGNED_BYTE, true,
+					FLOOR_STRIDE, floorVertices);
 		}
+		GLES20.glEnableVertexAttribArray(mPositionHandle);
+		GLES20.glEnableVertexAttribArray(mVertexColorHandle);
 
-		if (programHandle == 0)
-		{
-			throw new RuntimeException("Error creating program.");
-		}
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, FLOOR_VERTEX_COUNT);
+		frameStats.countDrawCall();
+		frameStats.countUniforms(1);
 
-		return programHandle;
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		// everything else is colored by u_Color alone
+		GLES20.glDisableVertexAttribArray(mVertexColorHandle);
+		GLES20.glVertexAttrib4f(mVertexColorHandle, 1, 1, 1, 1);
 	}
 }
@@ -316,7 +316,11 @@ public class AnimationTimeline extends LinearLayout implements Animation.OnAnima
 	}
 
 	public void setPlayback(PlaybackController playback) {
+		if (this.playback != null && this.playback.getAnimation() != null) {
+			this.playback.getAnimation().removeListener(this);
+		}
 		this.playback = playback;
+		if (playback.getAnimation() != null) playback.getAnimation().addListener(this);
 		updateInputTextView();
 		invalidate();
 	}
@@ -589,6 +593,18 @@ public class AnimationTimeline extends LinearLayout implements Animation.OnAnima
 
 	}
 
+	/**
+	 * Repaints once for a whole edit, however many keys it changed
+	 */
+	@Override
+	public void animationChanged(Animation.ChangeSet changes) {
+		if (changes.getNumberOfFrames() >= 0) {
+			updateInputTextView();
+			tryComputeMaxHeight();
+		}
+		invalidate();
+	}
+
 	@Override
 	protected float getLeftFadingEdgeStrength() {
 		return LEFT_AND_RIGHT_FADING_EDGE_STRENGTH;
@@ -602,6 +618,8 @@ public class AnimationTimeline extends LinearLayout implements Animation.OnAnima
 	@Override
 	protected void onDetachedFromWindow() {
 		removeAllCallbacks();
+		// the animation would otherwise hold me after I'm gone
+		if (playback != null && playback.getAnimation() != null) playback.getAnimation().removeListener(this);
 	}
 
 	private float pixelToTime(float x) {
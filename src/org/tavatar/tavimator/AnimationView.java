@@ -14,6 +14,7 @@ import android.graphics.PixelFormat;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.os.Build;
 import android.os.Handler;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -62,6 +63,52 @@ public class AnimationView extends GLSurfaceView {
 	//	private int mLastMotionX2;
 	//	private int mLastMotionY2;
 
+	/**
+	 * How taps find the part under the finger
+	 */
+	public enum PickMode {
+		/** render pick colors on the GPU and read them back */
+		COLOR,
+		/** cast a ray against part bounding boxes on the CPU */
+		RAY_CAST,
+		/** use COLOR, but also ray cast and log any disagreement */
+		CROSS_CHECK
+	}
+
+	private PickMode pickMode = PickMode.COLOR;
+
+	/**
+	 * Computes poses and camera for the renderer
+	 */
+	private SimulationThread simulation;
+
+	/**
+	 * Ghost frames shown on each side of the current frame, 0 for none
+	 */
+	private volatile int onionSkinFrames = 0;
+
+	/**
+	 * Paths of the hands, feet and hip over the whole animation
+	 */
+	private final MotionTrails motionTrails = new MotionTrails(this);
+
+	/**
+	 * Whether parts too small on screen to make out are drawn as stick figure
+	 * lines instead of their coarsest mesh
+	 */
+	private volatile boolean stickFigures = false;
+
+	/**
+	 * Whether the skeleton's bones and joints are drawn over the figure
+	 */
+	private volatile boolean skeletonShown = false;
+
+	/**
+	 * Layers blended over the selected animation, shown instead of its own
+	 * pose, or null
+	 */
+	private volatile LayerStack layerStack;
+
 	private int partHighlighted = -1;
 	private int partSelected = -1;
 	private int mirrorSelected = -1;
@@ -104,6 +151,11 @@ public class AnimationView extends GLSurfaceView {
 			playback = new PlaybackController(getContext());
 			playback.setAnimation(animation);
 			playback.setSnapToFrames(true);
+			playback.setOnTimeChangeListener(new PlaybackController.OnTimeChangeListener() {
+				@Override public void timeChanged(PlaybackController playback) {
+					repaint();
+				}
+			});
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -123,12 +175,19 @@ public class AnimationView extends GLSurfaceView {
 			// Request an OpenGL ES 2.0 compatible context.
 			setEGLContextClientVersion(2);
 
+			// keep the context, and so the compiled shaders and buffers, while
+			// paused, so resuming doesn't rebuild them
+			if (Build.VERSION.SDK_INT >= 11) setPreserveEGLContextOnPause(true);
+
 			setDebugFlags(DEBUG_CHECK_GL_ERROR);
 
 			// Set the renderer to our demo renderer, defined below.
 			renderer = new AnimationRenderer(this);
 			setRenderer(renderer);
-			//			setRenderMode(RENDERMODE_WHEN_DIRTY);
+			setRenderMode(RENDERMODE_WHEN_DIRTY);
+
+			simulation = new SimulationThread(this);
+			simulation.start();
 		} else {
 			// This is where you could create an OpenGL ES 1.x compatible
 			// renderer if you wanted to support both ES 1 and ES 2.
@@ -138,6 +197,10 @@ public class AnimationView extends GLSurfaceView {
 		pointers = new PointerGroup(getContext());
 	}
 	
+	public SimulationThread getSimulation() {
+		return simulation;
+	}
+
 	public PlaybackController getPlayback() {
 		return playback;
 	}
@@ -193,7 +256,7 @@ public class AnimationView extends GLSurfaceView {
 		camera.setPosition(0, 0, 100);
 		camera.setOrigin(0, 40, 0);
 		camera.clearRotation();
-
+		repaint();
 	}
 
 	public void selectAnimation(int index) {
@@ -209,7 +272,8 @@ public class AnimationView extends GLSurfaceView {
 
 		animation = anim;
 		animList.add(anim);
-		//connect(anim,SIGNAL(frameChanged()),this,SLOT(repaint()));
+		anim.addListener(animationRepainter);
+		attachIKSolver(anim);
 		repaint();
 	}
 
@@ -218,11 +282,19 @@ public class AnimationView extends GLSurfaceView {
 		if(!inAnimList(anim)) {
 			animList.add(anim);
 			animation = anim; // set it as the current one
-			//connect(anim,SIGNAL(frameChanged()),this,SLOT(repaint()));
+			anim.addListener(animationRepainter);
+			attachIKSolver(anim);
 			repaint();
 		}
 	}
 
+	// gives the animation a solver over the figure it's drawn as, for its IK
+	private void attachIKSolver(Animation anim) {
+		if(joints[1] != null && anim.getIKSolver() == null) {
+			anim.setIKSolver(new IKSolver(new FlatSkeleton(anim, joints[1], 0)));
+		}
+	}
+
 	private boolean inAnimList(Animation anim) {
 		return animList.contains(anim);
 	}
@@ -307,7 +379,7 @@ public class AnimationView extends GLSurfaceView {
 		//    			getSelectedAnimation()->getRotationLimits(node),
 		//    			Position(getSelectedAnimation()->getPosition())
 		//    			);
-		//    	repaint();
+		repaint();
 	}
 
 	/*
@@ -348,26 +420,64 @@ public class AnimationView extends GLSurfaceView {
 		float[] cameraOrientation = new float[16];
 		Matrix.transposeM(cameraOrientation, 0, getRenderer().getCamera().getInverseCameraOrientation(), 0);
 		Matrix.multiplyMM(selectionTrackball.getCameraToTrackballOrientation(), 0,
-				renderer.inverseGlobalParentOrientation, 0,
+				simulation.inverseGlobalParentOrientation, 0,
 				cameraOrientation, 0);
 		float[] cameraTrackballOrientation = new float[16];
 		getRenderer().getCamera().getTrackball().getInverseOrientation(cameraTrackballOrientation);
 		Matrix.multiplyMM(selectionTrackball.getGyroToTrackball(), 0,
-				renderer.inverseGlobalParentOrientation, 0,
+				simulation.inverseGlobalParentOrientation, 0,
 				cameraTrackballOrientation, 0);
 	}
 //*/
 
+	/**
+	 * Schedule a frame. I render only on demand, so anything that changes what
+	 * is on screen must call this. The simulation thread computes the new
+	 * pose, then requests the render. Safe to call from any thread
+	 */
 	public void repaint() {
-		// do nothing
+		// the simulation thread doesn't exist until the renderer is set
+		if (simulation != null) simulation.requestUpdate();
 	}
 
+	/**
+	 * Answers true if something is in motion that will change the next frame
+	 * without further input: playback, a camera fling or zoom, or gyroscope
+	 * tracking. The renderer keeps scheduling frames while this is true
+	 */
+	public boolean isAnimating() {
+		if (playback != null && !playback.isFinished()) return true;
+		if (trackball.isAnimating()) return true;
+		if (gyroscope.getSensing() && gyroscope.getTracking()) return true;
+		return false;
+	}
+
+	/**
+	 * Redraws me whenever the animation I'm showing is edited
+	 */
+	private class AnimationRepainter implements Animation.OnAnimationChangeListener {
+		public void numberOfFrames(int num) {}
+		public void redrawTrack(int track) { animationEdited(); }
+		public void frameChanged(int frame) { animationEdited(); }
+		public void animationDirty(boolean state) {}
+		public void animationChanged(Animation.ChangeSet changes) { animationEdited(); }
+	}
+
+	private void animationEdited() {
+		// the pose may have changed without the frame or camera changing
+		if (renderer != null) renderer.getPickBuffer().invalidate();
+		repaint();
+	}
+
+	private Animation.OnAnimationChangeListener animationRepainter = new AnimationRepainter();
+
 	@Override
 	public void onResume() 
 	{
 		// The activity must call the GL surface view's onResume() on activity onResume().
 		super.onResume();
 		gyroscope.onResume();
+		repaint();
 	}
 
 	@Override
@@ -378,11 +488,206 @@ public class AnimationView extends GLSurfaceView {
 		gyroscope.onPause();
 	}
 
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		// coming back after onDetachedFromWindow stopped the simulation
+		if (simulation != null && simulation.hasQuit()) {
+			simulation = new SimulationThread(this);
+			simulation.start();
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		// the simulation thread holds me, and through me the activity and
+		// animations, for as long as it runs
+		if (simulation != null) simulation.quit();
+		motionTrails.shutdown();
+		super.onDetachedFromWindow();
+	}
+
 	public void pickPart(final int x, final int y, final Handler resultHandler) {
+		final int rayIndex = pickMode == PickMode.COLOR ? -1 : renderer.getRayPicker().pick(x, y);
+		if (pickMode == PickMode.RAY_CAST) {
+			resultHandler.sendMessage(resultHandler.obtainMessage(PICK_PART_RESULT, rayIndex, 0));
+			return;
+		}
+
+		// answer straight from the pick buffer if it matches what's on screen
+		int index = renderer.getPickBuffer().indexAt(x, getHeight() - y);
+		if (index != PickBuffer.NOT_READY) {
+			crossCheckPick(x, y, index, rayIndex);
+			resultHandler.sendMessage(resultHandler.obtainMessage(PICK_PART_RESULT, index, 0));
+			return;
+		}
 		queueEvent(new Runnable() {
 			@Override public void run() {
+				int index = renderer.pickPart(x, getHeight() - y);
+				crossCheckPick(x, y, index, rayIndex);
 				resultHandler.sendMessage(resultHandler.obtainMessage(
-						PICK_PART_RESULT, renderer.pickPart(x, getHeight() - y), 0)); 
+						PICK_PART_RESULT, index, 0)); 
+			}
+		});
+	}
+
+	private void crossCheckPick(int x, int y, int colorIndex, int rayIndex) {
+		if (pickMode != PickMode.CROSS_CHECK) return;
+		if (colorIndex == rayIndex) {
+			Log.d(TAG, "pick agrees at " + x + "," + y + ": " + colorIndex);
+		} else {
+			Log.w(TAG, "pick mismatch at " + x + "," + y + ": color " + colorIndex + ", ray " + rayIndex);
+			showFrameStats("pick mismatch: color " + colorIndex + ", ray " + rayIndex);
+		}
+	}
+
+	public PickMode getPickMode() {
+		return pickMode;
+	}
+
+	public void setPickMode(PickMode pickMode) {
+		this.pickMode = pickMode;
+	}
+
+	/**
+	 * Highlight the part under the mouse, if the pick buffer is current or I'm
+	 * ray casting. Never waits on GL
+	 */
+	@Override
+	public boolean onHoverEvent(MotionEvent event) {
+		if (renderer == null) return super.onHoverEvent(event);
+		switch (event.getActionMasked()) {
+		case MotionEvent.ACTION_HOVER_ENTER:
+		case MotionEvent.ACTION_HOVER_MOVE:
+			int index;
+			if (pickMode == PickMode.RAY_CAST) {
+				index = renderer.getRayPicker().pick((int)event.getX(), (int)event.getY());
+			} else {
+				index = renderer.getPickBuffer().indexAt((int)event.getX(), getHeight() - (int)event.getY());
+			}
+			if (index != PickBuffer.NOT_READY) setPartHighlighted(index);
+			return true;
+		case MotionEvent.ACTION_HOVER_EXIT:
+			setPartHighlighted(-1);
+			return true;
+		}
+		return super.onHoverEvent(event);
+	}
+
+	public int getOnionSkinFrames() {
+		return onionSkinFrames;
+	}
+
+	/**
+	 * Show translucent ghosts of the given number of frames before and after
+	 * the current one, or none for 0
+	 */
+	public void setOnionSkinFrames(int frames) {
+		onionSkinFrames = Math.max(0, Math.min(frames, OnionSkin.MAX_GHOSTS_PER_SIDE));
+		repaint();
+	}
+
+	public LayerStack getLayerStack() {
+		return layerStack;
+	}
+
+	/**
+	 * Show the stack's blended pose while its base animation is selected, or
+	 * the animation's own pose again with null
+	 */
+	public void setLayerStack(LayerStack stack) {
+		layerStack = stack;
+		repaint();
+	}
+
+	public MotionTrails getMotionTrails() {
+		return motionTrails;
+	}
+
+	/**
+	 * Show or hide the motion trails
+	 */
+	public void setMotionTrailsShown(boolean shown) {
+		motionTrails.setEnabled(shown);
+		repaint();
+	}
+
+	public boolean getStickFigures() {
+		return stickFigures;
+	}
+
+	/**
+	 * Draw distant parts as stick figure lines, or always as meshes
+	 */
+	public void setStickFigures(boolean sticks) {
+		stickFigures = sticks;
+		repaint();
+	}
+
+	public boolean getSkeletonShown() {
+		return skeletonShown;
+	}
+
+	/**
+	 * Show or hide the skeleton over the figure
+	 */
+	public void setSkeletonShown(boolean shown) {
+		skeletonShown = shown;
+		repaint();
+	}
+
+	public FrameStats getFrameStats() {
+		return renderer.getFrameStats();
+	}
+
+	/**
+	 * Show or hide the frame statistics overlay in the debug label
+	 */
+	public void setFrameStatsShown(boolean shown) {
+		renderer.getFrameStats().setEnabled(shown);
+		if (!shown) debug("");
+		repaint();
+	}
+
+	/**
+	 * Time the renderer's per part uniform work, on the GL thread, and show
+	 * the result in place of the frame stats
+	 */
+	public void benchmarkPartUniforms() {
+		queueEvent(new Runnable() {
+			@Override public void run() {
+				showFrameStats(renderer.benchmarkPartUniforms(1000));
+			}
+		});
+	}
+
+	/**
+	 * Time IK solves on the current animation's limbs, with a solver of its
+	 * own so the animation's is left alone, and show the results. The solver
+	 * needs no GL context, so this runs on a thread of its own rather than
+	 * stalling rendering
+	 */
+	public void benchmarkIK() {
+		final Animation anim = animation;
+		final BVHNode skeleton = joints[1];
+		if (anim == null || skeleton == null) return;
+		final int frame = getFrame();
+		new Thread("benchmark IK") {
+			@Override public void run() {
+				IKSolver solver = new IKSolver(new FlatSkeleton(anim, skeleton, 0));
+				showFrameStats(solver.benchmark(frame, 1000));
+			}
+		}.start();
+	}
+
+	/**
+	 * Show a frame statistics summary. Called from the GL thread, from pick
+	 * cross-checks on the UI thread, and from the IK benchmark's thread
+	 */
+	public void showFrameStats(final String summary) {
+		post(new Runnable() {
+			@Override public void run() {
+				if (renderer.getFrameStats().isEnabled()) debug(summary);
 			}
 		});
 	}
@@ -453,6 +758,7 @@ public class AnimationView extends GLSurfaceView {
 			}
 			if (pointers.isDragging()) {
 				cameraHandler.onMove(pointers);
+				repaint();
 			}
 			break;
 		case MotionEvent.ACTION_UP: // the last finger was lifted
@@ -466,6 +772,7 @@ public class AnimationView extends GLSurfaceView {
 				}
 
 				pointers.endDrag();
+				repaint();
 			} else /* if (second finger wasn't just released and we aren't doing a 2 finger fling) */ { // end of tap
 				tapHandler.onTap(pointers);
 				pointers.endDrag();
@@ -552,7 +859,9 @@ public class AnimationView extends GLSurfaceView {
 	}
 
 	public void setPartHighlighted(int partHighlighted) {
+		if (this.partHighlighted == partHighlighted) return;
 		this.partHighlighted = partHighlighted;
+		repaint();
 	}
 
 	public int getMirrorSelected() {
@@ -561,6 +870,7 @@ public class AnimationView extends GLSurfaceView {
 
 	public void setMirrorSelected(int mirrorSelected) {
 		this.mirrorSelected = mirrorSelected;
+		repaint();
 	}
 
 }
@@ -2,13 +2,20 @@ package org.tavatar.tavimator;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.opengl.Matrix;
 import android.util.Log;
 
 /**
  * adapted from bvhnode.cpp and bvhnode.h in QAvimator
+ *
+ * My keyframes live in an immutable KeyframeTrack. Every edit builds a new
+ * track and publishes it with one volatile write, so the simulation thread and
+ * background jobs can read me while the UI thread edits, without locks on the
+ * read side. Edits themselves are serialized on me. Readers that need several
+ * values to agree should take getTrack() once and work from that
+ *
  * @author tapple
  *
  */
@@ -22,8 +29,11 @@ public class BVHNode {
 	private int mirrorIndex;
 
 	private List<BVHNode> children = new ArrayList<BVHNode>();
-	// I'd use the interface NavigableMap, but it wasn't added until Gingerbread
-	private TreeMap<Integer,FrameData> keyframes = new TreeMap<Integer, FrameData>();
+	// replaced, never modified, by every edit
+	private volatile KeyframeTrack track = KeyframeTrack.EMPTY;
+
+	// bumped after every published edit, in any node
+	private static final AtomicInteger editCount = new AtomicInteger();
 
 	// rotation/position cache on load, will be cleared once the animation is loaded
 	private List<Rotation> rotations = new ArrayList<Rotation>();
@@ -53,7 +63,6 @@ public class BVHNode {
 		setName(name);
 
 		// clean out lists
-		keyframes.clear();
 		children.clear();
 
 		// have clean one-time cache
@@ -105,47 +114,40 @@ public class BVHNode {
 	}
 
 
+	/**
+	 * Answers the keyframe or interpolated data at frame. The result is a
+	 * copy; change keys with setKeyframeRotation and friends
+	 */
 	public FrameData frameData(int frame) {
 		// return empty frame data on end site nodes
 		if(type==BVHNodeType.BVH_END) return new FrameData();
-		// if the keyframe exists, return the data
-		if(isKeyframe(frame)) return keyframes.get(frame);
-
-		// get keyframes before and after desired frame
-		FrameData before=getKeyframeBefore(frame);
-		FrameData after=getNextKeyframe(before.frameNumber());
-
-		int frameBefore=before.frameNumber();
-		int frameAfter=after.frameNumber();
-
-		// if before and after frames are the same, there are no more keyframes left, so
-		// we return the last keyframe data
-		if(frameBefore==frameAfter) return before;
-
-		Rotation rotBefore=before.rotation();
-		Rotation rotAfter=after.rotation();
-		Position posBefore=before.position();
-		Position posAfter=after.position();
-
-		Rotation iRot = new Rotation();
-		Position iPos = new Position();
-
-		iRot.x=interpolate(rotBefore.x,rotAfter.x,frameAfter-frameBefore,frame-frameBefore,before.easeOut(),after.easeIn());
-		iRot.y=interpolate(rotBefore.y,rotAfter.y,frameAfter-frameBefore,frame-frameBefore,before.easeOut(),after.easeIn());
-		iRot.z=interpolate(rotBefore.z,rotAfter.z,frameAfter-frameBefore,frame-frameBefore,before.easeOut(),after.easeIn());
-
-		iPos.x=interpolate(posBefore.x,posAfter.x,frameAfter-frameBefore,frame-frameBefore,before.easeOut(),after.easeIn());
-		iPos.y=interpolate(posBefore.y,posAfter.y,frameAfter-frameBefore,frame-frameBefore,before.easeOut(),after.easeIn());
-		iPos.z=interpolate(posBefore.z,posAfter.z,frameAfter-frameBefore,frame-frameBefore,before.easeOut(),after.easeIn());
-
-		// qDebug(QString("iRot.x %1 frame %2: %3").arg(rotBefore.bodyPart).arg(before.frameNumber()).arg(iRot.x));
-
-		// return interpolated frame data here
-		return new FrameData(frame,iPos,iRot);
+		return track.frameData(frame);
 	}
 
 	public float[] rotateMatrixForFrame(float[] matrix, int frame) {
-		Rotation rot = this.frameData(frame).rotation();
+		return rotateMatrixForFrame(matrix, frame, new float[3]);
+	}
+
+	/**
+	 * Like rotateMatrixForFrame(float[], int), but evaluating into the
+	 * caller's scratch array (3 floats), so it doesn't allocate
+	 */
+	public float[] rotateMatrixForFrame(float[] matrix, int frame, float[] rot) {
+		return rotateMatrixForFrame(matrix, 0, frame, rot);
+	}
+
+	/**
+	 * Like rotateMatrixForFrame(float[], int, float[]), for the matrix
+	 * starting at matrix[offset]
+	 */
+	public float[] rotateMatrixForFrame(float[] matrix, int offset, int frame, float[] rot) {
+		track.evaluate(frame, rot, 0, null, 0);
+		float ikX = 0, ikY = 0, ikZ = 0;
+		if(this.ikOn) {
+			ikX = ikRot.x;
+			ikY = ikRot.y;
+			ikZ = ikRot.z;
+		}
 		for(int i = 0; i < this.numChannels; i++) {
 			/*
 		      float value;
@@ -161,136 +163,187 @@ public class BVHNode {
 		        default: break;
 		      } */
 
-			Rotation ikRot = new Rotation();
-			if(this.ikOn) ikRot = this.ikRot;
-
 			// need to do rotations in the right order
 			switch(this.channelType[i]) {
-			case BVH_XROT: Matrix.rotateM(matrix, 0, rot.x+ikRot.x, 1, 0, 0); break;
-			case BVH_YROT: Matrix.rotateM(matrix, 0, rot.y+ikRot.y, 0, 1, 0); break;
-			case BVH_ZROT: Matrix.rotateM(matrix, 0, rot.z+ikRot.z, 0, 0, 1); break;
+			case BVH_XROT: Matrix.rotateM(matrix, offset, rot[0]+ikX, 1, 0, 0); break;
+			case BVH_YROT: Matrix.rotateM(matrix, offset, rot[1]+ikY, 0, 1, 0); break;
+			case BVH_ZROT: Matrix.rotateM(matrix, offset, rot[2]+ikZ, 0, 0, 1); break;
 			default: break;
 			}
 		}
 		return matrix;
 	}
 
+	/**
+	 * Write the axes of my rotation channels, 0 x, 1 y, 2 z, in the order
+	 * rotateMatrixForFrame applies them, into order[offset..offset+2]. Axes
+	 * I have no channel for come last
+	 */
+	public void getRotationOrder(int[] order, int offset) {
+		int found = 0;
+		// a bit per axis, so I don't allocate
+		int seen = 0;
+		for(int i = 0; i < this.numChannels; i++) {
+			int axis;
+			switch(this.channelType[i]) {
+			case BVH_XROT: axis = 0; break;
+			case BVH_YROT: axis = 1; break;
+			case BVH_ZROT: axis = 2; break;
+			default: continue;
+			}
+			seen |= 1 << axis;
+			order[offset + found++] = axis;
+		}
+		for(int axis = 0; axis < 3; axis++) {
+			if((seen & 1 << axis) == 0) order[offset + found++] = axis;
+		}
+	}
+
+	/**
+	 * Answers my keyframes as of now. The track never changes, so it stays
+	 * consistent however long it's held
+	 */
+	public KeyframeTrack getTrack() {
+		return track;
+	}
+
+	/**
+	 * Replace all my keyframes at once
+	 */
+	public synchronized void setTrack(KeyframeTrack newTrack) {
+		publish(newTrack);
+	}
+
+	/**
+	 * Answers a number that changes after every keyframe edit to any node, so
+	 * caches of evaluated poses can tell they're out of date. It's bumped after
+	 * the edit is visible, so a reader that saw a version sees at least that
+	 * version's tracks
+	 */
+	public static int editVersion() {
+		return editCount.get();
+	}
+
+	private void publish(KeyframeTrack newTrack) {
+		if(newTrack == track) return;
+		track = newTrack;
+		editCount.incrementAndGet();
+	}
+
 	public FrameData keyframeDataByIndex(int index) {
-		// get a list of all keyframe numbers
-		Integer[] keys=keyframeList();
-		// get frame number of keyframe at given index
-		int number=keys[index];
-		// return keyframe data
-		return keyframes.get(number);
+		// return a copy of the keyframe data
+		return track.keyframeData(index);
 	}
 
 	public Integer[] keyframeList() {
-		return keyframes.keySet().toArray(new Integer[keyframes.size()]);
+		KeyframeTrack keys = track;
+		Integer[] list = new Integer[keys.size()];
+		for(int i = 0; i < list.length; i++) list[i] = keys.frame(i);
+		return list;
 	}
 
 
-	public void addKeyframe(int frame,Position pos,Rotation rot) {
+	public synchronized void addKeyframe(int frame,Position pos,Rotation rot) {
 		//  qDebug(QString("addKeyframe(%1)").arg(frame));
-		keyframes.put(frame, new FrameData(frame,pos,rot));
+		publish(track.withKey(frame, pos, rot));
 		//  if(frame==0 && name().equals("hip")) qDebug(QString("BVHNode::addKeyframe(%1,<%2,%3,%4>,<%5,%6,%7>) %8").arg(frame).arg(pos.x).arg(pos.y).arg(pos.z).arg(rot.x).arg(rot.y).arg(rot.z).arg(pos.bodyPart));
 	}
 
-	public void deleteKeyframe(int frame) {
-		keyframes.remove(frame);
+	public synchronized void deleteKeyframe(int frame) {
+		publish(track.withoutKey(frame));
 	}
 
-	public void setKeyframePosition(int frame, Position pos) {
+	public synchronized void setKeyframePosition(int frame, Position pos) {
 		//  qDebug(QString("setKeyframePosition(%1)").arg(frame));
 		if(!isKeyframe(frame)) Log.d(TAG, "setKeyframePosition(" + frame + "): not a keyframe!");
-		else
-		{
-			FrameData key=keyframes.get(frame);
-			key.setPosition(pos);
-		}
+		else publish(track.withPosition(frame, pos));
 	}
 
-	public void setKeyframeRotation(int frame, Rotation rot) {
+	public synchronized void setKeyframeRotation(int frame, Rotation rot) {
 		//  qDebug(QString("setKeyframeRotation(%1)").arg(frame));
 		if(!isKeyframe(frame)) Log.d(TAG, "setKeyframeRotation(" + frame + "): not a keyframe!");
-		else
-		{
-			FrameData key=keyframes.get(frame);
-			key.setRotation(rot);
-		}
+		else publish(track.withRotation(frame, rot));
 	}
 
 	// moves all key frames starting at "frame" one frame further
 	public void insertFrame(int frame) {
-		Integer[] keyframeList = keyframeList();
-		int i = keyframeList.length-1;
-		int keyframe = keyframeList[i];
-		while (keyframe >= frame) {
-			FrameData data = keyframes.remove(keyframe);
-			data.setFrameNumber(keyframe+1);
-			keyframes.put(keyframe+1, data);
-		}
+		insertFrames(frame, 1);
+	}
+
+	// moves all key frames starting at "frame" count frames further, in time
+	// independent of the number of keys
+	public synchronized void insertFrames(int frame, int count) {
+		publish(track.shifted(frame, count));
 	}
 
 	// removes frame at position and moves all further frames one down
 	// delete a frame and move all keys back one frame
 	public void deleteFrame(int frame) {
 		//  qDebug("BVHNode::deleteFrame(%d)",frame);
-		// if this is a keyframe, remove it
-		if(isKeyframe(frame)) deleteKeyframe(frame);
-		for (int frameToMove:(Integer[])keyframes.tailMap(frame).keySet().toArray()) {
-			FrameData data = keyframes.remove(frameToMove);
-			data.setFrameNumber(frameToMove-1);
-			keyframes.put(frameToMove-1, data);
-		}
+		deleteFrames(frame, 1);
+	}
+
+	// removes the keys on count frames from "frame" on and moves all further
+	// keys count frames down, in time independent of the number of keys
+	public synchronized void deleteFrames(int frame, int count) {
+		publish(track.withFramesDeleted(frame, count));
 	}
 
 	public boolean isKeyframe(int frame) {
-		return keyframes.containsKey(frame);
+		return track.isKeyframe(frame);
 	}
 
 	public int numKeyframes() {
-		return keyframes.size();
+		return track.size();
 	}
 
 
 	public FrameData getKeyframeBefore(int frame) {
+		KeyframeTrack keys = track;
 		if(frame==0) {
 			// should never happen
 			Log.d(TAG, "BVHNode::getKeyframeBefore(int frame): frame==0!");
-			return keyframes.get(0);
 		}
-		return frameData(getKeyframeNumberBefore(frame));
+		int index = keys.indexBefore(frame);
+		// with no key before, the first one holds
+		if(index < 0) index = 0;
+		return keys.keyframeData(index);
 	}
 
 	public FrameData getNextKeyframe(int frame) {
-		int keyframe = getKeyframeNumberAfter(frame);
+		KeyframeTrack keys = track;
+		int index = keys.indexAfter(frame);
 		// if we are asked for a keyframe past the last one, return the last one
-		if (keyframe < 0) keyframe = keyframes.lastKey();
-		return frameData(keyframe);
+		if (index < 0) index = keys.size() - 1;
+		return keys.keyframeData(index);
 	}
 
 
-	public void setEaseIn(int frame,boolean state) {
-		// ####### What if frame is not a keyframe? ########
-		keyframes.get(frame).setEaseIn(state);
+	public synchronized void setEaseIn(int frame,boolean state) {
+		if(!isKeyframe(frame)) Log.d(TAG, "setEaseIn(" + frame + "): not a keyframe!");
+		else publish(track.withEase(frame, KeyframeTrack.EASE_IN, state));
 	}
 
-	public void setEaseOut(int frame,boolean state) {
-		// ####### What if frame is not a keyframe? ########
-		keyframes.get(frame).setEaseOut(state);
+	public synchronized void setEaseOut(int frame,boolean state) {
+		if(!isKeyframe(frame)) Log.d(TAG, "setEaseOut(" + frame + "): not a keyframe!");
+		else publish(track.withEase(frame, KeyframeTrack.EASE_OUT, state));
 	}
 
 	public boolean easeIn(int frame) {
-		if(keyframes.containsKey(frame))
-			return keyframes.get(frame).easeIn();
+		KeyframeTrack keys = track;
+		int index = keys.indexOf(frame);
+		if(index >= 0)
+			return keys.easeIn(index);
 
 		Log.d(TAG, "BVHNode::easeIn(): asked on non-keyframe!");
 		return false;
 	}
 
 	public boolean easeOut(int frame) {
-		if(keyframes.containsKey(frame))
-			return keyframes.get(frame).easeOut();
+		KeyframeTrack keys = track;
+		int index = keys.indexOf(frame);
+		if(index >= 0)
+			return keys.easeOut(index);
 
 		Log.d(TAG, "BVHNode::easeOut(): asked on non-keyframe!");
 		return false;
@@ -347,7 +400,11 @@ public class BVHNode {
 		return true;
 	}
 
-	public void optimize() {
+	// works on the track as of the call and publishes the result once, so
+	// nobody sees a half optimized node
+	public synchronized void optimize() {
+		KeyframeTrack optimized = track;
+
 		// PASS 1 - remove identical keyframes
 
 		// get a list of all keyframe numbers
@@ -369,12 +426,14 @@ public class BVHNode {
 
 		// delete keyframes on the delete list
 		for(int keyToDelete:keysToDelete) {
-			deleteKeyframe(keyToDelete);
+			optimized = optimized.withoutKey(keyToDelete);
 		}
 
 		// 	PASS 2 - remove keyframes that are superfluous due to linear interpolation
 
-		keys = keyframeList();
+		KeyframeTrack pass1 = optimized;
+		keys = new Integer[pass1.size()];
+		for(int i = 0; i < keys.length; i++) keys[i] = pass1.frame(i);
 		Rotation oldRDifference = new Rotation();
 		Position oldPDifference = new Position();
 
@@ -383,13 +442,19 @@ public class BVHNode {
 		// never be deleted, though
 		int itBefore = 0;
 
-		if(itBefore==keys.length) return;
+		if(itBefore==keys.length) {
+			publish(optimized);
+			return;
+		}
 
 		// make "current" frame one frame after "before" frame
 		int itCurrent=itBefore;
 		itCurrent++;
 
-		if(itCurrent==keys.length) return;
+		if(itCurrent==keys.length) {
+			publish(optimized);
+			return;
+		}
 
 		// defines how much difference from anticipated change is acceptable for optimizing
 		float tolerance=0.01f;
@@ -398,8 +463,8 @@ public class BVHNode {
 		while(itCurrent < keys.length) {
 			int frameCurrent = keys[itCurrent];
 			int frameBefore  = keys[itBefore ];
-			FrameData dataCurrent = keyframes.get(frameCurrent);
-			FrameData dataBefore  = keyframes.get(frameBefore );
+			FrameData dataCurrent = pass1.keyframeData(itCurrent);
+			FrameData dataBefore  = pass1.keyframeData(itBefore );
 
 			int distance=frameCurrent-frameBefore;
 
@@ -416,7 +481,7 @@ public class BVHNode {
 						Math.abs(pDifference.z-oldPDifference.z)<tolerance)
 				{
 					// never delete the key in the first frame
-					if(frameBefore!=0) keyframes.remove(frameBefore);
+					if(frameBefore!=0) optimized = optimized.withoutKey(frameBefore);
 				}
 
 				oldPDifference=pDifference;
@@ -433,7 +498,7 @@ public class BVHNode {
 						Math.abs(rDifference.z-oldRDifference.z)<tolerance)
 				{
 					// never delete the key in the first frame
-					if(frameBefore!=0) keyframes.remove(frameBefore);
+					if(frameBefore!=0) optimized = optimized.withoutKey(frameBefore);
 				}
 
 				oldRDifference=rDifference;
@@ -442,16 +507,18 @@ public class BVHNode {
 			itBefore=itCurrent;
 			itCurrent++;
 		} // while
+
+		publish(optimized);
 	}
 
 
 	public void dumpKeyframes() {
-		Integer[] keys=keyframeList();
-		for(int index=0;index< keyframes.size();index++) {
-			Rotation rot=frameData(keys[index]).rotation();
-			Position pos=frameData(keys[index]).position();
+		KeyframeTrack keys=track;
+		for(int index=0;index< keys.size();index++) {
+			Rotation rot=keys.rotation(index);
+			Position pos=keys.position(index);
 
-			Log.d(TAG, "" + name() + ": " + keys[index] + 
+			Log.d(TAG, "" + name() + ": " + keys.frame(index) + 
 					" - Pos <" + pos.x + "," + pos.y + "," + pos.z + 
 					"> Rot: <" + rot.x + "," + rot.y + "," + rot.z + ">");
 		}
@@ -475,16 +542,16 @@ public class BVHNode {
 
 	// mirrors the rotations in a node and swaps the tracks' keyframes if needed
 	public void mirror() {
-		mirrorKeys();
-
 		BVHNode node2=getMirror();
 
 		// if a mirror node is given, swap the keyframes, too
 		if(node2 != null) {
-			node2.mirrorKeys();
-			TreeMap<Integer,FrameData> temp=keyframes;
-			keyframes=node2.keyframes;
-			node2.keyframes=temp;
+			KeyframeTrack mine=mirroredKeys();
+			KeyframeTrack theirs=node2.mirroredKeys();
+			setTrack(theirs);
+			node2.setTrack(mine);
+		} else {
+			setTrack(mirroredKeys());
 		}
 	}
 
@@ -493,75 +560,8 @@ public class BVHNode {
 		m_name=newName;
 	}
 
-	private float interpolate(float from,float to,int steps,int pos,boolean easeOut,boolean easeIn) {
-		boolean ease=false;
-
-		// do not start any calculation if there's nothing to do
-		if(from==to) return from;
-
-		if(pos<=(steps/2) && easeOut) ease=true;
-		if(pos>(steps/2) && easeIn) ease=true;
-
-		// sine interpolation for ease in / out
-		if(ease)
-		{
-			float distance=to-from;
-			float step=3.1415f/(steps);
-
-			return from+(0.5f-(float)Math.cos(step*(float) pos)/2)*distance;
-		}
-		// classic linear interpolation
-		else
-		{
-			float distance=to-from;
-			float increment=distance/(float) steps;
-			return from+increment*(float) pos;
-		}
-	}
-
-
-	private int getKeyframeNumberBefore(int frame) {
-		if(frame==0)
-		{
-			// should never happen
-			Log.d(TAG, "BVHNode::getKeyframeNumberBefore(int frame): frame==0!");
-			return 0;
-		}
-
-		// find previous key
-		while(--frame > 0 && !isKeyframe(frame)) {};
-
-		return frame;
-	}
-
-	private int getKeyframeNumberAfter(int frame) {
-		// get a list of all keyframe numbers
-		Integer[] keys=keyframeList();
-
-		// past the end? return -1
-		if(frame>=(int) keys[keyframes.size()-1])
-			return -1;
-
-		// find next key
-		while(++frame != 0 && !isKeyframe(frame)) {};
-
-		return frame;
-	}
-
-
-	// mirrors the keyframes inside of this node
-	private void mirrorKeys() {
-		for(int frame:keyframeList()) {
-			if(type==BVHNodeType.BVH_POS) {
-				Position pos=frameData(frame).position();
-				pos.x=-pos.x;
-				setKeyframePosition(frame,pos);
-			} else {
-				Rotation rot=frameData(frame).rotation();
-				rot.y=-rot.y;
-				rot.z=-rot.z;
-				setKeyframeRotation(frame,rot);
-			}
-		}
+	// answers the keyframes inside of this node, mirrored
+	private KeyframeTrack mirroredKeys() {
+		return track.mirrored(type==BVHNodeType.BVH_POS);
 	}
 }
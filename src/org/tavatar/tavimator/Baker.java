@@ -0,0 +1,101 @@
+package org.tavatar.tavimator;
+
+import java.util.concurrent.ExecutionException;
+
+import android.util.Log;
+
+/**
+ * I turn a PoseSource's output into keyframe tracks. The source is evaluated
+ * on every frame of a range into one bulk buffer, in parallel chunks of
+ * frames on Workers if it is stateless, or in order if not. Then each
+ * joint's track is built straight from the buffer, with its Euler angles
+ * unwrapped so they don't jump at 180 degrees, and reduced by curve fitting
+ * (see KeyframeTrack.reduced) to the keys needed to stay within tolerance.
+ * The joints are built in parallel too
+ *
+ * @author tapple
+ */
+public class Baker {
+	private static final String TAG = "Baker";
+
+	/** how far, in degrees, a reduced rotation may stray from the source */
+	public static final float DEFAULT_ROTATION_TOLERANCE = 0.5f;
+	/** how far a reduced position may stray from the source */
+	public static final float DEFAULT_POSITION_TOLERANCE = 0.01f;
+
+	/** fewest frames evaluated per parallel chunk */
+	private static final int MIN_FRAMES = 16;
+	/** fewest joints built per parallel chunk */
+	private static final int MIN_JOINTS = 2;
+
+	private Baker() {
+	}
+
+	/**
+	 * Answers, for each of the source's joints, its pose on every frame from
+	 * up to to, reduced to within the tolerances
+	 */
+	public static KeyframeTrack[] bake(final PoseSource source, final int from, final int to,
+			final float rotationTolerance, final float positionTolerance)
+			throws InterruptedException, ExecutionException {
+		long start = System.nanoTime();
+		final int joints = source.getJointCount();
+		final int stride = joints * 3;
+		int length = Math.max(0, to - from);
+		// frame after frame, each with every joint's three channels
+		final float[] rotations = new float[length * stride];
+		final float[] positions = new float[length * stride];
+
+		if (source.isStateless()) {
+			Workers.forEachChunk(from, to, Workers.chunkSize(length, MIN_FRAMES), new Workers.Chunk() {
+				@Override public void run(int chunkFrom, int chunkTo) {
+					for (int frame = chunkFrom; frame < chunkTo; frame++) {
+						source.evaluate(frame, rotations, positions, (frame - from) * stride);
+					}
+				}
+			});
+		} else {
+			for (int frame = from; frame < to; frame++) {
+				source.evaluate(frame, rotations, positions, (frame - from) * stride);
+			}
+		}
+		long evaluated = System.nanoTime();
+
+		final KeyframeTrack[] tracks = new KeyframeTrack[joints];
+		Workers.forEachChunk(0, joints, Workers.chunkSize(joints, MIN_JOINTS), new Workers.Chunk() {
+			@Override public void run(int chunkFrom, int chunkTo) {
+				for (int j = chunkFrom; j < chunkTo; j++) {
+					unwrap(rotations, j * 3, stride);
+					KeyframeTrack.Builder builder = new KeyframeTrack.Builder(to - from);
+					for (int frame = from; frame < to; frame++) {
+						int offset = (frame - from) * stride + j * 3;
+						builder.add(frame, rotations, offset, positions, offset, 0);
+					}
+					tracks[j] = builder.build().reduced(rotationTolerance, positionTolerance);
+				}
+			}
+		});
+
+		int keys = 0;
+		for (KeyframeTrack track : tracks) keys += track.size();
+		Log.d(TAG, "baked " + joints + " joints, " + length + " frames into " + keys + " keys: evaluated in "
+				+ (evaluated - start) / 1000 + "us, built in " + (System.nanoTime() - evaluated) / 1000 + "us");
+		return tracks;
+	}
+
+	/**
+	 * Shift each of a joint's angles by whole turns, frame to frame, so it
+	 * never jumps by more than half a turn
+	 */
+	private static void unwrap(float[] rotations, int offset, int stride) {
+		for (int i = offset + stride; i < rotations.length; i += stride) {
+			for (int axis = 0; axis < 3; axis++) {
+				float previous = rotations[i - stride + axis];
+				float angle = rotations[i + axis];
+				while (angle - previous > 180) angle -= 360;
+				while (angle - previous < -180) angle += 360;
+				rotations[i + axis] = angle;
+			}
+		}
+	}
+}
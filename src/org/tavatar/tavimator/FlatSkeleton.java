@@ -0,0 +1,180 @@
+package org.tavatar.tavimator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.opengl.Matrix;
+
+/**
+ * I am a figure's hierarchy flattened into parallel arrays, in the depth
+ * first order AnimationRenderer draws and numbers the parts, so a pose is
+ * evaluated with one loop instead of a recursive walk. Every part's parent
+ * comes before it.
+ *
+ * I only read keyframe tracks and never touch the nodes' cachedTransform, so
+ * any number of threads can evaluate poses from me at once, each with its own
+ * Scratch
+ *
+ * @author tapple
+ */
+public class FlatSkeleton {
+	private static final String TAG = "FlatSkeleton";
+
+	/**
+	 * Per-thread temporaries for evaluate
+	 */
+	public static class Scratch {
+		final float[] rotation = new float[3];
+		final float[] position = new float[3];
+		final float[] rotationMatrix = new float[16];
+		final float[] product = new float[16];
+
+		/**
+		 * The figure's root transform (scale and position) as of the last
+		 * evaluate, which is every root part's parent
+		 */
+		public final float[] model = new float[16];
+	}
+
+	public final Animation animation;
+	public final BVHNode joints;
+
+	public final int count;
+	public final BVHNode[] nodes;
+	/** index of each part's parent, or -1 for the root */
+	public final int[] parents;
+	public final int[] pickIndices;
+	/** the limb each part turns with under IK (see IKSolver.limbOf), or null */
+	public final Animation.IKPartType[] limbs;
+	// joint offset per part, 3 floats each
+	private final float[] offsets;
+
+	// build state
+	private int pickIndex;
+
+	/**
+	 * @param joints the figure's joint tree (see AnimationView.getJoints),
+	 * which supplies the bone offsets
+	 * @param index the animation's index in the view, for numbering picks
+	 */
+	public FlatSkeleton(Animation animation, BVHNode joints, int index) {
+		this.animation = animation;
+		this.joints = joints;
+
+		List<BVHNode> nodeList = new ArrayList<BVHNode>();
+		List<int[]> partList = new ArrayList<int[]>();
+		List<float[]> offsetList = new ArrayList<float[]>();
+		pickIndex = index * AnimationRenderer.ANIMATION_INCREMENT;
+		flatten(animation.getMotion(), joints, -1, nodeList, partList, offsetList);
+
+		count = nodeList.size();
+		nodes = nodeList.toArray(new BVHNode[count]);
+		parents = new int[count];
+		pickIndices = new int[count];
+		limbs = new Animation.IKPartType[count];
+		offsets = new float[count * 3];
+		for (int i = 0; i < count; i++) {
+			parents[i] = partList.get(i)[0];
+			pickIndices[i] = partList.get(i)[1];
+			limbs[i] = IKSolver.limbOf(nodes[i].name());
+			System.arraycopy(offsetList.get(i), 0, offsets, i * 3, 3);
+		}
+	}
+
+	// the same walk SimulationThread used to do recursively
+	private void flatten(BVHNode motion, BVHNode joints, int parent,
+			List<BVHNode> nodeList, List<int[]> partList, List<float[]> offsetList) {
+		if(motion == null || joints == null) return;
+		pickIndex++;
+		if(motion.type==BVHNodeType.BVH_NO_SL) {
+			pickIndex++;
+			motion = motion.child(0);
+		}
+		int self = nodeList.size();
+		nodeList.add(motion);
+		partList.add(new int[] {parent, pickIndex});
+		offsetList.add(joints.offset);
+
+		for(int i = 0; i < motion.numChildren(); i++) {
+			flatten(motion.child(i), joints.child(i), self, nodeList, partList, offsetList);
+		}
+	}
+
+	/**
+	 * Answers the index of the given node, or -1
+	 */
+	public int indexOf(BVHNode node) {
+		for (int i = 0; i < count; i++) {
+			if (nodes[i] == node) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Answers the part's offset from its parent on the axis, 0 x, 1 y, 2 z
+	 */
+	public float offset(int part, int axis) {
+		return offsets[part * 3 + axis];
+	}
+
+	/**
+	 * Write the global transform of every part at frame into transforms, 16
+	 * floats per part starting at offset. I don't allocate
+	 */
+	public void evaluate(int frame, float[] transforms, int offset, Scratch scratch) {
+		float[] model = scratch.model;
+		Matrix.setIdentityM(model, 0);
+
+		// scale drawing matrix to avatar scale specified
+		float scale = animation.getAvatarScale();
+		Matrix.scaleM(model, 0, scale, scale, scale);
+
+		animation.getPosition(frame, scratch.position, 0);
+		Matrix.translateM(model, 0, scratch.position[0], scratch.position[1], scratch.position[2]);
+
+		// visual compensation
+		Matrix.translateM(model, 0, 0, 2, 0);
+
+		for (int i = 0; i < count; i++) {
+			int part = offset + i * 16;
+			int parent = parents[i];
+			if (parent < 0) System.arraycopy(model, 0, transforms, part, 16);
+			else System.arraycopy(transforms, offset + parent * 16, transforms, part, 16);
+			Matrix.translateM(transforms, part, offsets[i * 3], offsets[i * 3 + 1], offsets[i * 3 + 2]);
+			nodes[i].rotateMatrixForFrame(transforms, part, frame, scratch.rotation);
+		}
+	}
+
+	/**
+	 * Like evaluate, but posed by a layer stack over my animation instead of
+	 * its keys alone. Parts the stack has no joint for keep their own keys. I
+	 * don't allocate, once the stack has seen me
+	 */
+	public void evaluate(LayerStack stack, int frame, float[] transforms, int offset, Scratch scratch) {
+		stack.evaluate(frame);
+		int[] joints = stack.partJoints(this);
+
+		float[] model = scratch.model;
+		Matrix.setIdentityM(model, 0);
+		float scale = animation.getAvatarScale();
+		Matrix.scaleM(model, 0, scale, scale, scale);
+		// the stack's first joint is the position
+		Matrix.translateM(model, 0, stack.positions[0], stack.positions[1], stack.positions[2]);
+		Matrix.translateM(model, 0, 0, 2, 0);
+
+		for (int i = 0; i < count; i++) {
+			int part = offset + i * 16;
+			int parent = parents[i];
+			if (parent < 0) System.arraycopy(model, 0, transforms, part, 16);
+			else System.arraycopy(transforms, offset + parent * 16, transforms, part, 16);
+			Matrix.translateM(transforms, part, offsets[i * 3], offsets[i * 3 + 1], offsets[i * 3 + 2]);
+			if (joints[i] < 0) {
+				nodes[i].rotateMatrixForFrame(transforms, part, frame, scratch.rotation);
+				continue;
+			}
+			Quaternion.toMatrix(stack.rotations, joints[i] * 4, scratch.rotationMatrix, 0);
+			Matrix.multiplyMM(scratch.product, 0, transforms, part, scratch.rotationMatrix, 0);
+			System.arraycopy(scratch.product, 0, transforms, part, 16);
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package org.tavatar.tavimator;
+
+import java.util.concurrent.ExecutionException;
+
+import android.util.Log;
+
+/**
+ * I keep feet from sliding while they stand on the ground, as they tend to
+ * in motion capture. First I find where each foot is on every frame, by
+ * forward kinematics. A foot touches the ground on frames where it is near
+ * its lowest height and nearly still, and a run of such frames is a
+ * contact. Each contact pins the foot to one spot: its average place, at
+ * its lowest height. Then each leg is solved with an IKSolver, on every
+ * frame where its foot strays from its pin.
+ *
+ * Both passes over the frames run in parallel chunks on Workers, each chunk
+ * with a solver of its own. My legs then pose as solved, as a PoseSource, and
+ * bake turns that into keys for Animation.replaceKeys. All of it may run off
+ * the UI thread
+ *
+ * @author tapple
+ */
+public class FootLockSolver implements PoseSource {
+	private static final String TAG = "FootLockSolver";
+
+	/** how far above its lowest a foot may be and still touch the ground */
+	public static final float DEFAULT_HEIGHT_TOLERANCE = 1.0f;
+	/** how far a foot touching the ground may move from frame to frame */
+	public static final float DEFAULT_SPEED_TOLERANCE = 0.3f;
+
+	/**
+	 * how far, in degrees, the baked legs may stray from the solution. Legs
+	 * are long, so Baker's default half degree at the hip would slide the
+	 * foot by a third of a unit
+	 */
+	public static final float ROTATION_TOLERANCE = 0.1f;
+
+	/** fewest frames a contact lasts */
+	private static final int MIN_CONTACT = 3;
+	/** how far a foot must stray from its pin to be corrected */
+	private static final float MIN_CORRECTION = 0.01f;
+	/** fewest frames evaluated or solved per parallel chunk */
+	private static final int MIN_FRAMES = 16;
+
+	private static final Animation.IKPartType[] FEET = {
+		Animation.IKPartType.IK_LFOOT,
+		Animation.IKPartType.IK_RFOOT,
+	};
+
+	private final FlatSkeleton skeleton;
+	private final int frames;
+	// both legs' chains, the left first
+	private final BVHNode[] joints;
+	// where each joint of FEET[i] starts in joints
+	private final int[] firstJoints = new int[FEET.length];
+
+	// per foot, then frame: where the foot is, x y z
+	private final float[] feet;
+	// per foot, then frame: where the foot is pinned, x y z, if in contact
+	private final float[] pins;
+	private final boolean[] contacts;
+	private final boolean[] corrected;
+	// per frame, every joint's rotation, x y z
+	private final float[] rotations;
+
+	private int contactCount;
+	private int correctedFrames;
+	private int firstCorrected = -1;
+	private int lastCorrected = -1;
+
+	/**
+	 * Lock the feet of the skeleton's animation, over all its frames
+	 */
+	public FootLockSolver(FlatSkeleton skeleton) {
+		this.skeleton = skeleton;
+		frames = skeleton.animation.getNumberOfFrames();
+
+		IKSolver solver = new IKSolver(skeleton);
+		int count = 0;
+		for (int foot = 0; foot < FEET.length; foot++) count += solver.getChainLength(FEET[foot]);
+		joints = new BVHNode[count];
+		count = 0;
+		for (int foot = 0; foot < FEET.length; foot++) {
+			firstJoints[foot] = count;
+			for (int k = 0; k < solver.getChainLength(FEET[foot]); k++) {
+				joints[count++] = solver.getChainNode(FEET[foot], k);
+			}
+		}
+
+		feet = new float[FEET.length * frames * 3];
+		pins = new float[FEET.length * frames * 3];
+		contacts = new boolean[FEET.length * frames];
+		corrected = new boolean[FEET.length * frames];
+		rotations = new float[frames * joints.length * 3];
+	}
+
+	/**
+	 * Find the contacts, then solve the legs to hold them
+	 *
+	 * @return how many frames had a foot corrected
+	 */
+	public int solve(float heightTolerance, float speedTolerance) throws InterruptedException, ExecutionException {
+		long start = System.nanoTime();
+		Workers.forEachChunk(0, frames, Workers.chunkSize(frames, MIN_FRAMES), new Workers.Chunk() {
+			@Override public void run(int from, int to) {
+				IKSolver solver = new IKSolver(skeleton);
+				for (int frame = from; frame < to; frame++) {
+					for (int foot = 0; foot < FEET.length; foot++) {
+						solver.getEnd(FEET[foot], frame, feet, (foot * frames + frame) * 3);
+					}
+				}
+			}
+		});
+		long evaluated = System.nanoTime();
+
+		contactCount = 0;
+		for (int foot = 0; foot < FEET.length; foot++) findContacts(foot, heightTolerance, speedTolerance);
+		long found = System.nanoTime();
+
+		final int stride = joints.length * 3;
+		Workers.forEachChunk(0, frames, Workers.chunkSize(frames, MIN_FRAMES), new Workers.Chunk() {
+			@Override public void run(int from, int to) {
+				IKSolver solver = new IKSolver(skeleton);
+				float[] result = new float[IKSolver.MAX_CHAIN * 3];
+				for (int frame = from; frame < to; frame++) {
+					for (int j = 0; j < joints.length; j++) {
+						joints[j].getTrack().evaluate(frame, rotations, frame * stride + j * 3, null, 0);
+					}
+					for (int foot = 0; foot < FEET.length; foot++) {
+						int i = foot * frames + frame;
+						if (!contacts[i] || distance(feet, pins, i * 3) < MIN_CORRECTION) continue;
+						corrected[i] = true;
+						// the legs are separate chains, so each solves from the keys
+						solver.solve(FEET[foot], frame, pins, i * 3, result);
+						int length = solver.getChainLength(FEET[foot]);
+						System.arraycopy(result, 0, rotations, frame * stride + firstJoints[foot] * 3, length * 3);
+					}
+				}
+			}
+		});
+
+		correctedFrames = 0;
+		firstCorrected = -1;
+		lastCorrected = -1;
+		for (int frame = 0; frame < frames; frame++) {
+			boolean any = false;
+			for (int foot = 0; foot < FEET.length; foot++) any |= corrected[foot * frames + frame];
+			if (!any) continue;
+			correctedFrames++;
+			if (firstCorrected < 0) firstCorrected = frame;
+			lastCorrected = frame;
+		}
+		Log.d(TAG, "locked " + contactCount + " contacts, correcting " + correctedFrames + " of " + frames
+				+ " frames: evaluated in " + (evaluated - start) / 1000 + "us, found in " + (found - evaluated) / 1000
+				+ "us, solved in " + (System.nanoTime() - found) / 1000 + "us");
+		return correctedFrames;
+	}
+
+	/**
+	 * Mark the foot's contacts, and pin each one
+	 */
+	private void findContacts(int foot, float heightTolerance, float speedTolerance) {
+		int base = foot * frames;
+		float lowest = Float.POSITIVE_INFINITY;
+		for (int frame = 0; frame < frames; frame++) lowest = Math.min(lowest, feet[(base + frame) * 3 + 1]);
+
+		for (int frame = 0; frame < frames; frame++) {
+			int i = base + frame;
+			// still if it moves little to both neighboring frames
+			float speed = 0;
+			if (frame > 0) speed = Math.max(speed, distance(feet, feet, i * 3, (i - 1) * 3));
+			if (frame < frames - 1) speed = Math.max(speed, distance(feet, feet, i * 3, (i + 1) * 3));
+			contacts[i] = feet[i * 3 + 1] - lowest <= heightTolerance && speed <= speedTolerance;
+		}
+
+		int frame = 0;
+		while (frame < frames) {
+			if (!contacts[base + frame]) {
+				frame++;
+				continue;
+			}
+			int end = frame;
+			while (end < frames && contacts[base + end]) end++;
+			if (end - frame < MIN_CONTACT) {
+				for (int f = frame; f < end; f++) contacts[base + f] = false;
+			} else {
+				pin(base, frame, end);
+				contactCount++;
+			}
+			frame = end;
+		}
+	}
+
+	/**
+	 * Pin the contact from up to to where the foot is on average, at its
+	 * lowest
+	 */
+	private void pin(int base, int from, int to) {
+		float x = 0, y = Float.POSITIVE_INFINITY, z = 0;
+		for (int frame = from; frame < to; frame++) {
+			int i = (base + frame) * 3;
+			x += feet[i];
+			y = Math.min(y, feet[i + 1]);
+			z += feet[i + 2];
+		}
+		x /= to - from;
+		z /= to - from;
+		for (int frame = from; frame < to; frame++) {
+			int i = (base + frame) * 3;
+			pins[i] = x;
+			pins[i + 1] = y;
+			pins[i + 2] = z;
+		}
+	}
+
+	private static float distance(float[] a, float[] b, int offset) {
+		return distance(a, b, offset, offset);
+	}
+
+	private static float distance(float[] a, float[] b, int aOffset, int bOffset) {
+		float dx = a[aOffset] - b[bOffset];
+		float dy = a[aOffset + 1] - b[bOffset + 1];
+		float dz = a[aOffset + 2] - b[bOffset + 2];
+		return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Answers the legs' tracks from the first to the last frame the last
+	 * solve corrected, baked within ROTATION_TOLERANCE (see Baker), in the
+	 * order of getJoint
+	 */
+	public KeyframeTrack[] bake() throws InterruptedException, ExecutionException {
+		return Baker.bake(this, firstCorrected, lastCorrected + 1, ROTATION_TOLERANCE, Baker.DEFAULT_POSITION_TOLERANCE);
+	}
+
+	/**
+	 * Answers how many contacts the last solve found, on both feet
+	 */
+	public int getContactCount() {
+		return contactCount;
+	}
+
+	/**
+	 * Answers how many frames the last solve corrected a foot on
+	 */
+	public int getCorrectedFrames() {
+		return correctedFrames;
+	}
+
+	/**
+	 * Answers the first frame the last solve corrected, or -1
+	 */
+	public int getFirstCorrected() {
+		return firstCorrected;
+	}
+
+	/**
+	 * Answers the last frame the last solve corrected, or -1
+	 */
+	public int getLastCorrected() {
+		return lastCorrected;
+	}
+
+	/**
+	 * Answers whether the foot, 0 left or 1 right, touched the ground at frame
+	 */
+	public boolean isContact(int foot, int frame) {
+		return contacts[foot * frames + frame];
+	}
+
+	@Override
+	public int getJointCount() {
+		return joints.length;
+	}
+
+	@Override
+	public BVHNode getJoint(int j) {
+		return joints[j];
+	}
+
+	@Override
+	public void evaluate(int frame, float[] rotations, float[] positions, int offset) {
+		int stride = joints.length * 3;
+		System.arraycopy(this.rotations, frame * stride, rotations, offset, stride);
+		for (int j = 0; j < joints.length; j++) {
+			joints[j].getTrack().evaluate(frame, null, 0, positions, offset + j * 3);
+		}
+	}
+
+	@Override
+	public boolean isStateless() {
+		return true;
+	}
+}
@@ -0,0 +1,232 @@
+package org.tavatar.tavimator;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+/**
+ * I record where the renderer's frame time goes: CPU time per stage, draw
+ * calls, uniform uploads and allocations. The simulation thread's stages
+ * arrive with each PoseSnapshot. I keep the last
+ * HISTORY frames for dumping to a CSV file, and summarize recent frames for
+ * the on-screen overlay.
+ *
+ * Recording is meant to be left in place: while I'm disabled every call
+ * returns immediately. All calls but setEnabled and writeCsv must be made
+ * on the GL thread
+ *
+ * @author tapple
+ */
+public class FrameStats {
+	private static final String TAG = "FrameStats";
+
+	public enum Stage {
+		GYRO,
+		POSE,
+		TRANSFORMS,
+		DRAW,
+		PICK
+	}
+
+	private static final int STAGES = Stage.values().length;
+
+	/** frames kept for dumping */
+	private static final int HISTORY = 600;
+
+	/** how often the overlay summary is refreshed, in milliseconds */
+	private static final long OVERLAY_INTERVAL = 500;
+
+	// history columns: frame time, stage times, draw calls, uniform uploads, allocations
+	private static final int COL_FRAME = 0;
+	private static final int COL_STAGES = 1;
+	private static final int COL_DRAWS = COL_STAGES + STAGES;
+	private static final int COL_UNIFORMS = COL_DRAWS + 1;
+	private static final int COL_ALLOCS = COL_UNIFORMS + 1;
+	private static final int COLUMNS = COL_ALLOCS + 1;
+
+	/** set from any thread, applied on the GL thread at the next frame */
+	private volatile boolean requestedEnabled;
+	private boolean enabled;
+
+	// the frame in progress. Stages timed between frames (such as picks
+	// queued from the UI thread) are counted in the next frame
+	private long frameStart;
+	private Stage stage;
+	private long stageStart;
+	private final long[] current = new long[COLUMNS];
+	private int allocsAtFrameStart;
+
+	// ring buffer of finished frames, guarded by this
+	private final long[] history = new long[HISTORY * COLUMNS];
+	private int historyNext;
+	private int historyCount;
+
+	// totals since the last overlay summary
+	private final long[] window = new long[COLUMNS];
+	private int windowFrames;
+	private long windowStart;
+
+	public boolean isEnabled() {
+		return requestedEnabled;
+	}
+
+	/**
+	 * Start or stop recording, as of the next frame. Callable from any thread
+	 */
+	public void setEnabled(boolean enabled) {
+		requestedEnabled = enabled;
+	}
+
+	private void applyEnabled(boolean enabled) {
+		if (enabled) {
+			Debug.startAllocCounting();
+			synchronized (this) {
+				historyCount = 0;
+				historyNext = 0;
+			}
+			windowFrames = 0;
+			windowStart = SystemClock.uptimeMillis();
+			clear(window);
+			clear(current);
+		} else {
+			Debug.stopAllocCounting();
+		}
+		stage = null;
+		this.enabled = enabled;
+	}
+
+	public void beginFrame() {
+		if (requestedEnabled != enabled) applyEnabled(requestedEnabled);
+		if (!enabled) return;
+		frameStart = System.nanoTime();
+		allocsAtFrameStart = Debug.getThreadAllocCount();
+	}
+
+	public void beginStage(Stage stage) {
+		if (!enabled) return;
+		long now = System.nanoTime();
+		if (this.stage != null) current[COL_STAGES + this.stage.ordinal()] += now - stageStart;
+		this.stage = stage;
+		stageStart = now;
+	}
+
+	public void endStage() {
+		if (!enabled || stage == null) return;
+		current[COL_STAGES + stage.ordinal()] += System.nanoTime() - stageStart;
+		stage = null;
+	}
+
+	/**
+	 * Count the simulation thread's work on a snapshot in the current frame
+	 */
+	public void addSimulation(PoseSnapshot pose) {
+		if (!enabled) return;
+		for (int i = 0; i < STAGES; i++) current[COL_STAGES + i] += pose.stageNanos[i];
+		current[COL_ALLOCS] += pose.allocations;
+	}
+
+	public void countDrawCall() {
+		if (enabled) current[COL_DRAWS]++;
+	}
+
+	public void countUniforms(int count) {
+		if (enabled) current[COL_UNIFORMS] += count;
+	}
+
+	/**
+	 * Finish the frame begun with beginFrame
+	 *
+	 * @return true if the overlay summary is due for a refresh
+	 */
+	public boolean endFrame() {
+		if (!enabled) return false;
+		endStage();
+		current[COL_FRAME] = System.nanoTime() - frameStart;
+		current[COL_ALLOCS] += Debug.getThreadAllocCount() - allocsAtFrameStart;
+
+		synchronized (this) {
+			System.arraycopy(current, 0, history, historyNext * COLUMNS, COLUMNS);
+			historyNext = (historyNext + 1) % HISTORY;
+			if (historyCount < HISTORY) historyCount++;
+		}
+		for (int i = 0; i < COLUMNS; i++) window[i] += current[i];
+		windowFrames++;
+		clear(current);
+
+		return SystemClock.uptimeMillis() - windowStart >= OVERLAY_INTERVAL;
+	}
+
+	/**
+	 * Answers a one-paragraph summary of the frames since the last summary,
+	 * averaged per frame, and starts a new summary window
+	 */
+	public String takeSummary() {
+		long now = SystemClock.uptimeMillis();
+		StringBuilder s = new StringBuilder();
+		int n = Math.max(windowFrames, 1);
+		s.append(String.format("%.1f fps  %.2f ms/frame\n",
+				windowFrames * 1000f / Math.max(now - windowStart, 1), millis(window[COL_FRAME] / n)));
+		for (Stage stage : Stage.values()) {
+			s.append(stage.name().toLowerCase()).append(' ')
+			.append(String.format("%.2f", millis(window[COL_STAGES + stage.ordinal()] / n))).append("  ");
+		}
+		s.append('\n');
+		s.append(window[COL_DRAWS] / n).append(" draws  ")
+		.append(window[COL_UNIFORMS] / n).append(" uniforms  ")
+		.append(window[COL_ALLOCS] / n).append(" allocs  per frame");
+
+		windowStart = now;
+		windowFrames = 0;
+		clear(window);
+		return s.toString();
+	}
+
+	/**
+	 * Write the recorded frames, oldest first, as CSV into the given
+	 * directory. Callable from any thread
+	 *
+	 * @return the file written
+	 */
+	public File writeCsv(File directory) throws IOException {
+		File file = new File(directory, "framestats-" + System.currentTimeMillis() + ".csv");
+		long[] rows;
+		int count;
+		int first;
+		synchronized (this) {
+			rows = history.clone();
+			count = historyCount;
+			first = (historyNext - historyCount + HISTORY) % HISTORY;
+		}
+
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.print("frame_us");
+			for (Stage stage : Stage.values()) out.print("," + stage.name().toLowerCase() + "_us");
+			out.println(",draws,uniforms,allocs");
+			for (int i = 0; i < count; i++) {
+				int row = ((first + i) % HISTORY) * COLUMNS;
+				for (int col = 0; col < COLUMNS; col++) {
+					if (col != 0) out.print(',');
+					// times are recorded in nanoseconds
+					out.print(col < COL_DRAWS ? rows[row + col] / 1000 : rows[row + col]);
+				}
+				out.println();
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static float millis(long nanos) {
+		return nanos / 1000000f;
+	}
+
+	private static void clear(long[] values) {
+		for (int i = 0; i < values.length; i++) values[i] = 0;
+	}
+}
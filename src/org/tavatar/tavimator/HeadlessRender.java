@@ -0,0 +1,161 @@
+package org.tavatar.tavimator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * I render frames of many animation files to images without a screen, for
+ * thumbnail strips and previews. The files are split among the Workers
+ * threads, each with its own OffscreenRenderer, so they render in parallel.
+ *
+ * Each animation's frames go in the output directory, named after the file:
+ * as name_0000.png and so on, or all in one name.rgba file of raw frames,
+ * width * height * 4 bytes each, top row first, for feeding to an encoder
+ *
+ * @author tapple
+ */
+public class HeadlessRender {
+	private static final String TAG = "HeadlessRender";
+
+	public enum Format {
+		PNG,
+		RGBA
+	}
+
+	/**
+	 * One animation file to render: every step'th frame from first to last
+	 * inclusive, clamped to the animation. A last frame of -1 means its end
+	 */
+	public static class Job {
+		public final File animation;
+		public final int firstFrame;
+		public final int lastFrame;
+		public final int step;
+
+		public Job(File animation) {
+			this(animation, 0, -1, 1);
+		}
+
+		public Job(File animation, int firstFrame, int lastFrame, int step) {
+			this.animation = animation;
+			this.firstFrame = firstFrame;
+			this.lastFrame = lastFrame;
+			this.step = Math.max(1, step);
+		}
+	}
+
+	private final Context context;
+	private final int width;
+	private final int height;
+	private final Format format;
+	private final File outputDirectory;
+
+	public HeadlessRender(Context context, int width, int height, Format format, File outputDirectory) {
+		this.context = context;
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		this.outputDirectory = outputDirectory;
+	}
+
+	/**
+	 * Render every job, in parallel, and wait for them all. Must not be called
+	 * on a Workers thread. A job that fails is logged and skipped
+	 *
+	 * @return how many jobs failed
+	 */
+	public int renderAll(final List<Job> jobs) throws InterruptedException, ExecutionException {
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			Log.e(TAG, "could not create " + outputDirectory);
+			return jobs.size();
+		}
+
+		// one chunk, and so one GL context, per thread
+		final int[] failures = new int[1];
+		int chunk = (jobs.size() + Workers.threadCount() - 1) / Workers.threadCount();
+		Workers.forEachChunk(0, jobs.size(), Math.max(1, chunk), new Workers.Chunk() {
+			@Override public void run(int from, int to) {
+				OffscreenRenderer renderer = new OffscreenRenderer(context, width, height);
+				renderer.start();
+				try {
+					for (int i = from; i < to; i++) {
+						try {
+							render(renderer, jobs.get(i));
+						} catch (IOException e) {
+							Log.e(TAG, "could not render " + jobs.get(i).animation, e);
+							synchronized (failures) {
+								failures[0]++;
+							}
+						}
+					}
+				} finally {
+					renderer.release();
+				}
+			}
+		});
+		return failures[0];
+	}
+
+	/**
+	 * Render one job with a started renderer, on the renderer's thread
+	 */
+	public void render(OffscreenRenderer renderer, Job job) throws IOException {
+		// BVH keeps per-load state, so every job parses with its own
+		BVH bvh = new BVH();
+		AssetManager assets = context.getAssets();
+		BVHNode joints = bvh.animRead(assets.open("data/SLFemale.bvh"), assets.open(Animation.LIMITS_FILE), false);
+		Animation animation = new Animation(context, bvh, job.animation.getPath());
+		FlatSkeleton skeleton = new FlatSkeleton(animation, joints, 0);
+
+		String name = job.animation.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) name = name.substring(0, dot);
+		int last = animation.getNumberOfFrames() - 1;
+		if (job.lastFrame >= 0) last = Math.min(last, job.lastFrame);
+
+		long start = System.nanoTime();
+		int count = 0;
+		OutputStream raw = null;
+		try {
+			if (format == Format.RGBA) {
+				raw = new BufferedOutputStream(new FileOutputStream(new File(outputDirectory, name + ".rgba")));
+			}
+			byte[] frameBytes = format == Format.RGBA ? new byte[width * height * 4] : null;
+			for (int frame = Math.max(0, job.firstFrame); frame <= last; frame += job.step) {
+				renderer.render(skeleton, frame);
+				if (format == Format.RGBA) {
+					ByteBuffer pixels = renderer.readPixels();
+					pixels.get(frameBytes);
+					raw.write(frameBytes);
+				} else {
+					writePng(renderer.readBitmap(), new File(outputDirectory, String.format("%s_%04d.png", name, frame)));
+				}
+				count++;
+			}
+		} finally {
+			if (raw != null) raw.close();
+		}
+		Log.d(TAG, "rendered " + count + " frames of " + name + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+	}
+
+	private static void writePng(Bitmap bitmap, File file) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+		} finally {
+			out.close();
+			bitmap.recycle();
+		}
+	}
+}
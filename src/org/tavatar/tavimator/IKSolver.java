@@ -0,0 +1,325 @@
+package org.tavatar.tavimator;
+
+import android.util.Log;
+
+/**
+ * I turn a limb's joints so its hand or foot reaches a point, by cyclic
+ * coordinate descent: from the joint nearest the end back to the shoulder or
+ * hip, each joint turns as far as it can toward bringing the end onto the
+ * point, and the sweep repeats until the end is close enough. Each turn is
+ * scaled by the joint's IK weight from the limits file, so stiff joints move
+ * less, and clamped to its channel limits.
+ *
+ * I work in the world space of a FlatSkeleton, so the point is where the
+ * figure is drawn. All my temporaries are allocated with me, and solving
+ * doesn't allocate, so I can solve at touch rate. Use me from one thread
+ *
+ * @author tapple
+ */
+public class IKSolver {
+	private static final String TAG = "IKSolver";
+
+	/** the most joints in a chain */
+	public static final int MAX_CHAIN = 3;
+	private static final int MAX_ITERATIONS = 40;
+	/** how close, in world units, counts as reached */
+	private static final float TOLERANCE = 0.05f;
+
+	/**
+	 * Each limb's turning joints, from the body out, then its end
+	 */
+	private static final String[][] CHAINS = {
+		{"lShldr", "lForeArm", "lHand"},
+		{"rShldr", "rForeArm", "rHand"},
+		{"lThigh", "lShin", "lFoot"},
+		{"rThigh", "rShin", "rFoot"},
+	};
+
+	/**
+	 * The arms' collars, which turn with them but aren't in their chains
+	 */
+	private static final String[] COLLARS = {"lCollar", "rCollar"};
+
+	private static final Animation.IKPartType[] LIMBS = Animation.IKPartType.values();
+
+	private final FlatSkeleton skeleton;
+	// per limb, the skeleton parts of its chain and end, or null if the
+	// skeleton lacks them
+	private final int[][] chains = new int[CHAINS.length][];
+
+	// workspace
+	private final FlatSkeleton.Scratch scratch = new FlatSkeleton.Scratch();
+	private final float[] transforms;
+	// the parent transform of each chain joint, the first from the
+	// skeleton, then each joint's own, 16 floats each
+	private final float[] globals = new float[(MAX_CHAIN + 1) * 16];
+	// each chain joint's origin, then the end's
+	private final float[] origins = new float[(MAX_CHAIN + 1) * 3];
+	private final float[] angles = new float[MAX_CHAIN * 3];
+	private final float[] rotations = new float[MAX_CHAIN * 4];
+	private final int[] orders = new int[MAX_CHAIN * 3];
+	private final float[] rotationMatrix = new float[16];
+	private final float[] product = new float[16];
+	private final float[] turn = new float[4];
+	private final float[] world = new float[6];
+	private final float[] toEnd = new float[3];
+	private final float[] toGoal = new float[3];
+
+	private int iterations;
+	private boolean jointLimits = true;
+
+	public IKSolver(FlatSkeleton skeleton) {
+		this.skeleton = skeleton;
+		transforms = new float[skeleton.count * 16];
+		for (int limb = 0; limb < CHAINS.length; limb++) {
+			int[] parts = new int[CHAINS[limb].length];
+			for (int k = 0; parts != null && k < parts.length; k++) {
+				parts[k] = -1;
+				for (int i = 0; i < skeleton.count; i++) {
+					if (skeleton.nodes[i].name().equals(CHAINS[limb][k])) parts[k] = i;
+				}
+				// each must hang from the one before
+				if (parts[k] < 0 || (k > 0 && skeleton.parents[parts[k]] != parts[k - 1])) {
+					Log.d(TAG, "no IK chain for " + CHAINS[limb][CHAINS[limb].length - 1]);
+					parts = null;
+				}
+			}
+			chains[limb] = parts;
+		}
+	}
+
+	public FlatSkeleton getSkeleton() {
+		return skeleton;
+	}
+
+	/**
+	 * Answers how many joints the limb's solution turns, or 0 if the
+	 * skeleton lacks it
+	 */
+	public int getChainLength(Animation.IKPartType limb) {
+		int[] parts = chains[limb.ordinal()];
+		return parts == null ? 0 : parts.length - 1;
+	}
+
+	/**
+	 * Answers the k'th joint the limb's solution turns, from the body out
+	 */
+	public BVHNode getChainNode(Animation.IKPartType limb, int k) {
+		return skeleton.nodes[chains[limb.ordinal()][k]];
+	}
+
+	/**
+	 * Answers the limb whose solution turns or reaches with the named joint,
+	 * counting collars with their arms, or null. This searches by name, so
+	 * callers on the render path use FlatSkeleton.limbs instead
+	 */
+	public static Animation.IKPartType limbOf(String jointName) {
+		for (int limb = 0; limb < CHAINS.length; limb++) {
+			for (String name : CHAINS[limb]) {
+				if (name.equals(jointName)) return LIMBS[limb];
+			}
+			if (limb < COLLARS.length && COLLARS[limb].equals(jointName)) return LIMBS[limb];
+		}
+		return null;
+	}
+
+	/**
+	 * Write where the limb's hand or foot is at frame into
+	 * out[offset..offset+2]
+	 */
+	public void getEnd(Animation.IKPartType limb, int frame, float[] out, int offset) {
+		int[] parts = chains[limb.ordinal()];
+		if (parts == null) return;
+		skeleton.evaluate(frame, transforms, 0, scratch);
+		System.arraycopy(transforms, parts[parts.length - 1] * 16 + 12, out, offset, 3);
+	}
+
+	/**
+	 * Whether solutions keep within the joints' channel limits
+	 */
+	public void setJointLimits(boolean flag) {
+		jointLimits = flag;
+	}
+
+	/**
+	 * Answers how many sweeps the last solve took
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Turn the limb's chain at frame toward bringing its end to
+	 * goal[goalOffset..+2], and write the resulting rotation of each chain
+	 * joint, as Euler angles in its own channel order, into result, 3 floats
+	 * each. I don't allocate
+	 *
+	 * @return whether the end got within tolerance of the goal
+	 */
+	public boolean solve(Animation.IKPartType limb, int frame, float[] goal, int goalOffset, float[] result) {
+		int[] parts = chains[limb.ordinal()];
+		if (parts == null) return false;
+		int length = parts.length - 1;
+
+		skeleton.evaluate(frame, transforms, 0, scratch);
+		int root = skeleton.parents[parts[0]];
+		if (root < 0) System.arraycopy(scratch.model, 0, globals, 0, 16);
+		else System.arraycopy(transforms, root * 16, globals, 0, 16);
+		for (int k = 0; k < length; k++) {
+			BVHNode node = skeleton.nodes[parts[k]];
+			node.getRotationOrder(orders, k * 3);
+			node.getTrack().evaluate(frame, angles, k * 3, null, 0);
+			Quaternion.fromEuler(rotations, k * 4, angles, k * 3, orders, k * 3);
+		}
+
+		boolean reached = false;
+		for (iterations = 0; iterations < MAX_ITERATIONS; iterations++) {
+			forward(parts, length);
+			if (distance(origins, length * 3, goal, goalOffset) < TOLERANCE) {
+				reached = true;
+				break;
+			}
+			for (int k = length - 1; k >= 0; k--) {
+				forward(parts, length);
+				turnToward(parts, k, length, goal, goalOffset);
+			}
+		}
+		if (!reached) {
+			forward(parts, length);
+			reached = distance(origins, length * 3, goal, goalOffset) < TOLERANCE;
+		}
+		System.arraycopy(angles, 0, result, 0, length * 3);
+		return reached;
+	}
+
+	/**
+	 * Recompute each chain joint's transform and origin, and the end's
+	 * origin, from the current angles
+	 */
+	private void forward(int[] parts, int length) {
+		for (int k = 0; k <= length; k++) {
+			// the joint's origin is its parent's transform moved by its offset
+			float x = skeleton.offset(parts[k], 0);
+			float y = skeleton.offset(parts[k], 1);
+			float z = skeleton.offset(parts[k], 2);
+			for (int axis = 0; axis < 3; axis++) {
+				origins[k * 3 + axis] = globals[k * 16 + 12 + axis] + globals[k * 16 + axis] * x
+						+ globals[k * 16 + 4 + axis] * y + globals[k * 16 + 8 + axis] * z;
+			}
+			if (k == length) break;
+			int g = (k + 1) * 16;
+			System.arraycopy(globals, k * 16, globals, g, 16);
+			System.arraycopy(origins, k * 3, globals, g + 12, 3);
+			Quaternion.toMatrix(rotations, k * 4, rotationMatrix, 0);
+			multiply(globals, g, rotationMatrix);
+		}
+	}
+
+	/**
+	 * Turn chain joint k, within its weight and limits, toward bringing the
+	 * end onto the goal
+	 */
+	private void turnToward(int[] parts, int k, int length, float[] goal, int goalOffset) {
+		int parent = k * 16;
+		// both directions from the joint, in the frame it turns in: its
+		// parent's, whose rotation part is orthogonal up to uniform scale
+		for (int axis = 0; axis < 3; axis++) {
+			world[axis] = origins[length * 3 + axis] - origins[k * 3 + axis];
+			world[axis + 3] = goal[goalOffset + axis] - origins[k * 3 + axis];
+		}
+		for (int axis = 0; axis < 3; axis++) {
+			int column = parent + axis * 4;
+			toEnd[axis] = globals[column] * world[0] + globals[column + 1] * world[1] + globals[column + 2] * world[2];
+			toGoal[axis] = globals[column] * world[3] + globals[column + 1] * world[4] + globals[column + 2] * world[5];
+		}
+
+		float ax = toEnd[1] * toGoal[2] - toEnd[2] * toGoal[1];
+		float ay = toEnd[2] * toGoal[0] - toEnd[0] * toGoal[2];
+		float az = toEnd[0] * toGoal[1] - toEnd[1] * toGoal[0];
+		float sin = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+		if (sin < 1e-6f) return;
+		float cos = toEnd[0] * toGoal[0] + toEnd[1] * toGoal[1] + toEnd[2] * toGoal[2];
+		BVHNode node = skeleton.nodes[parts[k]];
+		float weight = node.ikWeight > 0 ? node.ikWeight : 1;
+		float half = (float) Math.atan2(sin, cos) * weight * 0.5f;
+		float scale = (float) Math.sin(half) / sin;
+
+		// the turn goes before the joint's rotation, in its parent's frame
+		turn[0] = ax * scale;
+		turn[1] = ay * scale;
+		turn[2] = az * scale;
+		turn[3] = (float) Math.cos(half);
+		Quaternion.postMultiply(turn, 0, rotations, k * 4);
+		Quaternion.normalize(turn, 0);
+		Quaternion.toEuler(angles, k * 3, turn, 0, orders, k * 3);
+		if (jointLimits) clamp(node, k);
+		Quaternion.fromEuler(rotations, k * 4, angles, k * 3, orders, k * 3);
+	}
+
+	private void clamp(BVHNode node, int k) {
+		for (int i = 0; i < node.numChannels; i++) {
+			int axis;
+			switch (node.channelType[i]) {
+			case BVH_XROT: axis = 0; break;
+			case BVH_YROT: axis = 1; break;
+			case BVH_ZROT: axis = 2; break;
+			default: continue;
+			}
+			float angle = angles[k * 3 + axis];
+			angles[k * 3 + axis] = Math.max(node.channelMin[i], Math.min(node.channelMax[i], angle));
+		}
+	}
+
+	/**
+	 * m = m * r, for the matrix at m[offset]
+	 */
+	private void multiply(float[] m, int offset, float[] r) {
+		for (int column = 0; column < 4; column++) {
+			for (int row = 0; row < 4; row++) {
+				float sum = 0;
+				for (int i = 0; i < 4; i++) sum += m[offset + i * 4 + row] * r[column * 4 + i];
+				product[column * 4 + row] = sum;
+			}
+		}
+		System.arraycopy(product, 0, m, offset, 16);
+	}
+
+	private static float distance(float[] a, int aOffset, float[] b, int bOffset) {
+		float dx = a[aOffset] - b[bOffset];
+		float dy = a[aOffset + 1] - b[bOffset + 1];
+		float dz = a[aOffset + 2] - b[bOffset + 2];
+		return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Time solving each limb from the pose at frame to a point a little
+	 * away from its end, solves times, on this thread. Answers a line per
+	 * limb with the mean solve time and sweeps
+	 */
+	public String benchmark(int frame, int solves) {
+		StringBuilder summary = new StringBuilder("IK solve, " + solves + " each:");
+		float[] goal = new float[3];
+		float[] result = new float[MAX_CHAIN * 3];
+		for (Animation.IKPartType limb : Animation.IKPartType.values()) {
+			if (getChainLength(limb) == 0) continue;
+			getEnd(limb, frame, goal, 0);
+			goal[0] += 3;
+			goal[1] += 3;
+			goal[2] += 3;
+			int sweeps = 0;
+			boolean reached = true;
+			long start = System.nanoTime();
+			for (int i = 0; i < solves; i++) {
+				reached &= solve(limb, frame, goal, 0, result);
+				sweeps += iterations;
+			}
+			long nanos = System.nanoTime() - start;
+			summary.append('\n').append(CHAINS[limb.ordinal()][MAX_CHAIN - 1]).append(": ")
+					.append(nanos / solves / 1000).append("us, ")
+					.append((float) sweeps / solves).append(" sweeps")
+					.append(reached ? "" : ", out of reach");
+		}
+		Log.d(TAG, summary.toString());
+		return summary.toString();
+	}
+}
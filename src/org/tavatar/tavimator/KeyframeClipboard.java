@@ -0,0 +1,141 @@
+package org.tavatar.tavimator;
+
+/**
+ * I hold a range of frames copied from some joints of an animation: for
+ * each joint, by its joint index, the keys in the range as a KeyframeTrack,
+ * with frames counted from the start of the range. A joint with no key on
+ * the first frame gets one there, holding its value at that frame, so a
+ * pasted range starts where the copied one did.
+ *
+ * Pasting makes each joint's new track in one pass over its keys; inserting
+ * first shifts the later keys, which costs nothing per key. Unlike the
+ * single frame buffer in BVH, pasting doesn't depend on walking the joints
+ * in the order they were copied
+ *
+ * @author tapple
+ */
+public class KeyframeClipboard {
+	private static final String TAG = "KeyframeClipboard";
+
+	public enum Mode {
+		/** Replace the keys on the pasted frames */
+		OVERWRITE,
+		/** Move the keys from the paste frame on later, to make room */
+		INSERT,
+		/** Mix the pasted values into the existing ones, by a weight */
+		BLEND
+	}
+
+	private final int length;
+	private final int[] joints;
+	private final KeyframeTrack[] tracks;
+
+	private KeyframeClipboard(int length, int[] joints, KeyframeTrack[] tracks) {
+		this.length = length;
+		this.joints = joints;
+		this.tracks = tracks;
+	}
+
+	/**
+	 * Copy the frames from up to to of the given nodes, which have the given
+	 * joint indices
+	 */
+	public static KeyframeClipboard copy(BVHNode[] nodes, int[] joints, int from, int to) {
+		KeyframeTrack[] tracks = new KeyframeTrack[nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			KeyframeTrack track = nodes[i].getTrack();
+			KeyframeTrack keys = track.range(from, to);
+			if (!track.isEmpty() && !track.isKeyframe(from)) {
+				FrameData start = track.frameData(from);
+				keys = keys.withKey(from, start.position(), start.rotation());
+			}
+			tracks[i] = keys.shifted(from, -from);
+		}
+		return new KeyframeClipboard(to - from, joints.clone(), tracks);
+	}
+
+	/**
+	 * Answers how many frames I span
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public int getJointCount() {
+		return joints.length;
+	}
+
+	/**
+	 * Answers the joint index of my i'th joint
+	 */
+	public int getJoint(int i) {
+		return joints[i];
+	}
+
+	/**
+	 * Answers the keys of my i'th joint, from frame 0
+	 */
+	public KeyframeTrack getTrack(int i) {
+		return tracks[i];
+	}
+
+	/**
+	 * Answers track with my i'th joint's keys pasted at frame
+	 *
+	 * @param weight for BLEND, how much of the pasted values to take, from 0
+	 * to 1; ignored otherwise
+	 */
+	public KeyframeTrack pasteInto(KeyframeTrack track, int i, int frame, Mode mode, float weight) {
+		KeyframeTrack keys = tracks[i].shifted(0, frame);
+		int end = frame + length;
+		switch (mode) {
+		case INSERT:
+			return track.shifted(frame, length).withKeysReplaced(frame, end, keys);
+		case BLEND:
+			return track.withKeysReplaced(frame, end, blend(track, keys, frame, end, weight));
+		default:
+			return track.withKeysReplaced(frame, end, keys);
+		}
+	}
+
+	/**
+	 * Answers keys on every frame either track has one, from up to to, each
+	 * the weighted mix of the two tracks' values there
+	 */
+	private static KeyframeTrack blend(KeyframeTrack track, KeyframeTrack keys, int from, int to, float weight) {
+		int mine = track.indexOf(from);
+		if (mine < 0) mine = -mine - 1;
+		int theirs = 0;
+		float[] rotation = new float[6];
+		float[] position = new float[6];
+		KeyframeTrack.Builder blended = new KeyframeTrack.Builder(keys.size() + 8);
+		while (theirs < keys.size() || (mine < track.size() && track.frame(mine) < to)) {
+			int frame;
+			boolean easeIn;
+			boolean easeOut;
+			// merge the two sorted runs of frames, preferring the pasted key's easing
+			if (theirs < keys.size() && (mine >= track.size() || keys.frame(theirs) <= track.frame(mine))) {
+				frame = keys.frame(theirs);
+				easeIn = keys.easeIn(theirs);
+				easeOut = keys.easeOut(theirs);
+				if (mine < track.size() && track.frame(mine) == frame) mine++;
+				theirs++;
+			} else {
+				frame = track.frame(mine);
+				easeIn = track.easeIn(mine);
+				easeOut = track.easeOut(mine);
+				mine++;
+			}
+			if (frame >= to) continue;
+			track.evaluate(frame, rotation, 0, position, 0);
+			keys.evaluate(frame, rotation, 3, position, 3);
+			for (int axis = 0; axis < 3; axis++) {
+				rotation[axis] += (rotation[axis + 3] - rotation[axis]) * weight;
+				position[axis] += (position[axis + 3] - position[axis]) * weight;
+			}
+			blended.add(frame, new Position(position[0], position[1], position[2]),
+					new Rotation(rotation[0], rotation[1], rotation[2]), easeIn, easeOut);
+		}
+		return blended.build();
+	}
+}
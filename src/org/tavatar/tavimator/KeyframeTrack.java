@@ -0,0 +1,928 @@
+package org.tavatar.tavimator;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * I am one joint's keyframes, frozen. Nothing about me changes once I'm
+ * constructed: every edit answers a new track, which BVHNode publishes with a
+ * single volatile write. Whoever holds me (the simulation thread evaluating a
+ * pose, a background export) sees one consistent version for as long as they
+ * like, without locking.
+ *
+ * I keep my keys in parallel primitive arrays sorted by frame, so lookups are
+ * binary searches and evaluating a frame doesn't allocate.
+ *
+ * Appending past my last key, as the loaders do for every frame, writes into
+ * spare capacity of my arrays when no other track has claimed it yet. Slots
+ * below my count are never written again, so tracks sharing the arrays are
+ * unaffected, and loading a long track key by key stays linear.
+ *
+ * Inserting or deleting frames doesn't touch the keys at all: the new track
+ * shares my arrays and sees them through a short list of segments, each a
+ * run of slots with a frame offset, so shifting any number of keys costs a
+ * binary search and a few small arrays. Past MAX_SEGMENTS the keys are
+ * copied into plain arrays again
+ *
+ * @author tapple
+ */
+public final class KeyframeTrack {
+	private static final String TAG = "KeyframeTrack";
+
+	public static final int EASE_IN = 1;
+	public static final int EASE_OUT = 2;
+
+	public static final KeyframeTrack EMPTY = new KeyframeTrack(new Storage(0), 0);
+
+	/** More segments than this and a splice copies the keys instead */
+	private static final int MAX_SEGMENTS = 16;
+
+	/**
+	 * Key arrays, possibly shared by several tracks that each see a prefix
+	 */
+	private static final class Storage {
+		final int[] frames;
+		// x, y, z per key
+		final float[] rotations;
+		final float[] positions;
+		final byte[] eases;
+		// how many slots some track has filled. Appending in place claims the next one
+		final AtomicInteger claimed = new AtomicInteger();
+
+		Storage(int capacity) {
+			frames = new int[capacity];
+			rotations = new float[capacity * 3];
+			positions = new float[capacity * 3];
+			eases = new byte[capacity];
+		}
+
+		int capacity() {
+			return frames.length;
+		}
+	}
+
+	private final Storage keys;
+	private final int count;
+
+	/**
+	 * Where my keys are, when they aren't simply the first count slots: my
+	 * keys from index segmentStarts[i] up to the next segment's start are in
+	 * the slots from segmentSlots[i] on, with segmentDeltas[i] added to their
+	 * frames. All null for a plain track
+	 */
+	private final int[] segmentStarts;
+	private final int[] segmentSlots;
+	private final int[] segmentDeltas;
+
+	private KeyframeTrack(Storage keys, int count) {
+		this.keys = keys;
+		this.count = count;
+		segmentStarts = null;
+		segmentSlots = null;
+		segmentDeltas = null;
+		if (keys.claimed.get() < count) keys.claimed.set(count);
+	}
+
+	/**
+	 * A segmented view of keys; every slot it sees is already claimed
+	 */
+	private KeyframeTrack(Storage keys, int count, int[] starts, int[] slots, int[] deltas) {
+		this.keys = keys;
+		this.count = count;
+		segmentStarts = starts;
+		segmentSlots = slots;
+		segmentDeltas = deltas;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public int frame(int index) {
+		if (segmentStarts == null) return keys.frames[index];
+		int segment = segmentOf(index);
+		return keys.frames[segmentSlots[segment] + index - segmentStarts[segment]] + segmentDeltas[segment];
+	}
+
+	public int firstFrame() {
+		return frame(0);
+	}
+
+	public int lastFrame() {
+		return frame(count - 1);
+	}
+
+	/**
+	 * Answers the segment holding the key at index. Only for segmented tracks
+	 */
+	private int segmentOf(int index) {
+		int[] starts = segmentStarts;
+		int low = 0;
+		int high = starts.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (starts[mid] <= index) low = mid;
+			else high = mid - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Answers where in the storage the key at index is
+	 */
+	private int slot(int index) {
+		if (segmentStarts == null) return index;
+		int segment = segmentOf(index);
+		return segmentSlots[segment] + index - segmentStarts[segment];
+	}
+
+	/**
+	 * Answers the index of the key at frame, or (-(insertion point) - 1) if
+	 * there is none, as Arrays.binarySearch does
+	 */
+	public int indexOf(int frame) {
+		// Arrays.binarySearch on a range needs API 9
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midFrame = frame(mid);
+			if (midFrame < frame) low = mid + 1;
+			else if (midFrame > frame) high = mid - 1;
+			else return mid;
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Answers the index of the first key at or after frame, or size()
+	 */
+	private int ceilingIndex(int frame) {
+		int index = indexOf(frame);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	public boolean isKeyframe(int frame) {
+		return indexOf(frame) >= 0;
+	}
+
+	/**
+	 * Answers the index of the last key before frame, or -1
+	 */
+	public int indexBefore(int frame) {
+		int index = indexOf(frame);
+		return (index >= 0 ? index : -index - 1) - 1;
+	}
+
+	/**
+	 * Answers the index of the first key after frame, or -1
+	 */
+	public int indexAfter(int frame) {
+		int index = indexOf(frame);
+		index = index >= 0 ? index + 1 : -index - 1;
+		return index < count ? index : -1;
+	}
+
+	public Rotation rotation(int index) {
+		float[] r = keys.rotations;
+		int slot = slot(index);
+		return new Rotation(r[slot * 3], r[slot * 3 + 1], r[slot * 3 + 2]);
+	}
+
+	public Position position(int index) {
+		float[] p = keys.positions;
+		int slot = slot(index);
+		return new Position(p[slot * 3], p[slot * 3 + 1], p[slot * 3 + 2]);
+	}
+
+	public float rotation(int index, int axis) {
+		return keys.rotations[slot(index) * 3 + axis];
+	}
+
+	public float position(int index, int axis) {
+		return keys.positions[slot(index) * 3 + axis];
+	}
+
+	public boolean easeIn(int index) {
+		return (keys.eases[slot(index)] & EASE_IN) != 0;
+	}
+
+	public boolean easeOut(int index) {
+		return (keys.eases[slot(index)] & EASE_OUT) != 0;
+	}
+
+	/**
+	 * Answers a new FrameData holding a copy of the key at index
+	 */
+	public FrameData keyframeData(int index) {
+		FrameData data = new FrameData(frame(index), position(index), rotation(index));
+		data.setEaseIn(easeIn(index));
+		data.setEaseOut(easeOut(index));
+		return data;
+	}
+
+	/**
+	 * Answers a new FrameData for any frame: a copy of the key if there is one
+	 * there, otherwise interpolated between the surrounding keys. Before the
+	 * first key and after the last, the nearest key holds
+	 */
+	public FrameData frameData(int frame) {
+		if (count == 0) return new FrameData(frame, new Position(), new Rotation());
+		int index = indexOf(frame);
+		if (index >= 0) return keyframeData(index);
+		float[] rot = new float[3];
+		float[] pos = new float[3];
+		evaluate(frame, rot, 0, pos, 0);
+		return new FrameData(frame, new Position(pos[0], pos[1], pos[2]), new Rotation(rot[0], rot[1], rot[2]));
+	}
+
+	/**
+	 * Write the rotation at frame into rotation[offset..offset+2], and likewise
+	 * the position. Either array may be null. I don't allocate
+	 */
+	public void evaluate(int frame, float[] rotation, int rotationOffset, float[] position, int positionOffset) {
+		if (count == 0) {
+			if (rotation != null) Arrays.fill(rotation, rotationOffset, rotationOffset + 3, 0.0f);
+			if (position != null) Arrays.fill(position, positionOffset, positionOffset + 3, 0.0f);
+			return;
+		}
+		int index = indexOf(frame);
+		int before;
+		int after;
+		if (index >= 0) {
+			before = after = index;
+		} else {
+			after = -index - 1;
+			before = after - 1;
+			// hold the first key before it and the last key after it
+			if (before < 0) before = after;
+			if (after >= count) after = before;
+		}
+		if (rotation != null) interpolateKeys(keys.rotations, before, after, frame, rotation, rotationOffset);
+		if (position != null) interpolateKeys(keys.positions, before, after, frame, position, positionOffset);
+	}
+
+	/**
+	 * Like evaluate, at a frame that may fall between whole frames, as when
+	 * sampling at another frame rate. I don't allocate
+	 */
+	public void evaluateAt(float frame, float[] rotation, int rotationOffset, float[] position, int positionOffset) {
+		int whole = (int) Math.floor(frame);
+		if (count == 0 || frame == whole) {
+			evaluate(whole, rotation, rotationOffset, position, positionOffset);
+			return;
+		}
+		// the last key at or before the frame, and the first key after it
+		int after = ceilingIndex(whole + 1);
+		int before = after - 1;
+		if (before < 0) before = after;
+		if (after >= count) after = before;
+		if (rotation != null) interpolateKeys(keys.rotations, before, after, frame, rotation, rotationOffset);
+		if (position != null) interpolateKeys(keys.positions, before, after, frame, position, positionOffset);
+	}
+
+	private void interpolateKeys(float[] values, int before, int after, float frame, float[] out, int offset) {
+		int slotBefore = slot(before);
+		if (before == after) {
+			System.arraycopy(values, slotBefore * 3, out, offset, 3);
+			return;
+		}
+		int slotAfter = slot(after);
+		int frameBefore = frame(before);
+		int steps = frame(after) - frameBefore;
+		boolean easeOut = (keys.eases[slotBefore] & EASE_OUT) != 0;
+		boolean easeIn = (keys.eases[slotAfter] & EASE_IN) != 0;
+		for (int axis = 0; axis < 3; axis++) {
+			out[offset + axis] = interpolate(values[slotBefore * 3 + axis], values[slotAfter * 3 + axis],
+					steps, frame - frameBefore, easeOut, easeIn);
+		}
+	}
+
+	static float interpolate(float from,float to,int steps,float pos,boolean easeOut,boolean easeIn) {
+		boolean ease=false;
+
+		// do not start any calculation if there's nothing to do
+		if(from==to) return from;
+
+		if(pos<=(steps/2) && easeOut) ease=true;
+		if(pos>(steps/2) && easeIn) ease=true;
+
+		// sine interpolation for ease in / out
+		if(ease)
+		{
+			float distance=to-from;
+			float step=3.1415f/(steps);
+
+			return from+(0.5f-(float)Math.cos(step*pos)/2)*distance;
+		}
+		// classic linear interpolation
+		else
+		{
+			float distance=to-from;
+			float increment=distance/(float) steps;
+			return from+increment*pos;
+		}
+	}
+
+	/**
+	 * Find the frames where other may evaluate differently from me: from the
+	 * last key we share before the first difference to the first key we share
+	 * after the last one. Stores {first, last} into range, with last
+	 * Integer.MAX_VALUE if the difference reaches past the last key
+	 *
+	 * @return false if we are identical, and range is untouched
+	 */
+	public boolean differingFrames(KeyframeTrack other, int[] range) {
+		if (other == this) return false;
+		int shared = Math.min(count, other.count);
+		int first = 0;
+		while (first < shared && sameKey(first, other, first, 0)) first++;
+		if (first == count && first == other.count) return false;
+
+		int mine = count - 1;
+		int theirs = other.count - 1;
+		while (mine >= first && theirs >= first && sameKey(mine, other, theirs, 0)) {
+			mine--;
+			theirs--;
+		}
+		range[0] = first == 0 ? 0 : frame(first - 1);
+		range[1] = mine + 1 < count ? frame(mine + 1) : Integer.MAX_VALUE;
+		return true;
+	}
+
+	/**
+	 * Answers whether my key at index, moved by delta frames, is other's key
+	 * at otherIndex
+	 */
+	private boolean sameKey(int index, KeyframeTrack other, int otherIndex, int delta) {
+		if (frame(index) + delta != other.frame(otherIndex)) return false;
+		Storage o = other.keys;
+		int slot = slot(index);
+		int otherSlot = other.slot(otherIndex);
+		if (slot == otherSlot && keys == o) return true;
+		if (keys.eases[slot] != o.eases[otherSlot]) return false;
+		for (int axis = 0; axis < 3; axis++) {
+			if (keys.rotations[slot * 3 + axis] != o.rotations[otherSlot * 3 + axis]) return false;
+			if (keys.positions[slot * 3 + axis] != o.positions[otherSlot * 3 + axis]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Answers a track with a key at frame holding the given values, replacing
+	 * any key (and its easing) already there
+	 */
+	public KeyframeTrack withKey(int frame, Position pos, Rotation rot) {
+		int index = indexOf(frame);
+		if (index >= 0) {
+			Storage copy = copyOf(count, count);
+			setSlot(copy, index, frame, pos, rot, (byte)0);
+			return new KeyframeTrack(copy, count);
+		}
+
+		index = -index - 1;
+		if (index == count) {
+			KeyframeTrack appended = appendInPlace(frame, pos, rot);
+			if (appended != null) return appended;
+		}
+		Storage copy = new Storage(grownCapacity(count + 1));
+		copyKeys(0, copy, 0, index);
+		copyKeys(index, copy, index + 1, count - index);
+		setSlot(copy, index, frame, pos, rot, (byte)0);
+		return new KeyframeTrack(copy, count + 1);
+	}
+
+	/**
+	 * Appends after my last key by writing into shared spare capacity. Answers
+	 * null if the capacity is exhausted or another track already claimed it
+	 */
+	private KeyframeTrack appendInPlace(int frame, Position pos, Rotation rot) {
+		if (segmentStarts != null || count >= keys.capacity()) return null;
+		if (!keys.claimed.compareAndSet(count, count + 1)) return null;
+		setSlot(keys, count, frame, pos, rot, (byte)0);
+		return new KeyframeTrack(keys, count + 1);
+	}
+
+	public KeyframeTrack withoutKey(int frame) {
+		int index = indexOf(frame);
+		if (index < 0) return this;
+		Storage copy = new Storage(count - 1);
+		copyKeys(0, copy, 0, index);
+		copyKeys(index + 1, copy, index, count - index - 1);
+		return new KeyframeTrack(copy, count - 1);
+	}
+
+	/**
+	 * Answers a track with the key at frame rotated to rot, or me if there's
+	 * no key there
+	 */
+	public KeyframeTrack withRotation(int frame, Rotation rot) {
+		int index = indexOf(frame);
+		if (index < 0) return this;
+		Storage copy = copyOf(count, count);
+		copy.rotations[index * 3] = rot.x;
+		copy.rotations[index * 3 + 1] = rot.y;
+		copy.rotations[index * 3 + 2] = rot.z;
+		return new KeyframeTrack(copy, count);
+	}
+
+	/**
+	 * Answers a track with the key at frame moved to pos, or me if there's
+	 * no key there
+	 */
+	public KeyframeTrack withPosition(int frame, Position pos) {
+		int index = indexOf(frame);
+		if (index < 0) return this;
+		Storage copy = copyOf(count, count);
+		copy.positions[index * 3] = pos.x;
+		copy.positions[index * 3 + 1] = pos.y;
+		copy.positions[index * 3 + 2] = pos.z;
+		return new KeyframeTrack(copy, count);
+	}
+
+	/**
+	 * Answers a track with the given ease flag (EASE_IN or EASE_OUT) of the
+	 * key at frame set or cleared, or me if there's no key there
+	 */
+	public KeyframeTrack withEase(int frame, int flag, boolean state) {
+		int index = indexOf(frame);
+		if (index < 0) return this;
+		byte old = keys.eases[slot(index)];
+		byte eases = (byte)(state ? old | flag : old & ~flag);
+		if (eases == old) return this;
+		Storage copy = copyOf(count, count);
+		copy.eases[index] = eases;
+		return new KeyframeTrack(copy, count);
+	}
+
+	/**
+	 * Answers a track with every key at or after frame moved by delta frames.
+	 * Keys pushed onto or before frame - 1 by a negative delta must have been
+	 * removed first. Costs a search, not a copy of the keys
+	 */
+	public KeyframeTrack shifted(int frame, int delta) {
+		int index = ceilingIndex(frame);
+		if (index == count || delta == 0) return this;
+		return spliced(index, index, delta);
+	}
+
+	/**
+	 * Answers a track with the given number of frames removed from frame on:
+	 * the keys on them dropped and every later key moved back to close the
+	 * gap. Costs a search, not a copy of the keys
+	 */
+	public KeyframeTrack withFramesDeleted(int frame, int frames) {
+		if (frames <= 0) return this;
+		int from = ceilingIndex(frame);
+		if (from == count) return this;
+		return spliced(from, ceilingIndex(frame + frames), -frames);
+	}
+
+	/**
+	 * Answers a track of just my keys on frames from up to to
+	 */
+	public KeyframeTrack range(int from, int to) {
+		return slice(ceilingIndex(from), ceilingIndex(to));
+	}
+
+	/**
+	 * Answers a track with my keys on frames from up to to replaced by all of
+	 * keys, which must lie on those frames. Costs one copy of the keys,
+	 * however many are replaced
+	 */
+	public KeyframeTrack withKeysReplaced(int from, int to, KeyframeTrack keys) {
+		return replaced(ceilingIndex(from), ceilingIndex(to), keys, 0);
+	}
+
+	/**
+	 * Answers a track sharing my storage, without my keys from index from up
+	 * to index to, and with the keys from to on moved by delta frames
+	 */
+	private KeyframeTrack spliced(int from, int to, int delta) {
+		int newCount = count - (to - from);
+		if (newCount == 0) return EMPTY;
+
+		// each segment keeps its part before from and its part from to on;
+		// only the one straddling the cut splits in two
+		int segments = segmentStarts == null ? 1 : segmentStarts.length;
+		int[] starts = new int[segments + 1];
+		int[] slots = new int[segments + 1];
+		int[] deltas = new int[segments + 1];
+		int n = 0;
+		for (int segment = 0; segment < segments; segment++) {
+			int start = segmentStarts == null ? 0 : segmentStarts[segment];
+			int end = segment + 1 < segments ? segmentStarts[segment + 1] : count;
+			int slot = segmentStarts == null ? 0 : segmentSlots[segment];
+			int shift = segmentStarts == null ? 0 : segmentDeltas[segment];
+			if (start < from) {
+				n = addSegment(starts, slots, deltas, n, start, slot, shift);
+			}
+			if (end > to) {
+				int first = Math.max(start, to);
+				n = addSegment(starts, slots, deltas, n, first - (to - from), slot + first - start, shift + delta);
+			}
+		}
+
+		if (n == 1 && slots[0] == 0 && deltas[0] == 0) return new KeyframeTrack(keys, newCount);
+		KeyframeTrack track = new KeyframeTrack(keys, newCount, prefix(starts, n), prefix(slots, n), prefix(deltas, n));
+		if (n <= MAX_SEGMENTS) return track;
+		return new KeyframeTrack(track.copyOf(newCount, newCount), newCount);
+	}
+
+	/**
+	 * Answers a track with my keys from index from up to index to replaced by
+	 * all of keys, which must fit there in frame order, and my keys from to on
+	 * moved by delta frames
+	 */
+	private KeyframeTrack replaced(int from, int to, KeyframeTrack keys, int delta) {
+		if (keys.count == 0) {
+			if (from == to && delta == 0) return this;
+			return spliced(from, to, delta);
+		}
+		int tail = count - to;
+		Storage copy = new Storage(from + keys.count + tail);
+		copyKeys(0, copy, 0, from);
+		keys.copyKeys(0, copy, from, keys.count);
+		copyKeys(to, copy, from + keys.count, tail);
+		if (delta != 0) {
+			for (int i = from + keys.count; i < copy.capacity(); i++) copy.frames[i] += delta;
+		}
+		return new KeyframeTrack(copy, copy.capacity());
+	}
+
+	/**
+	 * Answers a plain track of my keys from index from up to index to
+	 */
+	private KeyframeTrack slice(int from, int to) {
+		if (from == to) return EMPTY;
+		Storage copy = new Storage(to - from);
+		copyKeys(from, copy, 0, to - from);
+		return new KeyframeTrack(copy, to - from);
+	}
+
+	/**
+	 * Adds a segment to the arrays, or extends the last one if the new one
+	 * simply continues it
+	 *
+	 * @return the new number of segments
+	 */
+	private static int addSegment(int[] starts, int[] slots, int[] deltas, int n, int start, int slot, int delta) {
+		if (n > 0 && deltas[n - 1] == delta && slots[n - 1] + start - starts[n - 1] == slot) return n;
+		starts[n] = start;
+		slots[n] = slot;
+		deltas[n] = delta;
+		return n + 1;
+	}
+
+	private static int[] prefix(int[] values, int length) {
+		if (values.length == length) return values;
+		int[] result = new int[length];
+		System.arraycopy(values, 0, result, 0, length);
+		return result;
+	}
+
+	/** Channel factors that mirror a position track left to right */
+	public static final float[] MIRROR_POSITIONS = {1, 1, 1, -1, 1, 1};
+	/** Channel factors that mirror a rotation track left to right */
+	public static final float[] MIRROR_ROTATIONS = {1, -1, -1, 1, 1, 1};
+
+	/**
+	 * Answers a track with my keys mirrored left to right: positions negated
+	 * on x, or rotations negated on y and z
+	 */
+	public KeyframeTrack mirrored(boolean positions) {
+		if (count == 0) return this;
+		return multiplied(Integer.MIN_VALUE, Integer.MAX_VALUE, positions ? MIRROR_POSITIONS : MIRROR_ROTATIONS, 0);
+	}
+
+	/**
+	 * Answers a track of my keys on frames from up to to, with each channel
+	 * multiplied by its factor: the rotation's x, y and z by
+	 * factors[offset..offset+2], and the position's by the next three. Made
+	 * in one pass over the keys, copying and multiplying together
+	 */
+	public KeyframeTrack multiplied(int from, int to, float[] factors, int offset) {
+		int first = ceilingIndex(from);
+		int length = ceilingIndex(to) - first;
+		if (length == 0) return EMPTY;
+		Storage copy = new Storage(length);
+		float[] rotations = keys.rotations;
+		float[] positions = keys.positions;
+		for (int i = 0; i < length; i++) {
+			int slot = slot(first + i);
+			copy.frames[i] = frame(first + i);
+			copy.eases[i] = keys.eases[slot];
+			for (int axis = 0; axis < 3; axis++) {
+				copy.rotations[i * 3 + axis] = rotations[slot * 3 + axis] * factors[offset + axis];
+				copy.positions[i * 3 + axis] = positions[slot * 3 + axis] * factors[offset + 3 + axis];
+			}
+		}
+		return new KeyframeTrack(copy, length);
+	}
+
+	/**
+	 * Leaves room to append in place, so a run of appends copies the keys
+	 * only a logarithmic number of times
+	 */
+	private static int grownCapacity(int needed) {
+		return Math.max(needed + needed / 2, 8);
+	}
+
+	private Storage copyOf(int length, int capacity) {
+		Storage copy = new Storage(capacity);
+		copyKeys(0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * Answers a track with only the keys needed to stay within the given
+	 * tolerances of me, interpolating linearly between them: the
+	 * Douglas-Peucker reduction of all six channels together, keeping a key
+	 * wherever any channel would stray too far. My first and last keys always
+	 * stay. Meant for dense keys without easing, as baking makes
+	 */
+	public KeyframeTrack reduced(float rotationTolerance, float positionTolerance) {
+		if (count <= 2) return this;
+		boolean[] keep = new boolean[count];
+		keep[0] = true;
+		keep[count - 1] = true;
+		int kept = 2;
+		// spans still to check, as pairs of key indices
+		int[] spans = new int[64];
+		int top = 0;
+		spans[top++] = 0;
+		spans[top++] = count - 1;
+		while (top > 0) {
+			int last = spans[--top];
+			int first = spans[--top];
+			int worst = -1;
+			float worstExcess = 1;
+			for (int i = first + 1; i < last; i++) {
+				float excess = excess(first, last, i, rotationTolerance, positionTolerance);
+				if (excess > worstExcess) {
+					worst = i;
+					worstExcess = excess;
+				}
+			}
+			if (worst < 0) continue;
+			keep[worst] = true;
+			kept++;
+			if (top + 4 > spans.length) {
+				int[] grown = new int[spans.length * 2];
+				System.arraycopy(spans, 0, grown, 0, top);
+				spans = grown;
+			}
+			spans[top++] = first;
+			spans[top++] = worst;
+			spans[top++] = worst;
+			spans[top++] = last;
+		}
+		if (kept == count) return this;
+
+		Storage copy = new Storage(kept);
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (!keep[i]) continue;
+			copyRange(keys, slot(i), copy, n, 1);
+			copy.frames[n] = frame(i);
+			n++;
+		}
+		return new KeyframeTrack(copy, kept);
+	}
+
+	/**
+	 * Answers how far key i strays from the line between keys first and
+	 * last, in tolerances: more than 1 is too far
+	 */
+	private float excess(int first, int last, int i, float rotationTolerance, float positionTolerance) {
+		float t = (float) (frame(i) - frame(first)) / (frame(last) - frame(first));
+		int a = slot(first) * 3;
+		int b = slot(last) * 3;
+		int k = slot(i) * 3;
+		float excess = 0;
+		for (int axis = 0; axis < 3; axis++) {
+			float rotation = keys.rotations[a + axis] + (keys.rotations[b + axis] - keys.rotations[a + axis]) * t;
+			float position = keys.positions[a + axis] + (keys.positions[b + axis] - keys.positions[a + axis]) * t;
+			excess = Math.max(excess, ratio(Math.abs(keys.rotations[k + axis] - rotation), rotationTolerance));
+			excess = Math.max(excess, ratio(Math.abs(keys.positions[k + axis] - position), positionTolerance));
+		}
+		return excess;
+	}
+
+	private static float ratio(float error, float tolerance) {
+		if (tolerance > 0) return error / tolerance;
+		return error > 0 ? Float.MAX_VALUE : 0;
+	}
+
+	/**
+	 * Copy my keys from index on into plain storage, applying any segment
+	 * offsets to their frames
+	 */
+	private void copyKeys(int index, Storage to, int toIndex, int length) {
+		if (segmentStarts == null) {
+			copyRange(keys, index, to, toIndex, length);
+			return;
+		}
+		int end = index + length;
+		for (int segment = segmentOf(index); index < end; segment++) {
+			int segmentEnd = segment + 1 < segmentStarts.length ? segmentStarts[segment + 1] : count;
+			int run = Math.min(end, segmentEnd) - index;
+			copyRange(keys, segmentSlots[segment] + index - segmentStarts[segment], to, toIndex, run);
+			int delta = segmentDeltas[segment];
+			if (delta != 0) {
+				for (int i = toIndex; i < toIndex + run; i++) to.frames[i] += delta;
+			}
+			index += run;
+			toIndex += run;
+		}
+	}
+
+	private static void copyRange(Storage from, int fromIndex, Storage to, int toIndex, int length) {
+		if (length <= 0) return;
+		System.arraycopy(from.frames, fromIndex, to.frames, toIndex, length);
+		System.arraycopy(from.rotations, fromIndex * 3, to.rotations, toIndex * 3, length * 3);
+		System.arraycopy(from.positions, fromIndex * 3, to.positions, toIndex * 3, length * 3);
+		System.arraycopy(from.eases, fromIndex, to.eases, toIndex, length);
+	}
+
+	private static void setSlot(Storage keys, int index, int frame, Position pos, Rotation rot, byte eases) {
+		keys.frames[index] = frame;
+		keys.rotations[index * 3] = rot.x;
+		keys.rotations[index * 3 + 1] = rot.y;
+		keys.rotations[index * 3 + 2] = rot.z;
+		keys.positions[index * 3] = pos.x;
+		keys.positions[index * 3 + 1] = pos.y;
+		keys.positions[index * 3 + 2] = pos.z;
+		keys.eases[index] = eases;
+	}
+
+	/**
+	 * I am the difference between two versions of a track, small enough to
+	 * keep many of in an undo history: only the run of keys that differ, from
+	 * both versions, and how far the keys after the run moved. Inserting or
+	 * deleting frames is just that move, whatever the length of the track
+	 */
+	public static final class Delta {
+		/** Bytes per key held, for memory accounting */
+		private static final int KEY_BYTES = 4 + 3 * 4 + 3 * 4 + 1;
+
+		private final int first;
+		private final int delta;
+		private final KeyframeTrack removed;
+		private final KeyframeTrack added;
+		private final int oldCount;
+		private final int newCount;
+
+		private Delta(int first, int delta, KeyframeTrack removed, KeyframeTrack added, int oldCount, int newCount) {
+			this.first = first;
+			this.delta = delta;
+			this.removed = removed;
+			this.added = added;
+			this.oldCount = oldCount;
+			this.newCount = newCount;
+		}
+
+		/**
+		 * Answers what turns from into to, or null if they're the same keys
+		 */
+		public static Delta between(KeyframeTrack from, KeyframeTrack to) {
+			if (from == to) return null;
+			int shared = Math.min(from.count, to.count);
+			int first = 0;
+			while (first < shared && from.sameKey(first, to, first, 0)) first++;
+			if (first == from.count && first == to.count) return null;
+
+			// the keys after the run keep their values, and move together
+			int fromEnd = from.count;
+			int toEnd = to.count;
+			int delta = 0;
+			if (first < shared) {
+				delta = to.frame(to.count - 1) - from.frame(from.count - 1);
+				while (fromEnd > first && toEnd > first && from.sameKey(fromEnd - 1, to, toEnd - 1, delta)) {
+					fromEnd--;
+					toEnd--;
+				}
+				if (fromEnd == from.count) delta = 0;
+			}
+			return new Delta(first, delta, from.slice(first, fromEnd), to.slice(first, toEnd), from.count, to.count);
+		}
+
+		/**
+		 * Answers the older version, given the newer one, or null if current
+		 * isn't the version I was made from
+		 */
+		public KeyframeTrack undo(KeyframeTrack current) {
+			if (current.count != newCount) return null;
+			return current.replaced(first, first + added.count, removed, -delta);
+		}
+
+		/**
+		 * Answers the newer version, given the older one, or null if current
+		 * isn't the version I was made from
+		 */
+		public KeyframeTrack redo(KeyframeTrack current) {
+			if (current.count != oldCount) return null;
+			return current.replaced(first, first + removed.count, added, delta);
+		}
+
+		/**
+		 * Answers roughly how much memory I hold
+		 */
+		public int byteSize() {
+			return 64 + (removed.count + added.count) * KEY_BYTES;
+		}
+	}
+
+	/**
+	 * I build a track from keys arriving in any order, with no intermediate
+	 * tracks. For loaders and bulk edits
+	 */
+	public static class Builder {
+		private Storage keys;
+		private int count;
+		private boolean sorted = true;
+
+		public Builder() {
+			this(16);
+		}
+
+		public Builder(int capacity) {
+			keys = new Storage(Math.max(capacity, 1));
+		}
+
+		/**
+		 * Start from a copy of the given track's keys
+		 */
+		public Builder(KeyframeTrack track) {
+			this(track.count);
+			track.copyKeys(0, keys, 0, track.count);
+			count = track.count;
+		}
+
+		public Builder add(int frame, Position pos, Rotation rot, boolean easeIn, boolean easeOut) {
+			reserve(frame);
+			setSlot(keys, count, frame, pos, rot, (byte)((easeIn ? EASE_IN : 0) | (easeOut ? EASE_OUT : 0)));
+			count++;
+			return this;
+		}
+
+		/**
+		 * Add a key from rotation[rotationOffset..+2] and the same of position,
+		 * with EASE_IN and EASE_OUT flags, without allocating
+		 */
+		public Builder add(int frame, float[] rotation, int rotationOffset, float[] position, int positionOffset, int eases) {
+			reserve(frame);
+			keys.frames[count] = frame;
+			System.arraycopy(rotation, rotationOffset, keys.rotations, count * 3, 3);
+			System.arraycopy(position, positionOffset, keys.positions, count * 3, 3);
+			keys.eases[count] = (byte) eases;
+			count++;
+			return this;
+		}
+
+		private void reserve(int frame) {
+			if (count == keys.capacity()) {
+				Storage grown = new Storage(count * 2);
+				copyRange(keys, 0, grown, 0, count);
+				keys = grown;
+			}
+			if (count > 0 && frame <= keys.frames[count - 1]) sorted = false;
+		}
+
+		/**
+		 * Answers the track. Where several keys were added at one frame, the
+		 * last one wins. I can't be used afterwards
+		 */
+		public KeyframeTrack build() {
+			Storage result = keys;
+			int length = count;
+			if (!sorted) {
+				// stable sort of slot indices by frame, then keep the last of each run
+				Integer[] order = new Integer[count];
+				for (int i = 0; i < count; i++) order[i] = i;
+				final int[] frames = keys.frames;
+				Arrays.sort(order, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						return frames[a] < frames[b] ? -1 : (frames[a] == frames[b] ? 0 : 1);
+					}
+				});
+				result = new Storage(count);
+				length = 0;
+				for (int i = 0; i < count; i++) {
+					int slot = order[i];
+					if (length > 0 && result.frames[length - 1] == frames[slot]) length--;
+					copyRange(keys, slot, result, length, 1);
+					length++;
+				}
+			}
+			keys = null;
+			return new KeyframeTrack(result, length);
+		}
+	}
+}
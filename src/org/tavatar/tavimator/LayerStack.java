@@ -0,0 +1,386 @@
+package org.tavatar.tavimator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * I compose animations into one pose per frame: a stack of layers, each an
+ * animation placed at a start frame, with a weight, fades at its ends, and a
+ * mode. An OVERRIDE layer blends the pose so far toward its own by its
+ * weight, so a layer fading in over another crossfades them. An ADDITIVE
+ * layer adds its motion relative to its first frame, like breathing on top
+ * of a walk. Rotations blend as quaternions, by slerp, so joints turn the
+ * short way round; positions blend linearly.
+ *
+ * My joints are my base animation's (see Animation.getKeyedNodes), and each
+ * layer's joints are matched to them by name when it's added. Layers sample
+ * into their own buffers, allocated with them, so evaluating a frame doesn't
+ * allocate and stays cheap enough to run live with several layers. The
+ * result is drawn by FlatSkeleton, or baked into a new animation.
+ *
+ * Evaluate and bake from one thread at a time, as they share the pose
+ * buffers. Layers may be added, removed and reweighted from another; each
+ * evaluate sees one version of the list
+ *
+ * @author tapple
+ */
+public class LayerStack implements PoseSource {
+	private static final String TAG = "LayerStack";
+
+	public enum Mode {
+		/** Blend toward this layer's pose by its weight */
+		OVERRIDE,
+		/** Add this layer's motion since its first frame, scaled by its weight */
+		ADDITIVE
+	}
+
+	/**
+	 * One animation in the stack
+	 */
+	public static final class Layer {
+		public final Animation animation;
+		public final Mode mode;
+		/** the stack frame this layer's first frame plays at */
+		public final int start;
+
+		private volatile float weight = 1;
+		private volatile int fadeIn;
+		private volatile int fadeOut;
+		private volatile boolean loop;
+
+		// per stack joint: this layer's node of the same name, or null, and
+		// the order of its rotation channels
+		private final BVHNode[] nodes;
+		private final int[] orders;
+		// the sampled pose, a quaternion and a position per stack joint, and
+		// for ADDITIVE, the pose at my first frame
+		private final float[] rotations;
+		private final float[] positions;
+		private final float[] referenceRotations;
+		private final float[] referencePositions;
+
+		private Layer(Animation animation, Mode mode, int start, BVHNode[] joints) {
+			this.animation = animation;
+			this.mode = mode;
+			this.start = start;
+			nodes = new BVHNode[joints.length];
+			orders = new int[joints.length * 3];
+			BVHNode[] own = animation.getKeyedNodes();
+			for (int j = 0; j < joints.length; j++) {
+				// the position first in both, whatever it's named
+				if (j == 0) nodes[j] = own[0];
+				for (int k = 1; j > 0 && k < own.length; k++) {
+					if (own[k].name().equals(joints[j].name())) nodes[j] = own[k];
+				}
+				if (nodes[j] != null) nodes[j].getRotationOrder(orders, j * 3);
+			}
+			rotations = new float[joints.length * 4];
+			positions = new float[joints.length * 3];
+			referenceRotations = new float[joints.length * 4];
+			referencePositions = new float[joints.length * 3];
+		}
+
+		public float getWeight() {
+			return weight;
+		}
+
+		public Layer setWeight(float weight) {
+			this.weight = weight;
+			return this;
+		}
+
+		/**
+		 * Rise from no weight at my start to full weight frames later
+		 */
+		public Layer setFadeIn(int frames) {
+			fadeIn = frames;
+			return this;
+		}
+
+		/**
+		 * Fall to no weight over my last frames, and stay out after them.
+		 * Without a fade out, my last frame holds
+		 */
+		public Layer setFadeOut(int frames) {
+			fadeOut = frames;
+			return this;
+		}
+
+		/**
+		 * Repeat from my start on; fades out don't apply
+		 */
+		public Layer setLoop(boolean loop) {
+			this.loop = loop;
+			return this;
+		}
+
+		/**
+		 * Answers my weight at the stack frame, fades included
+		 */
+		public float weightAt(int frame) {
+			int local = frame - start;
+			if (local < 0) return 0;
+			int length = animation.getNumberOfFrames();
+			float result = weight;
+			if (fadeIn > 0 && local < fadeIn) result *= (float) local / fadeIn;
+			if (!loop && fadeOut > 0) {
+				int left = length - 1 - local;
+				if (left < 0) return 0;
+				if (left < fadeOut) result *= (float) left / fadeOut;
+			}
+			return result;
+		}
+
+		/**
+		 * Answers my frame showing at the stack frame
+		 */
+		public int frameAt(int frame) {
+			int local = frame - start;
+			int length = Math.max(1, animation.getNumberOfFrames());
+			if (loop) return (local % length + length) % length;
+			return Math.max(0, Math.min(length - 1, local));
+		}
+
+		/**
+		 * Answers the stack frame after my last one, or Integer.MAX_VALUE if
+		 * I loop
+		 */
+		public int end() {
+			return loop ? Integer.MAX_VALUE : start + animation.getNumberOfFrames();
+		}
+
+		private void sample(int frame, float[] rotations, float[] positions, float[] euler) {
+			for (int j = 0; j < nodes.length; j++) {
+				if (nodes[j] == null) continue;
+				nodes[j].getTrack().evaluate(frame, euler, 0, positions, j * 3);
+				Quaternion.fromEuler(rotations, j * 4, euler, 0, orders, j * 3);
+			}
+		}
+	}
+
+	private final Animation base;
+	private final BVHNode[] joints;
+	private final int[] orders;
+	// replaced, never modified, on every change
+	private volatile Layer[] layers = new Layer[0];
+
+	/** the evaluated pose: a unit quaternion per joint, 4 floats each */
+	public final float[] rotations;
+	/** the evaluated pose: a position per joint, 3 floats each */
+	public final float[] positions;
+
+	// evaluate's temporaries
+	private final float[] euler = new float[3];
+	private final float[] delta = new float[4];
+
+	// the part to joint map for the skeleton last drawn
+	private FlatSkeleton mappedSkeleton;
+	private int[] partJoints;
+
+	public LayerStack(Animation base) {
+		this.base = base;
+		joints = base.getKeyedNodes();
+		orders = new int[joints.length * 3];
+		for (int j = 0; j < joints.length; j++) joints[j].getRotationOrder(orders, j * 3);
+		rotations = new float[joints.length * 4];
+		positions = new float[joints.length * 3];
+	}
+
+	/**
+	 * Answers a stack playing a, then fading into b at frame over frames
+	 */
+	public static LayerStack crossfade(Animation a, Animation b, int frame, int frames) {
+		LayerStack stack = new LayerStack(a);
+		stack.addLayer(a, Mode.OVERRIDE, 0);
+		stack.addLayer(b, Mode.OVERRIDE, frame).setFadeIn(frames);
+		return stack;
+	}
+
+	public Animation getBase() {
+		return base;
+	}
+
+	@Override
+	public int getJointCount() {
+		return joints.length;
+	}
+
+	@Override
+	public BVHNode getJoint(int j) {
+		return joints[j];
+	}
+
+	/**
+	 * Add a layer on top of the others
+	 */
+	public synchronized Layer addLayer(Animation animation, Mode mode, int start) {
+		Layer layer = new Layer(animation, mode, start, joints);
+		Layer[] grown = new Layer[layers.length + 1];
+		System.arraycopy(layers, 0, grown, 0, layers.length);
+		grown[layers.length] = layer;
+		layers = grown;
+		return layer;
+	}
+
+	public synchronized void removeLayer(Layer layer) {
+		Layer[] current = layers;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] != layer) continue;
+			Layer[] shrunk = new Layer[current.length - 1];
+			System.arraycopy(current, 0, shrunk, 0, i);
+			System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+			layers = shrunk;
+			return;
+		}
+	}
+
+	public int getLayerCount() {
+		return layers.length;
+	}
+
+	public Layer getLayer(int i) {
+		return layers[i];
+	}
+
+	/**
+	 * Answers the stack frame after the last layer's last frame, counting
+	 * looping layers as long as their animations
+	 */
+	public int getNumberOfFrames() {
+		int frames = 1;
+		for (Layer layer : layers) {
+			frames = Math.max(frames, layer.start + layer.animation.getNumberOfFrames());
+		}
+		return frames;
+	}
+
+	/**
+	 * Blend every layer's pose at the stack frame into rotations and
+	 * positions. I don't allocate
+	 */
+	public void evaluate(int frame) {
+		for (int j = 0; j < joints.length; j++) Quaternion.setIdentity(rotations, j * 4);
+		Arrays.fill(positions, 0.0f);
+
+		for (Layer layer : layers) {
+			float weight = layer.weightAt(frame);
+			if (weight <= 0) continue;
+			layer.sample(layer.frameAt(frame), layer.rotations, layer.positions, euler);
+			if (layer.mode == Mode.ADDITIVE) {
+				layer.sample(0, layer.referenceRotations, layer.referencePositions, euler);
+			}
+			for (int j = 0; j < joints.length; j++) {
+				if (layer.nodes[j] == null) continue;
+				int q = j * 4;
+				int p = j * 3;
+				if (layer.mode == Mode.OVERRIDE) {
+					Quaternion.slerp(rotations, q, rotations, q, layer.rotations, q, Math.min(weight, 1));
+					for (int axis = 0; axis < 3; axis++) {
+						positions[p + axis] += (layer.positions[p + axis] - positions[p + axis]) * Math.min(weight, 1);
+					}
+				} else {
+					// the layer's turn since its first frame, scaled by weight
+					Quaternion.conjugate(delta, 0, layer.referenceRotations, q);
+					Quaternion.postMultiply(delta, 0, layer.rotations, q);
+					Quaternion.normalize(delta, 0);
+					if (weight != 1) {
+						// the short way round
+						if (delta[Quaternion.VW] < 0) {
+							for (int i = 0; i < 4; i++) delta[i] = -delta[i];
+						}
+						scaleRotation(delta, weight);
+					}
+					Quaternion.postMultiply(rotations, q, delta, 0);
+					for (int axis = 0; axis < 3; axis++) {
+						positions[p + axis] += (layer.positions[p + axis] - layer.referencePositions[p + axis]) * weight;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scale the angle of unit quaternion q, with a non-negative w, by weight,
+	 * which may be more than 1
+	 */
+	private static void scaleRotation(float[] q, float weight) {
+		float sin = (float) Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2]);
+		if (sin < 1e-6f) return;
+		float half = (float) Math.atan2(sin, q[Quaternion.VW]) * weight;
+		float scale = (float) Math.sin(half) / sin;
+		q[0] *= scale;
+		q[1] *= scale;
+		q[2] *= scale;
+		q[Quaternion.VW] = (float) Math.cos(half);
+	}
+
+	/**
+	 * Write joint j's evaluated rotation as Euler angles in its own channel
+	 * order into euler[offset..offset+2]
+	 */
+	public void getEuler(int j, float[] euler, int offset) {
+		Quaternion.toEuler(euler, offset, rotations, j * 4, orders, j * 3);
+	}
+
+	/**
+	 * Answers, for each part of the skeleton, my joint posing it, or -1. Kept
+	 * until asked about another skeleton
+	 */
+	public int[] partJoints(FlatSkeleton skeleton) {
+		if (skeleton != mappedSkeleton) {
+			int[] map = new int[skeleton.count];
+			for (int i = 0; i < skeleton.count; i++) {
+				map[i] = -1;
+				for (int j = 1; j < joints.length; j++) {
+					if (joints[j] == skeleton.nodes[i]) map[i] = j;
+				}
+			}
+			partJoints = map;
+			mappedSkeleton = skeleton;
+		}
+		return partJoints;
+	}
+
+	/**
+	 * As a PoseSource: evaluate, then copy out the pose as Euler angles
+	 */
+	@Override
+	public void evaluate(int frame, float[] rotations, float[] positions, int offset) {
+		evaluate(frame);
+		for (int j = 0; j < joints.length; j++) getEuler(j, rotations, offset + j * 3);
+		System.arraycopy(this.positions, 0, positions, offset, joints.length * 3);
+	}
+
+	/**
+	 * No: evaluating shares my pose buffers
+	 */
+	@Override
+	public boolean isStateless() {
+		return false;
+	}
+
+	/**
+	 * Answers a new animation of frames frames holding my evaluated pose, at
+	 * my base animation's frame rate, baked within the default tolerances
+	 * (see Baker)
+	 */
+	public Animation bake(int frames) throws IOException, InterruptedException, ExecutionException {
+		KeyframeTrack[] baked = Baker.bake(this, 0, frames,
+				Baker.DEFAULT_ROTATION_TOLERANCE, Baker.DEFAULT_POSITION_TOLERANCE);
+		Animation animation = base.blank();
+		BVHNode[] targets = animation.getKeyedNodes();
+		KeyframeTrack[] tracks = new KeyframeTrack[targets.length];
+		for (int t = 0; t < targets.length; t++) {
+			// each target's joint here, by name, the position first
+			tracks[t] = t == 0 ? baked[0] : targets[t].getTrack();
+			for (int j = 1; t > 0 && j < joints.length; j++) {
+				if (joints[j].name().equals(targets[t].name())) tracks[t] = baked[j];
+			}
+		}
+		animation.setTracks(tracks, frames);
+		animation.setFPS(base.fps());
+		animation.getUndoHistory().clear();
+		return animation;
+	}
+}
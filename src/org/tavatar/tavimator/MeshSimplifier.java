@@ -0,0 +1,97 @@
+package org.tavatar.tavimator;
+
+/**
+ * I make coarser versions of a triangle mesh by vertex clustering: the mesh's
+ * bounding box is cut into a grid, every vertex moves to the average of the
+ * vertices sharing its cell, and triangles left with two corners in one cell
+ * are dropped. It's crude next to edge collapse, but it's fast enough to run
+ * at load and good enough for parts a few dozen pixels tall.
+ *
+ * Meshes are unindexed triangles, 3 floats per position and per normal, as
+ * SLPartsFemale stores them
+ *
+ * @author tapple
+ */
+public class MeshSimplifier {
+	private static final String TAG = "MeshSimplifier";
+
+	/** the simplified triangles' positions */
+	public float[] positions;
+	/** the simplified triangles' normals */
+	public float[] normals;
+	/** the number of vertices in positions and normals */
+	public int vertexCount;
+
+	/**
+	 * Simplify the vertexCount vertices from offset (in vertices) of the given
+	 * arrays, by clustering on a grid cells wide along the box's longest
+	 * side. The result replaces my positions, normals and vertexCount
+	 *
+	 * @param bounds the vertices' box, as {minX, minY, minZ, maxX, maxY, maxZ}
+	 */
+	public void cluster(float[] sourcePositions, float[] sourceNormals, int offset, int vertexCount,
+			float[] bounds, int cells) {
+		float size = 0;
+		for (int axis = 0; axis < 3; axis++) size = Math.max(size, bounds[axis + 3] - bounds[axis]);
+		float cellSize = size > 0 ? size / cells : 1;
+		int[] dimensions = new int[3];
+		for (int axis = 0; axis < 3; axis++) {
+			dimensions[axis] = (int) ((bounds[axis + 3] - bounds[axis]) / cellSize) + 1;
+		}
+		int cellCount = dimensions[0] * dimensions[1] * dimensions[2];
+
+		// each vertex's cell, and the sums that make each cell's representative
+		int[] cellOf = new int[vertexCount];
+		float[] positionSums = new float[cellCount * 3];
+		float[] normalSums = new float[cellCount * 3];
+		int[] counts = new int[cellCount];
+		for (int v = 0; v < vertexCount; v++) {
+			int source = (offset + v) * 3;
+			int cell = 0;
+			for (int axis = 0; axis < 3; axis++) {
+				int i = (int) ((sourcePositions[source + axis] - bounds[axis]) / cellSize);
+				i = Math.max(0, Math.min(i, dimensions[axis] - 1));
+				cell = cell * dimensions[axis] + i;
+			}
+			cellOf[v] = cell;
+			counts[cell]++;
+			for (int axis = 0; axis < 3; axis++) {
+				positionSums[cell * 3 + axis] += sourcePositions[source + axis];
+				normalSums[cell * 3 + axis] += sourceNormals[source + axis];
+			}
+		}
+		for (int cell = 0; cell < cellCount; cell++) {
+			if (counts[cell] == 0) continue;
+			int c = cell * 3;
+			for (int axis = 0; axis < 3; axis++) positionSums[c + axis] /= counts[cell];
+			float length = (float) Math.sqrt(normalSums[c] * normalSums[c]
+					+ normalSums[c + 1] * normalSums[c + 1] + normalSums[c + 2] * normalSums[c + 2]);
+			if (length > 0) {
+				for (int axis = 0; axis < 3; axis++) normalSums[c + axis] /= length;
+			}
+		}
+
+		// keep the triangles whose corners are still in three different cells
+		int kept = 0;
+		for (int v = 0; v + 2 < vertexCount; v += 3) {
+			if (!collapsed(cellOf[v], cellOf[v + 1], cellOf[v + 2])) kept++;
+		}
+		positions = new float[kept * 9];
+		normals = new float[kept * 9];
+		this.vertexCount = kept * 3;
+		int out = 0;
+		for (int v = 0; v + 2 < vertexCount; v += 3) {
+			if (collapsed(cellOf[v], cellOf[v + 1], cellOf[v + 2])) continue;
+			for (int corner = 0; corner < 3; corner++) {
+				int c = cellOf[v + corner] * 3;
+				System.arraycopy(positionSums, c, positions, out, 3);
+				System.arraycopy(normalSums, c, normals, out, 3);
+				out += 3;
+			}
+		}
+	}
+
+	private static boolean collapsed(int a, int b, int c) {
+		return a == b || b == c || a == c;
+	}
+}
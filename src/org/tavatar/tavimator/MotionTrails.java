@@ -0,0 +1,348 @@
+package org.tavatar.tavimator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * I am the world space paths of a few joints (hands, feet, hip by default)
+ * over every frame of the animation, for drawing as line strips.
+ *
+ * The simulation thread calls update with the current FlatSkeleton. I compare
+ * each relevant joint's keyframe track with the one I last saw, and only the
+ * frames an edit can affect (see KeyframeTrack.differingFrames) are
+ * recomputed. That happens in the background: my own thread collects the
+ * requested ranges and evaluates them in parallel chunks on Workers. Finished
+ * points are copied into a vertex buffer on the GL thread, again only the
+ * changed range.
+ *
+ * @author tapple
+ */
+public class MotionTrails {
+	private static final String TAG = "MotionTrails";
+
+	public static final String[] DEFAULT_JOINTS = {"hip", "lHand", "rHand", "lFoot", "rFoot"};
+
+	/** fewest frames evaluated per background chunk */
+	private static final int MIN_CHUNK = 16;
+
+	private final AnimationView view;
+
+	private volatile boolean enabled;
+	private volatile String[] jointNames = DEFAULT_JOINTS;
+
+	// simulation thread state: what the trails were last computed from
+	private FlatSkeleton skeleton;
+	private String[] layoutNames;
+	private int layoutFrames;
+	private float layoutScale;
+	private int[] parts;             // skeleton index of each trail
+	private boolean[] relevant;      // skeleton parts that move some trail
+	private KeyframeTrack[] seenTracks;
+	private KeyframeTrack seenPositions;
+	private final int[] range = new int[2];
+
+	// results, guarded by this
+	private int generation;
+	private FlatSkeleton jobSkeleton;
+	private int[] jobParts;
+	private int frames;
+	private float[] points;          // ((trail * frames) + frame) * 3
+	private boolean complete;        // every frame computed at least once
+	private int pendingFrom = Integer.MAX_VALUE;
+	private int pendingTo = -1;
+	private boolean jobScheduled;
+	// started by the first request, and again after shutdown
+	private ExecutorService coordinator;
+	private int dirtyFrom = Integer.MAX_VALUE;
+	private int dirtyTo = -1;
+
+	// GL thread state
+	private FloatBuffer vertices;
+	private int buffer;
+	private int uploadedGeneration = -1;
+	private int uploadedTrails;
+
+	public MotionTrails(AnimationView view) {
+		this.view = view;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Start or stop computing trails. Callable from any thread
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Choose the joints to trace, by name. Callable from any thread
+	 */
+	public void setJoints(String... names) {
+		jointNames = names.clone();
+	}
+
+	/**
+	 * Schedule recomputing whatever changed since the last call. Called by the
+	 * simulation thread for every pose
+	 */
+	public void update(FlatSkeleton skeleton) {
+		if (!enabled || skeleton == null) return;
+		Animation anim = skeleton.animation;
+		String[] names = jointNames;
+		if (skeleton != this.skeleton || names != layoutNames
+				|| anim.getNumberOfFrames() != layoutFrames || anim.getAvatarScale() != layoutScale) {
+			layout(skeleton, names);
+			return;
+		}
+
+		int from = Integer.MAX_VALUE;
+		int to = -1;
+		KeyframeTrack positions = anim.getNode(0).getTrack();
+		if (seenPositions.differingFrames(positions, range)) {
+			from = range[0];
+			to = range[1];
+		}
+		seenPositions = positions;
+		for (int i = 0; i < skeleton.count; i++) {
+			if (!relevant[i]) continue;
+			KeyframeTrack track = skeleton.nodes[i].getTrack();
+			if (seenTracks[i].differingFrames(track, range)) {
+				from = Math.min(from, range[0]);
+				to = Math.max(to, range[1]);
+			}
+			seenTracks[i] = track;
+		}
+		if (to >= 0) request(from, Math.min(to, layoutFrames - 1));
+	}
+
+	private void layout(FlatSkeleton skeleton, String[] names) {
+		Animation anim = skeleton.animation;
+		this.skeleton = skeleton;
+		layoutNames = names;
+		layoutFrames = anim.getNumberOfFrames();
+		layoutScale = anim.getAvatarScale();
+
+		int[] found = new int[names.length];
+		int trails = 0;
+		for (String name : names) {
+			for (int i = 0; i < skeleton.count; i++) {
+				if (skeleton.nodes[i].name().equals(name)) {
+					found[trails++] = i;
+					break;
+				}
+			}
+		}
+		parts = new int[trails];
+		System.arraycopy(found, 0, parts, 0, trails);
+
+		// a part moves a trail if it is the traced joint or one of its ancestors
+		relevant = new boolean[skeleton.count];
+		for (int part : parts) {
+			for (int i = part; i >= 0; i = skeleton.parents[i]) relevant[i] = true;
+		}
+		seenTracks = new KeyframeTrack[skeleton.count];
+		for (int i = 0; i < skeleton.count; i++) seenTracks[i] = skeleton.nodes[i].getTrack();
+		seenPositions = anim.getNode(0).getTrack();
+
+		synchronized (this) {
+			generation++;
+			jobSkeleton = skeleton;
+			jobParts = parts;
+			frames = layoutFrames;
+			points = new float[trails * frames * 3];
+			complete = false;
+			dirtyFrom = Integer.MAX_VALUE;
+			dirtyTo = -1;
+			pendingFrom = Integer.MAX_VALUE;
+			pendingTo = -1;
+		}
+		request(0, layoutFrames - 1);
+	}
+
+	/**
+	 * Let my thread end once it has finished what was requested. My view
+	 * calls this when it goes away; a later request starts another
+	 */
+	public synchronized void shutdown() {
+		if (coordinator != null) coordinator.shutdown();
+		coordinator = null;
+	}
+
+	private synchronized void request(int from, int to) {
+		pendingFrom = Math.min(pendingFrom, Math.max(from, 0));
+		pendingTo = Math.max(pendingTo, to);
+		if (jobScheduled) return;
+		jobScheduled = true;
+		if (coordinator == null) coordinator = Executors.newSingleThreadExecutor();
+		coordinator.execute(new Runnable() {
+			@Override public void run() {
+				computePending();
+			}
+		});
+	}
+
+	// coordinator thread: keep computing until no requests are left
+	private void computePending() {
+		while (true) {
+			final FlatSkeleton skeleton;
+			final int[] parts;
+			final int gen;
+			final int from;
+			final int to;
+			synchronized (this) {
+				if (pendingTo < pendingFrom) {
+					jobScheduled = false;
+					return;
+				}
+				skeleton = jobSkeleton;
+				parts = jobParts;
+				gen = generation;
+				from = pendingFrom;
+				to = pendingTo;
+				pendingFrom = Integer.MAX_VALUE;
+				pendingTo = -1;
+			}
+
+			final int length = to - from + 1;
+			final float[] result = new float[parts.length * length * 3];
+			try {
+				Workers.forEachChunk(from, to + 1, Workers.chunkSize(length, MIN_CHUNK), new Workers.Chunk() {
+					@Override public void run(int chunkFrom, int chunkTo) {
+						FlatSkeleton.Scratch scratch = new FlatSkeleton.Scratch();
+						float[] transforms = new float[skeleton.count * 16];
+						for (int frame = chunkFrom; frame < chunkTo; frame++) {
+							skeleton.evaluate(frame, transforms, 0, scratch);
+							for (int trail = 0; trail < parts.length; trail++) {
+								// the joint's origin
+								System.arraycopy(transforms, parts[trail] * 16 + 12,
+										result, (trail * length + frame - from) * 3, 3);
+							}
+						}
+					}
+				});
+			} catch (Exception e) {
+				Log.e(TAG, "could not compute motion trails", e);
+				synchronized (this) {
+					jobScheduled = false;
+				}
+				return;
+			}
+
+			synchronized (this) {
+				// a new layout makes these results meaningless
+				if (gen != generation) continue;
+				for (int trail = 0; trail < parts.length; trail++) {
+					System.arraycopy(result, trail * length * 3, points, (trail * frames + from) * 3, length * 3);
+				}
+				if (from == 0 && to == frames - 1) complete = true;
+				dirtyFrom = Math.min(dirtyFrom, from);
+				dirtyTo = Math.max(dirtyTo, to);
+			}
+			view.repaint();
+		}
+	}
+
+	/**
+	 * Forget my GL objects without deleting them. Call from onSurfaceCreated
+	 */
+	public void contextLost() {
+		buffer = 0;
+		uploadedGeneration = -1;
+	}
+
+	/**
+	 * Bring my vertex buffer up to date with the computed points, and bind it
+	 * to the given position attribute. GL thread only
+	 *
+	 * @return the number of frames per trail, or 0 if there is nothing to draw
+	 */
+	public int bind(int positionHandle) {
+		if (!enabled) return 0;
+		int trails;
+		int trailFrames;
+		int from;
+		int to;
+		boolean full;
+		synchronized (this) {
+			if (!complete) return 0;
+			trails = jobParts.length;
+			trailFrames = frames;
+			full = uploadedGeneration != generation || vertices == null
+					|| (buffer == 0 && Build.VERSION.SDK_INT >= 9);
+			if (full) {
+				if (vertices == null || vertices.capacity() < points.length) {
+					vertices = ByteBuffer.allocateDirect(points.length * 4)
+							.order(ByteOrder.nativeOrder()).asFloatBuffer();
+				}
+				vertices.position(0);
+				vertices.put(points);
+				from = 0;
+				to = trailFrames - 1;
+				uploadedGeneration = generation;
+			} else {
+				from = dirtyFrom;
+				to = dirtyTo;
+				for (int trail = 0; trail < trails && to >= from; trail++) {
+					int start = (trail * trailFrames + from) * 3;
+					vertices.position(start);
+					vertices.put(points, start, (to - from + 1) * 3);
+				}
+			}
+			dirtyFrom = Integer.MAX_VALUE;
+			dirtyTo = -1;
+		}
+		uploadedTrails = trails;
+
+		// glVertexAttribPointer with a buffer offset needs API 9
+		if (Build.VERSION.SDK_INT < 9) {
+			vertices.position(0);
+			GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 0, vertices);
+			GLES20.glEnableVertexAttribArray(positionHandle);
+			return trailFrames;
+		}
+
+		if (buffer == 0) {
+			int[] handle = new int[1];
+			GLES20.glGenBuffers(1, handle, 0);
+			buffer = handle[0];
+		}
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+		if (full) {
+			vertices.position(0);
+			GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, trails * trailFrames * 3 * 4, vertices, GLES20.GL_DYNAMIC_DRAW);
+		} else if (to >= from) {
+			for (int trail = 0; trail < trails; trail++) {
+				int start = (trail * trailFrames + from) * 3;
+				vertices.position(start);
+				GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, start * 4, (to - from + 1) * 3 * 4, vertices);
+			}
+		}
+		GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 0, 0);
+		GLES20.glEnableVertexAttribArray(positionHandle);
+		return trailFrames;
+	}
+
+	/**
+	 * Answers how many trails the last bind made available
+	 */
+	public int getTrailCount() {
+		return uploadedTrails;
+	}
+
+	/**
+	 * Unbind my vertex buffer after drawing. GL thread only
+	 */
+	public void unbind() {
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+	}
+}
@@ -0,0 +1,258 @@
+package org.tavatar.tavimator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import org.tavatar.tavimator.R;
+/**
+ * I render poses without a screen, into an EGL pbuffer of a fixed size, with
+ * the same shaders, mesh and FlatSkeleton transforms as AnimationRenderer, and
+ * read the pixels back. I have my own GL context, which is current on the
+ * thread that called start until release; use me only from that thread. Any
+ * number of us can run at once on different threads
+ *
+ * @author tapple
+ */
+public class OffscreenRenderer implements PartsProgram {
+	private static final String TAG = "OffscreenRenderer";
+
+	// EGL 1.3 and ES 2 constants missing from EGL10
+	private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+	private static final int EGL_OPENGL_ES2_BIT = 4;
+
+	private final Context context;
+	private final int width;
+	private final int height;
+
+	private EGL10 egl;
+	private EGLDisplay display;
+	private EGLContext eglContext;
+	private EGLSurface surface;
+
+	private int program;
+	private int vpMatrixHandle;
+	private int viewMatrixHandle;
+	private int modelMatrixHandle;
+	private int colorHandle;
+	private int lightingHandle;
+	private int fogColorHandle;
+	private int positionHandle;
+	private int normalHandle;
+
+	private final SLPartsRenderer parts = new SLPartsFemale(this);
+	private final FrameStats frameStats = new FrameStats();
+
+	private final float[] projectionMatrix = new float[16];
+	private final float[] viewMatrix = new float[16];
+	private final float[] vpMatrix = new float[16];
+	private final float[] transforms = new float[PoseSnapshot.MAX_PARTS * 16];
+	private final FlatSkeleton.Scratch scratch = new FlatSkeleton.Scratch();
+
+	private final float[] backgroundColor = {0, 0, 0, 0};
+	private final ByteBuffer readBuffer;
+	private final ByteBuffer pixels;
+	private final byte[] row;
+
+	public OffscreenRenderer(Context context, int width, int height) {
+		this.context = context;
+		this.width = width;
+		this.height = height;
+		readBuffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+		pixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+		row = new byte[width * 4];
+
+		// the same projection AnimationRenderer uses, and its default camera
+		// (see AnimationView.resetCamera)
+		float ratio = (float) width / height;
+		Matrix.frustumM(projectionMatrix, 0, -ratio, ratio, -1, 1, 1, 2000);
+		setCamera(0, 40, 100, 0, 40, 0);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Look from the eye point at the given point, y up
+	 */
+	public void setCamera(float eyeX, float eyeY, float eyeZ, float lookX, float lookY, float lookZ) {
+		Matrix.setLookAtM(viewMatrix, 0, eyeX, eyeY, eyeZ, lookX, lookY, lookZ, 0, 1, 0);
+	}
+
+	/**
+	 * The color behind the figure; transparent black unless set
+	 */
+	public void setBackgroundColor(float r, float g, float b, float a) {
+		backgroundColor[0] = r;
+		backgroundColor[1] = g;
+		backgroundColor[2] = b;
+		backgroundColor[3] = a;
+	}
+
+	/**
+	 * Create my GL context and pbuffer, make them current on this thread, and
+	 * load the shaders and mesh
+	 *
+	 * @throws RuntimeException if EGL can't give me an ES 2 pbuffer
+	 */
+	public void start() {
+		egl = (EGL10) EGLContext.getEGL();
+		display = egl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+		if (display == EGL10.EGL_NO_DISPLAY || !egl.eglInitialize(display, new int[2])) {
+			throw new RuntimeException("no EGL display: " + egl.eglGetError());
+		}
+
+		int[] configAttributes = {
+				EGL10.EGL_RED_SIZE, 8,
+				EGL10.EGL_GREEN_SIZE, 8,
+				EGL10.EGL_BLUE_SIZE, 8,
+				EGL10.EGL_ALPHA_SIZE, 8,
+				EGL10.EGL_DEPTH_SIZE, 16,
+				EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+				EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+				EGL10.EGL_NONE};
+		EGLConfig[] configs = new EGLConfig[1];
+		int[] configCount = new int[1];
+		if (!egl.eglChooseConfig(display, configAttributes, configs, 1, configCount) || configCount[0] == 0) {
+			release();
+			throw new RuntimeException("no EGL config for an ES 2 pbuffer: " + egl.eglGetError());
+		}
+
+		eglContext = egl.eglCreateContext(display, configs[0], EGL10.EGL_NO_CONTEXT,
+				new int[] {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE});
+		surface = egl.eglCreatePbufferSurface(display, configs[0],
+				new int[] {EGL10.EGL_WIDTH, width, EGL10.EGL_HEIGHT, height, EGL10.EGL_NONE});
+		if (eglContext == EGL10.EGL_NO_CONTEXT || surface == EGL10.EGL_NO_SURFACE
+				|| !egl.eglMakeCurrent(display, surface, surface, eglContext)) {
+			int error = egl.eglGetError();
+			release();
+			throw new RuntimeException("could not make an ES 2 pbuffer current: " + error);
+		}
+
+		GLES20.glViewport(0, 0, width, height);
+		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+		GLES20.glDisable(GLES20.GL_DITHER);
+		createProgram();
+		parts.load();
+		Log.d(TAG, "started " + width + "x" + height);
+	}
+
+	private void createProgram() {
+		program = new ProgramCache(context).program(R.raw.color_vertex_shader, R.raw.color_fragment_shader,
+				new String[] {"a_Position",  "a_Color", "a_Normal"});
+		GLES20.glUseProgram(program);
+
+		vpMatrixHandle = GLES20.glGetUniformLocation(program, "u_VPMatrix");
+		viewMatrixHandle = GLES20.glGetUniformLocation(program, "u_ViewMatrix");
+		modelMatrixHandle = GLES20.glGetUniformLocation(program, "u_ModelMatrix");
+		colorHandle = GLES20.glGetUniformLocation(program, "u_Color");
+		lightingHandle = GLES20.glGetUniformLocation(program, "u_Lighting");
+		positionHandle = GLES20.glGetAttribLocation(program, "a_Position");
+		normalHandle = GLES20.glGetAttribLocation(program, "a_Normal");
+		GLES20.glVertexAttrib4f(GLES20.glGetAttribLocation(program, "a_Color"), 1, 1, 1, 1);
+		fogColorHandle = GLES20.glGetUniformLocation(program, "fogColor");
+		GLES20.glUniform1i(lightingHandle, 1);
+	}
+
+	@Override
+	public int getPositionHandle() {
+		return positionHandle;
+	}
+
+	@Override
+	public int getNormalHandle() {
+		return normalHandle;
+	}
+
+	@Override
+	public FrameStats getFrameStats() {
+		return frameStats;
+	}
+
+	/**
+	 * Draw the skeleton's pose at the given frame, replacing whatever I drew
+	 * before
+	 */
+	public void render(FlatSkeleton skeleton, int frame) {
+		GLES20.glClearColor(backgroundColor[0], backgroundColor[1], backgroundColor[2], backgroundColor[3]);
+		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+		// fog toward the background, but opaque, so a clear background
+		// doesn't make the figure translucent
+		GLES20.glUniform4f(fogColorHandle, backgroundColor[0], backgroundColor[1], backgroundColor[2], 1.0f);
+		if (skeleton.count > PoseSnapshot.MAX_PARTS) return;
+
+		skeleton.evaluate(frame, transforms, 0, scratch);
+		GLES20.glUniform4f(colorHandle, 0.6f, 0.5f, 0.5f, 1.0f); // grey peach
+		Matrix.multiplyMM(vpMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+		GLES20.glUniformMatrix4fv(vpMatrixHandle, 1, false, vpMatrix, 0);
+		GLES20.glUniformMatrix4fv(viewMatrixHandle, 1, false, viewMatrix, 0);
+		for (int i = 0; i < skeleton.count; i++) {
+			GLES20.glUniformMatrix4fv(modelMatrixHandle, 1, false, transforms, i * 16);
+			parts.drawPartNamed(skeleton.nodes[i].name());
+		}
+	}
+
+	/**
+	 * Answers what I last rendered as RGBA bytes, top row first. The buffer
+	 * is reused by the next call
+	 */
+	public ByteBuffer readPixels() {
+		readBuffer.position(0);
+		GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, readBuffer);
+
+		// GL's rows run bottom up
+		pixels.position(0);
+		for (int y = height - 1; y >= 0; y--) {
+			readBuffer.position(y * row.length);
+			readBuffer.get(row);
+			pixels.put(row);
+		}
+		pixels.position(0);
+		return pixels;
+	}
+
+	/**
+	 * Answers what I last rendered as a new bitmap
+	 */
+	public Bitmap readBitmap() {
+		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		bitmap.copyPixelsFromBuffer(readPixels());
+		return bitmap;
+	}
+
+	/**
+	 * Free my mesh and GL context. I can't be used again
+	 */
+	public void release() {
+		if (egl == null) return;
+		if (display != null && display != EGL10.EGL_NO_DISPLAY) {
+			egl.eglMakeCurrent(display, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+			if (surface != null && surface != EGL10.EGL_NO_SURFACE) egl.eglDestroySurface(display, surface);
+			if (eglContext != null && eglContext != EGL10.EGL_NO_CONTEXT) egl.eglDestroyContext(display, eglContext);
+			// not eglTerminate: the display is shared with every other context
+			// in the process, on screen or off
+		}
+		if (program != 0) parts.release();
+		egl = null;
+		display = null;
+		surface = null;
+		eglContext = null;
+		program = 0;
+	}
+}
@@ -0,0 +1,94 @@
+package org.tavatar.tavimator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.SparseArray;
+
+/**
+ * I supply the ghost poses for onion skinning: the figure at the frames
+ * around the current one. I evaluate the ghosts through a FlatSkeleton and
+ * keep them, by frame, until the animation is edited, so scrubbing only
+ * evaluates the frames newly scrolled into the window, usually one.
+ *
+ * I live on the simulation thread
+ *
+ * @author tapple
+ */
+public class OnionSkin {
+	private static final String TAG = "OnionSkin";
+
+	/** most ghosts shown on each side of the current frame */
+	public static final int MAX_GHOSTS_PER_SIDE = PoseSnapshot.MAX_GHOSTS / 2;
+
+	// evaluated ghost transforms by frame, each skeleton.count * 16 floats
+	private final SparseArray<float[]> cache = new SparseArray<float[]>();
+	private final List<float[]> spare = new ArrayList<float[]>();
+	private FlatSkeleton cachedSkeleton;
+	private int cachedVersion;
+
+	private final FlatSkeleton.Scratch scratch = new FlatSkeleton.Scratch();
+
+	/**
+	 * Fill in the ghosts of the given snapshot: up to perSide frames before
+	 * and after pose.frame, nearest first, within the animation
+	 */
+	public void fill(PoseSnapshot pose, FlatSkeleton skeleton, int perSide) {
+		pose.ghostCount = 0;
+		if (skeleton == null || perSide <= 0) return;
+		perSide = Math.min(perSide, MAX_GHOSTS_PER_SIDE);
+
+		int version = skeleton.animation.getVersion();
+		if (skeleton != cachedSkeleton || version != cachedVersion) {
+			clear();
+			cachedSkeleton = skeleton;
+			cachedVersion = version;
+		}
+
+		int frames = skeleton.animation.getNumberOfFrames();
+		int length = skeleton.count * 16;
+		for (int distance = 1; distance <= perSide; distance++) {
+			for (int direction = -1; direction <= 1; direction += 2) {
+				int frame = pose.frame + direction * distance;
+				if (frame < 0 || frame >= frames) continue;
+				float[] transforms = cache.get(frame);
+				if (transforms == null) {
+					transforms = obtain(length);
+					skeleton.evaluate(frame, transforms, 0, scratch);
+					cache.put(frame, transforms);
+				}
+				int ghost = pose.ghostCount++;
+				pose.ghostOffsets[ghost] = direction * distance;
+				System.arraycopy(transforms, 0, pose.ghostTransforms, ghost * PoseSnapshot.MAX_PARTS * 16, length);
+			}
+		}
+		evict(pose.frame, perSide);
+	}
+
+	/**
+	 * Forget every cached ghost
+	 */
+	public void clear() {
+		for (int i = 0; i < cache.size(); i++) spare.add(cache.valueAt(i));
+		cache.clear();
+	}
+
+	// keep the cache bounded: drop ghosts well outside the current window
+	private void evict(int frame, int perSide) {
+		int reach = perSide * 4;
+		for (int i = cache.size() - 1; i >= 0; i--) {
+			if (Math.abs(cache.keyAt(i) - frame) > reach) {
+				spare.add(cache.valueAt(i));
+				cache.delete(cache.keyAt(i));
+			}
+		}
+	}
+
+	private float[] obtain(int length) {
+		while (!spare.isEmpty()) {
+			float[] transforms = spare.remove(spare.size() - 1);
+			if (transforms.length == length) return transforms;
+		}
+		return new float[length];
+	}
+}
@@ -0,0 +1,15 @@
+package org.tavatar.tavimator;
+
+/**
+ * I am a shader program SLPartsRenderer can draw parts with: I tell it which
+ * attributes take the positions and normals, and where to count its draw
+ * calls. AnimationRenderer is one on screen, OffscreenRenderer one without a
+ * screen
+ *
+ * @author tapple
+ */
+public interface PartsProgram {
+	int getPositionHandle();
+	int getNormalHandle();
+	FrameStats getFrameStats();
+}
@@ -0,0 +1,238 @@
+package org.tavatar.tavimator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * I am an offscreen, low resolution ID buffer for color picking. The renderer
+ * draws the figure into me with pick colors (see
+ * AnimationRenderer.indexToColor) only when the pose or camera has changed
+ * since my last render, and I keep a CPU copy of the result. Taps and hover
+ * can then be answered from that copy on the UI thread without touching GL.
+ *
+ * I hold 4 bits per channel (RGBA4), the least the pick colors need: each
+ * channel holds one nibble of the index, as n/15, which RGBA4 stores exactly.
+ *
+ * All methods must be called on the GL thread, except indexAt and invalidate
+ *
+ * @author tapple
+ */
+public class PickBuffer {
+	private static final String TAG = "PickBuffer";
+
+	/**
+	 * Answered by indexAt when I have no up-to-date IDs for the current scene
+	 */
+	public static final int NOT_READY = -2;
+
+	/**
+	 * Answered by indexAt for background pixels
+	 */
+	public static final int NO_PART = -1;
+
+	/**
+	 * I am this many times smaller than the screen on each axis. A finger
+	 * covers many more pixels than this
+	 */
+	private static final int DOWNSAMPLE = 4;
+
+	/**
+	 * A CPU copy of my contents, immutable once published
+	 */
+	private static class Snapshot {
+		short[] ids;
+		int width;
+		int height;
+	}
+
+	private int framebuffer;
+	private int colorRenderbuffer;
+	private int depthRenderbuffer;
+
+	private int viewWidth;
+	private int viewHeight;
+	private int width;
+	private int height;
+
+	private ByteBuffer pixels;
+
+	/**
+	 * I alternate between these so a readback never writes into the snapshot
+	 * the UI thread might be looking at
+	 */
+	private final Snapshot[] snapshots = { new Snapshot(), new Snapshot() };
+	private int nextSnapshot = 0;
+	private volatile Snapshot published;
+	private volatile boolean stale = true;
+
+	/**
+	 * Bumped by every invalidate, so a render that was overtaken by an edit
+	 * on the UI thread doesn't publish stale IDs
+	 */
+	private final AtomicInteger generation = new AtomicInteger();
+	private int renderedGeneration;
+
+	// the scene I last rendered
+	private final float[] renderedViewMatrix = new float[16];
+	private Animation renderedAnimation;
+	private int renderedFrame = -1;
+
+	/**
+	 * Forget my GL objects without deleting them. Call from
+	 * onSurfaceCreated, as the old context (and everything in it) is gone
+	 */
+	public void contextLost() {
+		framebuffer = 0;
+		colorRenderbuffer = 0;
+		depthRenderbuffer = 0;
+		invalidate();
+	}
+
+	/**
+	 * (Re)create my framebuffer to match the view size. Call from
+	 * onSurfaceChanged
+	 */
+	public void resize(int viewWidth, int viewHeight) {
+		release();
+		this.viewWidth = viewWidth;
+		this.viewHeight = viewHeight;
+		width = Math.max(1, viewWidth / DOWNSAMPLE);
+		height = Math.max(1, viewHeight / DOWNSAMPLE);
+
+		int[] handles = new int[2];
+		GLES20.glGenFramebuffers(1, handles, 0);
+		framebuffer = handles[0];
+		GLES20.glGenRenderbuffers(2, handles, 0);
+		colorRenderbuffer = handles[0];
+		depthRenderbuffer = handles[1];
+
+		GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, colorRenderbuffer);
+		GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_RGBA4, width, height);
+		GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, depthRenderbuffer);
+		GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, width, height);
+		GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, 0);
+
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+		GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+				GLES20.GL_RENDERBUFFER, colorRenderbuffer);
+		GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
+				GLES20.GL_RENDERBUFFER, depthRenderbuffer);
+		int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+		if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+			Log.e(TAG, "pick framebuffer incomplete: 0x" + Integer.toHexString(status));
+			release();
+		}
+
+		pixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+		for (Snapshot snapshot : snapshots) {
+			snapshot.ids = new short[width * height];
+			snapshot.width = width;
+			snapshot.height = height;
+		}
+		invalidate();
+	}
+
+	public void release() {
+		invalidate();
+		if (framebuffer != 0) {
+			GLES20.glDeleteFramebuffers(1, new int[] {framebuffer}, 0);
+			GLES20.glDeleteRenderbuffers(2, new int[] {colorRenderbuffer, depthRenderbuffer}, 0);
+		}
+		framebuffer = 0;
+		colorRenderbuffer = 0;
+		depthRenderbuffer = 0;
+	}
+
+	public boolean isUsable() {
+		return framebuffer != 0;
+	}
+
+	/**
+	 * Throw away my IDs, for instance because the animation was edited.
+	 * Callable from any thread
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		stale = true;
+		published = null;
+	}
+
+	public boolean isStale() {
+		return stale;
+	}
+
+	/**
+	 * Tell me what is about to be drawn. If it differs from what I last
+	 * rendered, my IDs are no longer valid
+	 */
+	public void updateScene(float[] viewMatrix, Animation animation, int frame) {
+		if (stale) return;
+		if (frame != renderedFrame || animation != renderedAnimation
+				|| !Arrays.equals(viewMatrix, renderedViewMatrix)) {
+			invalidate();
+		}
+	}
+
+	/**
+	 * Redirect drawing into me. The caller must clear and draw the scene in pick
+	 * colors, and then call end
+	 */
+	public void begin(float[] viewMatrix, Animation animation, int frame) {
+		System.arraycopy(viewMatrix, 0, renderedViewMatrix, 0, 16);
+		renderedAnimation = animation;
+		renderedFrame = frame;
+		renderedGeneration = generation.get();
+
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+		GLES20.glViewport(0, 0, width, height);
+		// dithering would corrupt the low bits of the pick colors
+		GLES20.glDisable(GLES20.GL_DITHER);
+	}
+
+	/**
+	 * Read back what was drawn since begin, publish it to the UI thread, and
+	 * restore drawing to the screen
+	 */
+	public void end() {
+		pixels.position(0);
+		GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+		GLES20.glViewport(0, 0, viewWidth, viewHeight);
+
+		Snapshot snapshot = snapshots[nextSnapshot];
+		nextSnapshot = 1 - nextSnapshot;
+		short[] ids = snapshot.ids;
+		pixels.position(0);
+		for (int i = 0; i < ids.length; i++) {
+			int index = AnimationRenderer.colorToIndex(pixels.get(), pixels.get(), pixels.get(), pixels.get());
+			// special case: white (the clear color) is no selection
+			ids[i] = (short)(index == 4095 ? NO_PART : index);
+		}
+
+		if (renderedGeneration != generation.get()) return;
+		stale = false;
+		published = snapshot;
+	}
+
+	/**
+	 * Answers the pick index under the given view coordinates, or NOT_READY if
+	 * I don't have current IDs. Callable from any thread
+	 *
+	 * @param x view x, in pixels from the left
+	 * @param y view y, in pixels from the bottom (GL convention)
+	 */
+	public int indexAt(int x, int y) {
+		Snapshot snapshot = published;
+		if (snapshot == null) return NOT_READY;
+		int px = Math.min(Math.max(x / DOWNSAMPLE, 0), snapshot.width - 1);
+		int py = Math.min(Math.max(y / DOWNSAMPLE, 0), snapshot.height - 1);
+		return snapshot.ids[py * snapshot.width + px];
+	}
+}
@@ -139,6 +139,16 @@ public class PlaybackController {
 	 */
 	private boolean snapToFrames = false;
 
+	/**
+	 * Notified whenever the animation time changes, so views that only redraw
+	 * on demand know when to do so
+	 */
+	public interface OnTimeChangeListener {
+		public void timeChanged(PlaybackController playback);
+	}
+
+	private OnTimeChangeListener timeChangeListener;
+
 	public PlaybackController(Context context) {
 		realTime = SystemClock.uptimeMillis();
 		flinger = new Scroller(context);
@@ -368,6 +378,7 @@ public class PlaybackController {
 	public void update() {
 		if (isFinished()) return;
 
+		float prevAnimTime = animTime;
 		long prevRealTime = realTime;
 		realTime = SystemClock.uptimeMillis();
 		long realTimeDelta = realTime - prevRealTime;
@@ -392,6 +403,7 @@ public class PlaybackController {
 		if (isFinished()) {
 			resetScreenOrigin();
 		}
+		if (animTime != prevAnimTime) timeChanged();
 	}
 
 	public boolean isFinished() {
@@ -423,6 +435,7 @@ public class PlaybackController {
 		animTime = newTime;
 		resetScreenOrigin();
 		checkBoundaryConditions();
+		timeChanged();
 	}
 
 	/**
@@ -435,6 +448,7 @@ public class PlaybackController {
 		snapper.startValue = animTime;
 		snapper.endValue = newTime;
 		snapper.start(duration);
+		timeChanged();
 	}
 
 	public void snapTo(float newTime) {
@@ -452,6 +466,7 @@ public class PlaybackController {
 	 */
 	public void play(float rate) {
 		playbackRate = rate;
+		timeChanged();
 	}
 
 	public void play() {
@@ -504,6 +519,7 @@ public class PlaybackController {
 		x -= xDelta;
 		animTime -= xDelta * screenDensity;
 		checkBoundaryConditions();
+		timeChanged();
 	}
 
 	private int timeToX(float time, boolean roundUp) {
@@ -517,6 +533,7 @@ public class PlaybackController {
 	public void fling(int velocityX, int startY, int velocityY, int minY, int maxY) {
 //		flinger.fling(x, startY, -velocityX, -velocityY, timeToX(playbackStartTime(), false), timeToX(playbackEndTime(), true), minY, maxY);
 		flinger.fling(x, startY, -velocityX, -velocityY, Integer.MIN_VALUE, Integer.MAX_VALUE, minY, maxY);
+		timeChanged();
 	}
 
 	public void fling(int velocityX) {
@@ -569,5 +586,14 @@ public class PlaybackController {
 		if (this.animation != null) animTime = basicNormalizedTime(animTime, loopCount, false, true);
 		this.animation = animation;
 		if (isFinished()) snapIfNeeded();
+		timeChanged();
+	}
+
+	public void setOnTimeChangeListener(OnTimeChangeListener listener) {
+		timeChangeListener = listener;
+	}
+
+	private void timeChanged() {
+		if (timeChangeListener != null) timeChangeListener.timeChanged(this);
 	}
 }
@@ -0,0 +1,54 @@
+package org.tavatar.tavimator;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * I hand PoseSnapshots from the simulation thread to the render thread
+ * without locks, as a triple buffer. The producer fills its back snapshot
+ * and swaps it for the middle one; the consumer swaps its front snapshot for
+ * the middle one whenever the middle one is newer. Neither ever waits on the
+ * other, and the consumer always gets the latest completed snapshot.
+ *
+ * There must be only one producer thread and one consumer thread
+ *
+ * @author tapple
+ */
+public class PoseExchange {
+	private final AtomicReference<PoseSnapshot> middle =
+			new AtomicReference<PoseSnapshot>(new PoseSnapshot());
+
+	// owned by the producer
+	private PoseSnapshot back = new PoseSnapshot();
+	private long nextSequence = 1;
+
+	// owned by the consumer
+	private PoseSnapshot front = new PoseSnapshot();
+
+	/**
+	 * Answers the snapshot to fill in. Producer only
+	 */
+	public PoseSnapshot getBack() {
+		return back;
+	}
+
+	/**
+	 * Publish the back snapshot, and take a new one to fill in. Producer only
+	 */
+	public void publish() {
+		back.sequence = nextSequence++;
+		back = middle.getAndSet(back);
+	}
+
+	/**
+	 * Answers the latest published snapshot. It stays valid until the next
+	 * call. Consumer only
+	 */
+	public PoseSnapshot acquire() {
+		// if the producer publishes between these two lines, we just get an
+		// even newer snapshot
+		if (middle.get().sequence > front.sequence) {
+			front = middle.getAndSet(front);
+		}
+		return front;
+	}
+}
@@ -0,0 +1,59 @@
+package org.tavatar.tavimator;
+
+/**
+ * I am everything the renderer needs to draw one frame: the camera, and the
+ * global transform of every part of the figure, flattened in drawing order.
+ * The simulation thread fills me in; once published through a PoseExchange,
+ * only the render thread reads me.
+ *
+ * @author tapple
+ */
+public class PoseSnapshot {
+	public static final int MAX_PARTS = AnimationRenderer.ANIMATION_INCREMENT;
+
+	/**
+	 * Increases with every published snapshot. Zero means never published
+	 */
+	public long sequence;
+
+	public Animation animation;
+	public int frame;
+
+	public final float[] viewMatrix = new float[16];
+
+	/**
+	 * The parts, in the order AnimationRenderer draws them
+	 */
+	public int count;
+	public final int[] pickIndices = new int[MAX_PARTS];
+	/** index of each part's parent, or -1 for the root */
+	public final int[] parents = new int[MAX_PARTS];
+	public final BVHNode[] nodes = new BVHNode[MAX_PARTS];
+	/** the limb each part turns with under IK, or null */
+	public final Animation.IKPartType[] limbs = new Animation.IKPartType[MAX_PARTS];
+	public final float[] transforms = new float[MAX_PARTS * 16];
+
+	public static final int MAX_GHOSTS = 16;
+
+	/**
+	 * Onion skin ghosts: each one's distance in frames from frame, and its
+	 * part transforms in the same order as transforms, MAX_PARTS * 16 floats
+	 * apart
+	 */
+	public int ghostCount;
+	public final int[] ghostOffsets = new int[MAX_GHOSTS];
+	public final float[] ghostTransforms = new float[MAX_GHOSTS * MAX_PARTS * 16];
+
+	/**
+	 * Time the simulation thread spent on this snapshot, per FrameStats
+	 * stage, in nanoseconds. Only recorded while frame stats are enabled
+	 */
+	public final long[] stageNanos = new long[FrameStats.Stage.values().length];
+	public int allocations;
+
+	/**
+	 * Whether something was still moving when I was made, so more
+	 * snapshots will follow without further input
+	 */
+	public boolean animating;
+}
@@ -0,0 +1,30 @@
+package org.tavatar.tavimator;
+
+/**
+ * I am anything that poses joints frame by frame without keys of its own,
+ * such as a LayerStack or an IK solver, so Baker can write my output back
+ * into keyframes
+ *
+ * @author tapple
+ */
+public interface PoseSource {
+	int getJointCount();
+
+	/**
+	 * Answers the node joint j's keys are baked into
+	 */
+	BVHNode getJoint(int j);
+
+	/**
+	 * Write the pose at frame: joint j's rotation, as Euler angles in degrees
+	 * in its own channel order, into rotations[offset + j * 3..+2], and its
+	 * position likewise into positions
+	 */
+	void evaluate(int frame, float[] rotations, float[] positions, int offset);
+
+	/**
+	 * Answers whether evaluate may run on several threads at once, for
+	 * different frames
+	 */
+	boolean isStateless();
+}
@@ -0,0 +1,191 @@
+package org.tavatar.tavimator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import com.learnopengles.android.common.RawResourceReader;
+import com.learnopengles.android.common.ShaderHelper;
+
+/**
+ * I make shader programs from raw resources, so a recreated GL context
+ * doesn't have to compile them again. Shader sources are read once per
+ * process. Where the driver can hand back program binaries (ES 3, API 18), I
+ * save each linked program to the cache directory and later load it instead
+ * of compiling; the key covers the sources, attribute bindings, driver and
+ * build, so a system update or a shader edit simply misses.
+ *
+ * Programs are made on the calling thread, which must have a current GL
+ * context
+ *
+ * @author tapple
+ */
+public class ProgramCache {
+	private static final String TAG = "ProgramCache";
+
+	private static final Map<Integer, String> sources = new HashMap<Integer, String>();
+
+	private final Context context;
+	private final File directory;
+
+	public ProgramCache(Context context) {
+		this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+		directory = new File(context.getCacheDir(), "programs");
+	}
+
+	/**
+	 * Answers the text of a raw resource, read only the first time
+	 */
+	public static String source(Context context, int resourceId) {
+		synchronized (sources) {
+			String source = sources.get(resourceId);
+			if (source == null) {
+				source = RawResourceReader.readTextFileFromRawResource(context, resourceId);
+				sources.put(resourceId, source);
+			}
+			return source;
+		}
+	}
+
+	/**
+	 * Answers a linked program of the given shaders, with the attributes bound
+	 * to locations 0, 1, 2... in order, from the binary cache if possible
+	 *
+	 * @throws RuntimeException if the shaders don't compile or link
+	 */
+	public int program(int vertexResource, int fragmentResource, String[] attributes) {
+		String vertexShader = source(context, vertexResource);
+		String fragmentShader = source(context, fragmentResource);
+		long start = System.nanoTime();
+
+		File binary = null;
+		if (binariesSupported()) {
+			binary = new File(directory, key(vertexShader, fragmentShader, attributes));
+			int program = loadBinary(binary);
+			if (program != 0) {
+				Log.d(TAG, "loaded program binary in " + (System.nanoTime() - start) / 1000 + "us");
+				return program;
+			}
+		}
+
+		final int vertexShaderHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, vertexShader);
+		final int fragmentShaderHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader);
+		int program = ShaderHelper.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, attributes);
+		// the program keeps what it needs
+		GLES20.glDetachShader(program, vertexShaderHandle);
+		GLES20.glDetachShader(program, fragmentShaderHandle);
+		GLES20.glDeleteShader(vertexShaderHandle);
+		GLES20.glDeleteShader(fragmentShaderHandle);
+		Log.d(TAG, "compiled program in " + (System.nanoTime() - start) / 1000 + "us");
+
+		if (binary != null) saveBinary(program, binary);
+		return program;
+	}
+
+	private static boolean binariesSupported() {
+		if (Build.VERSION.SDK_INT < 18) return false;
+		String version = GLES20.glGetString(GLES20.GL_VERSION);
+		if (version == null || !version.startsWith("OpenGL ES 3")) return false;
+		int[] formats = new int[1];
+		GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+		return formats[0] > 0;
+	}
+
+	private static String key(String vertexShader, String fragmentShader, String[] attributes) {
+		StringBuilder text = new StringBuilder();
+		text.append(vertexShader).append('\0').append(fragmentShader).append('\0');
+		for (String attribute : attributes) text.append(attribute).append(',');
+		text.append('\0').append(GLES20.glGetString(GLES20.GL_RENDERER));
+		text.append('\0').append(GLES20.glGetString(GLES20.GL_VERSION));
+		text.append('\0').append(Build.FINGERPRINT);
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest(text.toString().getBytes("UTF-8"))) key.append(String.format("%02x", b & 0xFF));
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(text.toString().hashCode());
+		} catch (IOException e) {
+			return Integer.toHexString(text.toString().hashCode());
+		}
+	}
+
+	private static int loadBinary(File file) {
+		if (!file.isFile()) return 0;
+		int format;
+		byte[] bytes;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				format = in.readInt();
+				bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "unreadable program binary " + file.getName(), e);
+			file.delete();
+			return 0;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.nativeOrder());
+		buffer.put(bytes).position(0);
+		int program = GLES20.glCreateProgram();
+		GLES30.glProgramBinary(program, format, buffer, bytes.length);
+		int[] linkStatus = new int[1];
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+		if (linkStatus[0] == 0) {
+			// the driver changed under the same fingerprint; compile instead
+			Log.d(TAG, "stale program binary " + file.getName());
+			GLES20.glDeleteProgram(program);
+			file.delete();
+			return 0;
+		}
+		return program;
+	}
+
+	private static void saveBinary(int program, File file) {
+		int[] length = new int[1];
+		int[] format = new int[1];
+		GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+		if (length[0] <= 0) return;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+		GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, buffer);
+		if (GLES20.glGetError() != GLES20.GL_NO_ERROR || length[0] <= 0) return;
+
+		byte[] bytes = new byte[length[0]];
+		buffer.position(0);
+		buffer.get(bytes);
+		File directory = file.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) return;
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+			try {
+				out.writeInt(format[0]);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "could not save program binary", e);
+			file.delete();
+		}
+	}
+}
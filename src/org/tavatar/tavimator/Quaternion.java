@@ -144,4 +144,98 @@ public class Quaternion {
 		rotate3(v, vOffset, a, aOffset, rot, rotOffset);
 	    v[vOffset+3]=a[aOffset+3];
 	}
+
+	// Sets sq to the rotation of the Euler angles in degrees, x y z at
+	// euler[eOffset..], turned about the axes (0 x, 1 y, 2 z) in
+	// order[oOffset..oOffset+2] as BVHNode.rotateMatrixForFrame applies its channels
+	public static void fromEuler(float[] sq, int sqOffset, float[] euler, int eOffset, int[] order, int oOffset) {
+		setIdentity(sq, sqOffset);
+		for (int i = 0; i < 3; i++) {
+			int axis = order[oOffset + i];
+			float half = euler[eOffset + axis] * DEGREES_TO_RADIANS * 0.5f;
+			float s = (float)Math.sin(half);
+			postMultiply(sq, sqOffset, axis == 0 ? s : 0, axis == 1 ? s : 0, axis == 2 ? s : 0, (float)Math.cos(half));
+		}
+	}
+
+	// Writes the Euler angles in degrees of unit quaternion q into
+	// euler[eOffset..eOffset+2], x y z, for the axis order given as in fromEuler
+	public static void toEuler(float[] euler, int eOffset, float[] q, int qOffset, int[] order, int oOffset) {
+		int a = order[oOffset];
+		int b = order[oOffset + 1];
+		int c = order[oOffset + 2];
+		// +1 for the cyclic orders xyz, yzx, zxy
+		float sign = (b - a + 3) % 3 == 1 ? 1 : -1;
+		float sinMiddle = sign * element(q, qOffset, a, c);
+		if (sinMiddle > 1) sinMiddle = 1;
+		if (sinMiddle < -1) sinMiddle = -1;
+		euler[eOffset + a] = (float)Math.atan2(-sign * element(q, qOffset, b, c), element(q, qOffset, c, c)) * RADIANS_TO_DEGREES;
+		euler[eOffset + b] = (float)Math.asin(sinMiddle) * RADIANS_TO_DEGREES;
+		euler[eOffset + c] = (float)Math.atan2(-sign * element(q, qOffset, a, b), element(q, qOffset, a, a)) * RADIANS_TO_DEGREES;
+	}
+
+	// the element at row, column of the rotation matrix of q, for column vectors
+	private static float element(float[] q, int qOffset, int row, int column) {
+		float x = q[qOffset+VX], y = q[qOffset+VY], z = q[qOffset+VZ], w = q[qOffset+VW];
+		switch (row * 3 + column) {
+		case 0: return 1 - 2 * (y*y + z*z);
+		case 1: return 2 * (x*y - z*w);
+		case 2: return 2 * (x*z + y*w);
+		case 3: return 2 * (x*y + z*w);
+		case 4: return 1 - 2 * (x*x + z*z);
+		case 5: return 2 * (y*z - x*w);
+		case 6: return 2 * (x*z - y*w);
+		case 7: return 2 * (y*z + x*w);
+		default: return 1 - 2 * (x*x + y*y);
+		}
+	}
+
+	// q = q * b, for b given by components. Unlike multiply, safe in place
+	public static void postMultiply(float[] q, int qOffset, float bx, float by, float bz, float bw) {
+		float ax = q[qOffset+VX], ay = q[qOffset+VY], az = q[qOffset+VZ], aw = q[qOffset+VW];
+		q[qOffset+VX] = aw*bx + ax*bw + ay*bz - az*by;
+		q[qOffset+VY] = aw*by + ay*bw + az*bx - ax*bz;
+		q[qOffset+VZ] = aw*bz + az*bw + ax*by - ay*bx;
+		q[qOffset+VW] = aw*bw - ax*bx - ay*by - az*bz;
+	}
+
+	// q = q * b
+	public static void postMultiply(float[] q, int qOffset, float[] b, int bOffset) {
+		postMultiply(q, qOffset, b[bOffset+VX], b[bOffset+VY], b[bOffset+VZ], b[bOffset+VW]);
+	}
+
+	// Sets q to the spherical interpolation from unit quaternion a to b by t,
+	// the short way round. q may be a or b
+	public static void slerp(float[] q, int qOffset, float[] a, int aOffset, float[] b, int bOffset, float t) {
+		float bx = b[bOffset+VX], by = b[bOffset+VY], bz = b[bOffset+VZ], bw = b[bOffset+VW];
+		float cos = a[aOffset+VX]*bx + a[aOffset+VY]*by + a[aOffset+VZ]*bz + a[aOffset+VW]*bw;
+		if (cos < 0) {
+			cos = -cos;
+			bx = -bx; by = -by; bz = -bz; bw = -bw;
+		}
+		float fromA, fromB;
+		if (cos > 0.9995f) {
+			// nearly parallel: lerp, and normalize below
+			fromA = 1 - t;
+			fromB = t;
+		} else {
+			float angle = (float)Math.acos(cos);
+			float sin = (float)Math.sin(angle);
+			fromA = (float)Math.sin((1 - t) * angle) / sin;
+			fromB = (float)Math.sin(t * angle) / sin;
+		}
+		q[qOffset+VX] = a[aOffset+VX]*fromA + bx*fromB;
+		q[qOffset+VY] = a[aOffset+VY]*fromA + by*fromB;
+		q[qOffset+VZ] = a[aOffset+VZ]*fromA + bz*fromB;
+		q[qOffset+VW] = a[aOffset+VW]*fromA + bw*fromB;
+		normalize(q, qOffset);
+	}
+
+	// the inverse of a unit quaternion
+	public static void conjugate(float[] q, int qOffset, float[] a, int aOffset) {
+		q[qOffset+VX] = -a[aOffset+VX];
+		q[qOffset+VY] = -a[aOffset+VY];
+		q[qOffset+VZ] = -a[aOffset+VZ];
+		q[qOffset+VW] = a[aOffset+VW];
+	}
 }
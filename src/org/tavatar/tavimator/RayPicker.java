@@ -0,0 +1,153 @@
+package org.tavatar.tavimator;
+
+import android.opengl.Matrix;
+
+/**
+ * I pick parts on the CPU by casting the touch ray against a bounding box
+ * per part, as an alternative to color picking. I need no GL round trip, so
+ * I can answer on the UI thread immediately.
+ *
+ * The renderer captures the camera and each part's transform from the
+ * PoseSnapshot it draws every frame; pick then works from that capture, so
+ * it always agrees with what was last drawn
+ *
+ * @author tapple
+ */
+public class RayPicker {
+	private static final String TAG = "RayPicker";
+
+	/**
+	 * Everything pick needs from one frame
+	 */
+	private static class Capture {
+		int count;
+		int[] pickIndices = new int[AnimationRenderer.ANIMATION_INCREMENT];
+		float[][] bounds = new float[AnimationRenderer.ANIMATION_INCREMENT][];
+		float[] transforms = new float[AnimationRenderer.ANIMATION_INCREMENT * 16];
+		float[] viewProjection = new float[16];
+		int width;
+		int height;
+	}
+
+	private final SLPartsRenderer parts;
+
+	// the renderer fills back while pick reads front
+	private Capture front = new Capture();
+	private Capture back = new Capture();
+
+	// pick temporaries, so pick doesn't allocate
+	private final float[] inverse = new float[16];
+	private final float[] ndc = new float[4];
+	private final float[] nearPoint = new float[4];
+	private final float[] farPoint = new float[4];
+	private final float[] localNear = new float[4];
+	private final float[] localFar = new float[4];
+
+	public RayPicker(SLPartsRenderer parts) {
+		this.parts = parts;
+	}
+
+	/**
+	 * Record the camera and pose the renderer is about to draw. Call on the
+	 * GL thread
+	 */
+	public void capture(PoseSnapshot pose, float[] projectionMatrix, int width, int height) {
+		Capture c = back;
+		c.count = 0;
+		Matrix.multiplyMM(c.viewProjection, 0, projectionMatrix, 0, pose.viewMatrix, 0);
+		c.width = width;
+		c.height = height;
+		if (pose.animation != null) {
+			for (int i = 0; i < pose.count; i++) {
+				float[] box = parts.getPartBounds(pose.nodes[i].name());
+				if (box == null) continue;
+				c.pickIndices[c.count] = pose.pickIndices[i];
+				c.bounds[c.count] = box;
+				System.arraycopy(pose.transforms, i * 16, c.transforms, c.count * 16, 16);
+				c.count++;
+			}
+		}
+
+		synchronized (this) {
+			back = front;
+			front = c;
+		}
+	}
+
+	/**
+	 * Answers the pick index of the nearest part under the given view
+	 * coordinates, or -1 for none
+	 *
+	 * @param x view x, in pixels from the left
+	 * @param y view y, in pixels from the top
+	 */
+	public synchronized int pick(int x, int y) {
+		Capture c = front;
+		if (c.count == 0 || c.width == 0 || c.height == 0) return -1;
+
+		// unproject the touch to a world space segment from the near to the far plane
+		if (!Matrix.invertM(inverse, 0, c.viewProjection, 0)) return -1;
+		ndc[0] = 2.0f * x / c.width - 1.0f;
+		ndc[1] = 1.0f - 2.0f * y / c.height;
+		ndc[3] = 1.0f;
+		ndc[2] = -1.0f;
+		unproject(nearPoint, inverse, ndc);
+		ndc[2] = 1.0f;
+		unproject(farPoint, inverse, ndc);
+
+		int best = -1;
+		float bestT = Float.MAX_VALUE;
+		for (int i = 0; i < c.count; i++) {
+			// bring the segment into the part's space. The transform is
+			// affine, so the segment parameter means the same thing there
+			if (!Matrix.invertM(inverse, 0, c.transforms, i * 16)) continue;
+			Matrix.multiplyMV(localNear, 0, inverse, 0, nearPoint, 0);
+			Matrix.multiplyMV(localFar, 0, inverse, 0, farPoint, 0);
+			float t = intersectBox(localNear, localFar, c.bounds[i]);
+			if (t < bestT) {
+				bestT = t;
+				best = c.pickIndices[i];
+			}
+		}
+		return best;
+	}
+
+	private static void unproject(float[] result, float[] inverseViewProjection, float[] ndc) {
+		Matrix.multiplyMV(result, 0, inverseViewProjection, 0, ndc, 0);
+		result[0] /= result[3];
+		result[1] /= result[3];
+		result[2] /= result[3];
+		result[3] = 1.0f;
+	}
+
+	/**
+	 * Slab test of the segment from p0 to p1 against an axis aligned box.
+	 * Answers the segment parameter of the entry point, or Float.MAX_VALUE if
+	 * the segment misses
+	 */
+	private static float intersectBox(float[] p0, float[] p1, float[] box) {
+		float tMin = 0.0f;
+		float tMax = 1.0f;
+		for (int axis = 0; axis < 3; axis++) {
+			float origin = p0[axis];
+			float delta = p1[axis] - origin;
+			float lo = box[axis];
+			float hi = box[axis + 3];
+			if (Math.abs(delta) < 1e-9f) {
+				if (origin < lo || origin > hi) return Float.MAX_VALUE;
+				continue;
+			}
+			float t0 = (lo - origin) / delta;
+			float t1 = (hi - origin) / delta;
+			if (t0 > t1) {
+				float swap = t0;
+				t0 = t1;
+				t1 = swap;
+			}
+			if (t0 > tMin) tMin = t0;
+			if (t1 < tMax) tMax = t1;
+			if (tMin > tMax) return Float.MAX_VALUE;
+		}
+		return tMin;
+	}
+}
@@ -0,0 +1,163 @@
+package org.tavatar.tavimator;
+
+import java.util.concurrent.ExecutionException;
+
+import android.util.Log;
+
+/**
+ * I retime keyframe tracks: each new track samples the old one through a
+ * TimeWarp, which answers the source frame, possibly between two frames, to
+ * show at each new frame. Sampling uses the track's own interpolation,
+ * easing included, so the result plays as the original did at those times.
+ *
+ * A new frame gets a key only where the old track had one within half a new
+ * frame of it. Dense mocap keys thin out with the frame rate (120 to 30 fps
+ * keeps one key in four), while sparse hand made keys stay sparse, each
+ * moved to the nearest new frame with its easing. Each track is made in one
+ * pass over its new frames, straight into a builder, and many tracks are
+ * resampled in parallel on Workers
+ *
+ * @author tapple
+ */
+public class Resampler {
+	private static final String TAG = "Resampler";
+
+	/** fewest tracks resampled per parallel chunk */
+	private static final int MIN_CHUNK = 2;
+
+	/**
+	 * I map new frames to source frames by a piecewise linear curve through
+	 * knots with increasing frames, continued past either end along the end
+	 * pieces
+	 */
+	public static final class TimeWarp {
+		private final float[] targets;
+		private final float[] sources;
+
+		/**
+		 * @throws IllegalArgumentException unless there are at least two knots,
+		 * both frames increasing
+		 */
+		public TimeWarp(float[] targetFrames, float[] sourceFrames) {
+			if (targetFrames.length < 2 || targetFrames.length != sourceFrames.length) {
+				throw new IllegalArgumentException("a time warp needs two or more knots");
+			}
+			for (int i = 1; i < targetFrames.length; i++) {
+				if (targetFrames[i] <= targetFrames[i - 1] || sourceFrames[i] <= sourceFrames[i - 1]) {
+					throw new IllegalArgumentException("time warp knots must increase");
+				}
+			}
+			targets = targetFrames.clone();
+			sources = sourceFrames.clone();
+		}
+
+		/**
+		 * Show frames made at sourceFps at targetFps, at the same speed
+		 */
+		public static TimeWarp frameRate(int sourceFps, int targetFps) {
+			return new TimeWarp(new float[] {0, targetFps}, new float[] {0, sourceFps});
+		}
+
+		/**
+		 * Squeeze or stretch the source frames from up to to into length
+		 * frames. Frames before are unchanged, and those after follow right
+		 * behind
+		 */
+		public static TimeWarp section(int from, int to, int length) {
+			if (from > 0) {
+				return new TimeWarp(new float[] {0, from, from + length, from + length + 1},
+						new float[] {0, from, to, to + 1});
+			}
+			return new TimeWarp(new float[] {from, from + length, from + length + 1},
+					new float[] {from, to, to + 1});
+		}
+
+		/**
+		 * Answers the source frame to show at the given new frame
+		 */
+		public float source(float target) {
+			return map(targets, sources, target);
+		}
+
+		/**
+		 * Answers the new frame showing the given source frame
+		 */
+		public float target(float source) {
+			return map(sources, targets, source);
+		}
+
+		private static float map(float[] from, float[] to, float value) {
+			int piece = 1;
+			while (piece < from.length - 1 && from[piece] < value) piece++;
+			float t = (value - from[piece - 1]) / (from[piece] - from[piece - 1]);
+			return to[piece - 1] + (to[piece] - to[piece - 1]) * t;
+		}
+	}
+
+	private final TimeWarp warp;
+	private final int frames;
+	private final boolean everyFrame;
+
+	/**
+	 * @param frames how many new frames to make
+	 * @param everyFrame key every new frame, rather than only near old keys
+	 */
+	public Resampler(TimeWarp warp, int frames, boolean everyFrame) {
+		this.warp = warp;
+		this.frames = frames;
+		this.everyFrame = everyFrame;
+	}
+
+	/**
+	 * Answers the number of frames that holds the given ones through warp
+	 */
+	public static int framesFor(TimeWarp warp, int sourceFrames) {
+		return Math.max(1, Math.round(warp.target(sourceFrames - 1)) + 1);
+	}
+
+	/**
+	 * Answers the track resampled. I allocate only the new track
+	 */
+	public KeyframeTrack resample(KeyframeTrack track) {
+		if (track.isEmpty()) return track;
+		float[] rotation = new float[3];
+		float[] position = new float[3];
+		KeyframeTrack.Builder builder = new KeyframeTrack.Builder(Math.min(frames, track.size() + 1));
+		// the first source key not yet in a window; as the warp increases,
+		// each key falls in one window
+		int next = 0;
+		for (int frame = 0; frame < frames; frame++) {
+			// keys beyond either end belong to the first or last frame
+			float windowEnd = frame == frames - 1 ? Float.POSITIVE_INFINITY : warp.source(frame + 0.5f);
+			int eases = 0;
+			boolean keyed = everyFrame;
+			while (next < track.size() && track.frame(next) < windowEnd) {
+				keyed = true;
+				if (track.easeIn(next)) eases |= KeyframeTrack.EASE_IN;
+				if (track.easeOut(next)) eases |= KeyframeTrack.EASE_OUT;
+				next++;
+			}
+			if (!keyed) continue;
+			track.evaluateAt(warp.source(frame), rotation, 0, position, 0);
+			builder.add(frame, rotation, 0, position, 0, eases);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Answers every track resampled, in parallel. The tracks themselves are
+	 * untouched
+	 */
+	public KeyframeTrack[] resample(final KeyframeTrack[] tracks) throws InterruptedException, ExecutionException {
+		long start = System.nanoTime();
+		final KeyframeTrack[] resampled = new KeyframeTrack[tracks.length];
+		Workers.forEachChunk(0, tracks.length, Workers.chunkSize(tracks.length, MIN_CHUNK), new Workers.Chunk() {
+			@Override public void run(int from, int to) {
+				for (int i = from; i < to; i++) resampled[i] = resample(tracks[i]);
+			}
+		});
+		Log.d(TAG, "resampled " + tracks.length + " tracks to " + frames + " frames in "
+				+ (System.nanoTime() - start) / 1000 + "us");
+		return resampled;
+	}
+}
@@ -28,32 +28,54 @@ import java.util.Map;
 import java.util.HashMap;
 
 import android.opengl.GLES20;
+import android.util.Log;
 
 public class SLPartsFemale extends SLPartsRenderer {
-	public SLPartsFemale(AnimationRenderer renderer) {
+	private static final String TAG = "SLPartsFemale";
+
+	public SLPartsFemale(PartsProgram renderer) {
 		super(renderer);
 		// TODO Auto-generated constructor stub
 	}
 
 	private FloatBuffer vertices;
 	private FloatBuffer normals;
+	// each vertex's part slot, for drawSkinned
+	private FloatBuffer slots;
+	private int vertexCount;
 
 	private class OffsetLength {
 		public int offset;
 		public int length;
+		public int slot;
+		// where each level of detail is in vertices and normals; level 0 is
+		// offset and length
+		public final int[] lodOffsets = new int[LOD_LEVELS];
+		public final int[] lodLengths = new int[LOD_LEVELS];
 
 		public OffsetLength(int offset, int length) {
 			this.offset = offset;
 			this.length = length;
+			this.slot = index.size();
+			lodOffsets[0] = offset;
+			lodLengths[0] = length;
 		}
 	}
 
+	/**
+	 * Clustering grid size, along a part's longest side, for each level of
+	 * detail after the first. Roughly halves, then thirds again, the vertices
+	 */
+	private static final int[] LOD_CELLS = {0, 10, 5};
+
 	private Map<String, OffsetLength> index;
+	private Map<String, float[]> bounds;
 
 	@Override
-	public void drawPartNamed(String name) {
+	public void drawPartNamed(String name, int lod) {
 		OffsetLength i = index.get(name);
 		if (i == null) return;
+		lod = Math.max(0, Math.min(lod, LOD_LEVELS - 1));
 
 		vertices.position(0);
 		GLES20.glVertexAttribPointer(renderer.getPositionHandle(), 3, GLES20.GL_FLOAT, false,
@@ -65,7 +87,45 @@ public class SLPartsFemale extends SLPartsRenderer {
 				0, normals);
 		GLES20.glEnableVertexAttribArray(renderer.getNormalHandle());
 
-		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, i.offset, i.length);
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, i.lodOffsets[lod], i.lodLengths[lod]);
+		renderer.getFrameStats().countDrawCall();
+	}
+
+	@Override
+	public void drawSkinned(int slotHandle) {
+		vertices.position(0);
+		GLES20.glVertexAttribPointer(renderer.getPositionHandle(), 3, GLES20.GL_FLOAT, false,
+				0, vertices);
+		GLES20.glEnableVertexAttribArray(renderer.getPositionHandle());
+
+		slots.position(0);
+		GLES20.glVertexAttribPointer(slotHandle, 1, GLES20.GL_FLOAT, false,
+				0, slots);
+		GLES20.glEnableVertexAttribArray(slotHandle);
+
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, vertexCount);
+		renderer.getFrameStats().countDrawCall();
+	}
+
+	@Override
+	public int getPartSlotCount() {
+		return index.size();
+	}
+
+	@Override
+	public int getPartSlot(String name) {
+		OffsetLength i = index.get(name);
+		return i == null ? -1 : i.slot;
+	}
+
+	private void fillSlots() {
+		vertexCount = vertices.position() / 3;
+		slots = ByteBuffer.allocateDirect(vertexCount * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		for (OffsetLength i : index.values()) {
+			for (int v = i.offset; v < i.offset + i.length; v++) slots.put(v, i.slot);
+		}
+		slots.position(0);
 	}
 
 	@Override
@@ -74,7 +134,34 @@ public class SLPartsFemale extends SLPartsRenderer {
 		vertices = null;
 		normals.limit(0);
 		normals = null;
+		slots.limit(0);
+		slots = null;
 		index = null;
+		bounds = null;
+	}
+
+	@Override
+	public float[] getPartBounds(String name) {
+		if (bounds == null) return null;
+		return bounds.get(name);
+	}
+
+	private void computeBounds() {
+		bounds = new HashMap<String, float[]>();
+		for (Map.Entry<String, OffsetLength> entry : index.entrySet()) {
+			OffsetLength i = entry.getValue();
+			float[] box = {
+					Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+					-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+			for (int v = i.offset * 3; v < (i.offset + i.length) * 3; v += 3) {
+				for (int axis = 0; axis < 3; axis++) {
+					float f = vertices.get(v + axis);
+					if (f < box[axis]) box[axis] = f;
+					if (f > box[axis + 3]) box[axis + 3] = f;
+				}
+			}
+			bounds.put(entry.getKey(), box);
+		}
 	}
 
 	@Override
@@ -171,6 +258,56 @@ public class SLPartsFemale extends SLPartsRenderer {
 		index.put("rFoot", new OffsetLength(normals.position()/FLOATS_PER_VEC, 510));
 		normals.put(rFootNormals());
 		vertices.put(rFootVertices());
+
+		fillSlots();
+		computeBounds();
+		buildLevels();
+	}
+
+	/**
+	 * Simplify every part into the coarser levels of detail, and append them
+	 * to vertices and normals after the full meshes. drawSkinned only draws
+	 * the full meshes, so slots doesn't cover the levels
+	 */
+	private void buildLevels() {
+		float[] fullVertices = new float[vertexCount * 3];
+		float[] fullNormals = new float[vertexCount * 3];
+		vertices.position(0);
+		vertices.get(fullVertices);
+		normals.position(0);
+		normals.get(fullNormals);
+
+		Map<OffsetLength, MeshSimplifier[]> levels = new HashMap<OffsetLength, MeshSimplifier[]>();
+		int total = vertexCount;
+		for (Map.Entry<String, OffsetLength> entry : index.entrySet()) {
+			OffsetLength i = entry.getValue();
+			MeshSimplifier[] partLevels = new MeshSimplifier[LOD_LEVELS];
+			for (int lod = 1; lod < LOD_LEVELS; lod++) {
+				partLevels[lod] = new MeshSimplifier();
+				partLevels[lod].cluster(fullVertices, fullNormals, i.offset, i.length,
+						bounds.get(entry.getKey()), LOD_CELLS[lod]);
+				total += partLevels[lod].vertexCount;
+			}
+			levels.put(i, partLevels);
+		}
+
+		vertices = ByteBuffer.allocateDirect(total * 3 * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		normals = ByteBuffer.allocateDirect(total * 3 * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		vertices.put(fullVertices);
+		normals.put(fullNormals);
+		for (Map.Entry<OffsetLength, MeshSimplifier[]> entry : levels.entrySet()) {
+			OffsetLength i = entry.getKey();
+			for (int lod = 1; lod < LOD_LEVELS; lod++) {
+				MeshSimplifier level = entry.getValue()[lod];
+				i.lodOffsets[lod] = vertices.position() / 3;
+				i.lodLengths[lod] = level.vertexCount;
+				vertices.put(level.positions);
+				normals.put(level.normals);
+			}
+		}
+		Log.d(TAG, "levels of detail: " + vertexCount + " vertices at full detail, " + total + " in all");
 	}
 
 	public float[] hipNormals() {
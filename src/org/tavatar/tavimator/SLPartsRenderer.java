@@ -1,13 +1,53 @@
 package org.tavatar.tavimator;
 
 public abstract class SLPartsRenderer {
-	protected AnimationRenderer renderer;
+	protected PartsProgram renderer;
 
-	public SLPartsRenderer(AnimationRenderer renderer) {
+	public SLPartsRenderer(PartsProgram renderer) {
 		this.renderer = renderer;
 	}
 
+	/**
+	 * How many levels of detail I keep per part. Level 0 is the full mesh;
+	 * each level after it is coarser
+	 */
+	public static final int LOD_LEVELS = 3;
+
 	public abstract void load();
-	public abstract void drawPartNamed(String name);
+
+	public void drawPartNamed(String name) {
+		drawPartNamed(name, 0);
+	}
+
+	/**
+	 * Draw the named part at the given level of detail, clamped to
+	 * 0..LOD_LEVELS-1
+	 */
+	public abstract void drawPartNamed(String name, int lod);
+
+	/**
+	 * Answers the axis aligned bounding box of the named part, in the part's
+	 * own coordinates, as {minX, minY, minZ, maxX, maxY, maxZ}, or null if I
+	 * have no such part. Only valid after load
+	 */
+	public abstract float[] getPartBounds(String name);
 	public abstract void release();
+
+	/**
+	 * Answers how many parts I have. Parts are numbered from 0 in a fixed
+	 * order, their slots
+	 */
+	public abstract int getPartSlotCount();
+
+	/**
+	 * Answers the slot of the named part, or -1 if I have no such part
+	 */
+	public abstract int getPartSlot(String name);
+
+	/**
+	 * Draw every part in one call, for a shader that transforms each vertex by
+	 * the matrix of its part's slot. Each vertex's slot is fed to the given
+	 * attribute
+	 */
+	public abstract void drawSkinned(int slotHandle);
 }
\ No newline at end of file
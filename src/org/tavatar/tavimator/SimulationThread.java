@@ -0,0 +1,170 @@
+package org.tavatar.tavimator;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import android.opengl.Matrix;
+import android.os.Debug;
+
+/**
+ * I compute what the next frame should show, off the GL thread: the gyroscope
+ * and camera orientation, and the pose of the figure. Each update fills a
+ * PoseSnapshot and publishes it through a PoseExchange, then asks the view to
+ * render it. The renderer only draws the latest snapshot, so a slow pose
+ * evaluation delays the next pose rather than dropping frames. Poses are
+ * evaluated through a FlatSkeleton, and so are the onion skin ghosts. While
+ * the view has a LayerStack over the selected animation, the figure shows
+ * the stack's blended pose instead.
+ *
+ * I sleep until requestUpdate is called. AnimationView.repaint does this, and
+ * the renderer does it after every frame while something is moving, so the
+ * next pose is computed while the current one is being drawn
+ *
+ * @author tapple
+ */
+public class SimulationThread extends Thread {
+	private static final String TAG = "SimulationThread";
+
+	private final AnimationView view;
+	private final PoseExchange exchange = new PoseExchange();
+
+	private final AtomicBoolean updateRequested = new AtomicBoolean();
+	private volatile boolean running = true;
+
+	/**
+	 * The inverse of the selected part's parent orientation, as of the last
+	 * update
+	 */
+	public float[] inverseGlobalParentOrientation = new float[16];
+
+	private FlatSkeleton skeleton;
+	private final FlatSkeleton.Scratch scratch = new FlatSkeleton.Scratch();
+	private final OnionSkin onionSkin = new OnionSkin();
+
+	public SimulationThread(AnimationView view) {
+		super("SimulationThread");
+		this.view = view;
+		setDaemon(true);
+	}
+
+	public PoseExchange getExchange() {
+		return exchange;
+	}
+
+	/**
+	 * Compute and render a new frame soon. Callable from any thread
+	 */
+	public void requestUpdate() {
+		updateRequested.set(true);
+		LockSupport.unpark(this);
+	}
+
+	public void quit() {
+		running = false;
+		LockSupport.unpark(this);
+	}
+
+	public boolean hasQuit() {
+		return !running;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			if (!updateRequested.getAndSet(false)) {
+				LockSupport.park(this);
+				continue;
+			}
+			update();
+			view.requestRender();
+		}
+	}
+
+	private void update() {
+		PoseSnapshot pose = exchange.getBack();
+		boolean timing = view.getFrameStats().isEnabled();
+		long start = timing ? System.nanoTime() : 0;
+		int allocsAtStart = timing ? Debug.getThreadAllocCount() : 0;
+
+		view.getGyroscope().updateOrientation();
+//		view.updateSelectionOrientation();
+		long gyroEnd = timing ? System.nanoTime() : 0;
+
+		pose.animation = view.getSelectedAnimation();
+		pose.frame = view.getFrame();
+		pose.count = 0;
+		updateAnimationsTransforms(pose);
+		long poseEnd = timing ? System.nanoTime() : 0;
+
+		view.getCameraTrackball().basicUpdateOrientation();
+		view.getCameraTrackball().getStore().update();
+		view.getCameraTrackball().updateTweenedGlobalTransform();
+		view.getCamera().getViewMatrix(pose.viewMatrix, 0);
+//		view.updateSelectionTouchOrientation();
+		long end = timing ? System.nanoTime() : 0;
+
+		pose.stageNanos[FrameStats.Stage.GYRO.ordinal()] = gyroEnd - start;
+		pose.stageNanos[FrameStats.Stage.POSE.ordinal()] = poseEnd - gyroEnd;
+		pose.stageNanos[FrameStats.Stage.TRANSFORMS.ordinal()] = end - poseEnd;
+		pose.allocations = timing ? Debug.getThreadAllocCount() - allocsAtStart : 0;
+		pose.animating = view.isAnimating();
+		exchange.publish();
+	}
+
+	private void updateAnimationsTransforms(PoseSnapshot pose) {
+		pose.ghostCount = 0;
+		if (pose.animation == null) return;
+		FlatSkeleton skeleton = getSkeleton(pose.animation);
+		if (skeleton.count > PoseSnapshot.MAX_PARTS) return;
+		updateFigureTransforms(pose, skeleton);
+		onionSkin.fill(pose, skeleton, view.getOnionSkinFrames());
+		view.getMotionTrails().update(skeleton);
+		/*
+		for(int index=0; index < view.getAnimationCount(); index++) {
+			updateFigureTransforms(pose, view.getAnimationNumber(index), index);
+		}
+		 */
+	}
+
+	/**
+	 * Answers the flattened hierarchy of the given animation, rebuilding it
+	 * only when the animation or figure changes
+	 */
+	private FlatSkeleton getSkeleton(Animation anim) {
+		// int figType = anim.getFigureType().ordinal();
+		int figType = 1;
+		BVHNode joints = view.getJoints(figType);
+		if (skeleton == null || skeleton.animation != anim || skeleton.joints != joints) {
+			skeleton = new FlatSkeleton(anim, joints, 0);
+		}
+		return skeleton;
+	}
+
+	private void updateFigureTransforms(PoseSnapshot pose, FlatSkeleton skeleton) {
+		LayerStack stack = view.getLayerStack();
+		if (stack != null && stack.getBase() == skeleton.animation) {
+			skeleton.evaluate(stack, pose.frame, pose.transforms, 0, scratch);
+		} else {
+			skeleton.evaluate(pose.frame, pose.transforms, 0, scratch);
+		}
+		pose.count = skeleton.count;
+
+		BVHNode selected = view.getSelectedPart();
+		for (int i = 0; i < skeleton.count; i++) {
+			BVHNode motion = skeleton.nodes[i];
+			pose.pickIndices[i] = skeleton.pickIndices[i];
+			pose.parents[i] = skeleton.parents[i];
+			pose.nodes[i] = motion;
+			pose.limbs[i] = skeleton.limbs[i];
+			System.arraycopy(pose.transforms, i * 16, motion.cachedTransform, 0, 16);
+			if (motion == selected) {
+				int parent = skeleton.parents[i];
+				if (parent < 0) Matrix.invertM(inverseGlobalParentOrientation, 0, scratch.model, 0);
+				else Matrix.invertM(inverseGlobalParentOrientation, 0, pose.transforms, parent * 16);
+				inverseGlobalParentOrientation[12] = 0.0f;
+				inverseGlobalParentOrientation[13] = 0.0f;
+				inverseGlobalParentOrientation[14] = 0.0f;
+			}
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package org.tavatar.tavimator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Build;
+
+/**
+ * I am the lines and points drawn over a figure: skeleton bones, joint
+ * markers, rotation axis circles and stick figure parts. The renderer adds
+ * them in world coordinates every frame; I upload them all into one dynamic
+ * vertex buffer and draw them with one call for the lines and one for the
+ * points.
+ *
+ * Vertices are x, y, z then r, g, b, a, all floats. GL thread only
+ *
+ * @author tapple
+ */
+public class SkeletonOverlay {
+	private static final String TAG = "SkeletonOverlay";
+
+	private static final int FLOATS = 3 + 4;
+	private static final int STRIDE = FLOATS * 4;
+
+	/** segments per rotation axis circle */
+	public static final int CIRCLE_SEGMENTS = 32;
+	private static final float[] CIRCLE_COS = new float[CIRCLE_SEGMENTS + 1];
+	private static final float[] CIRCLE_SIN = new float[CIRCLE_SEGMENTS + 1];
+	static {
+		for (int i = 0; i <= CIRCLE_SEGMENTS; i++) {
+			double angle = 2 * Math.PI * i / CIRCLE_SEGMENTS;
+			CIRCLE_COS[i] = (float) Math.cos(angle);
+			CIRCLE_SIN[i] = (float) Math.sin(angle);
+		}
+	}
+
+	private final int maxLineVertices;
+	private final int maxPointVertices;
+	private final float[] lines;
+	private final float[] points;
+	private int lineVertices;
+	private int pointVertices;
+	private final float[] circleLocal = new float[8];
+	private final float[] circleWorld = new float[8];
+
+	private final FloatBuffer vertices;
+	private int buffer;
+
+	/**
+	 * @param maxLines the most lines I can hold in one frame; more are dropped
+	 * @param maxPoints the most points I can hold in one frame
+	 */
+	public SkeletonOverlay(int maxLines, int maxPoints) {
+		maxLineVertices = maxLines * 2;
+		maxPointVertices = maxPoints;
+		lines = new float[maxLineVertices * FLOATS];
+		points = new float[maxPointVertices * FLOATS];
+		vertices = ByteBuffer.allocateDirect((maxLineVertices + maxPointVertices) * STRIDE)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	/**
+	 * Forget everything added, to start a new frame
+	 */
+	public void clear() {
+		lineVertices = 0;
+		pointVertices = 0;
+	}
+
+	public boolean isEmpty() {
+		return lineVertices == 0 && pointVertices == 0;
+	}
+
+	/**
+	 * Add a line between the points at from[fromOffset] and to[toOffset], 3
+	 * floats each, in the color at color[colorOffset]
+	 */
+	public void addLine(float[] from, int fromOffset, float[] to, int toOffset, float[] color, int colorOffset) {
+		if (lineVertices + 2 > maxLineVertices) return;
+		int out = lineVertices * FLOATS;
+		System.arraycopy(from, fromOffset, lines, out, 3);
+		System.arraycopy(color, colorOffset, lines, out + 3, 4);
+		System.arraycopy(to, toOffset, lines, out + FLOATS, 3);
+		System.arraycopy(color, colorOffset, lines, out + FLOATS + 3, 4);
+		lineVertices += 2;
+	}
+
+	/**
+	 * Add a point at position[offset], 3 floats, in the color at
+	 * color[colorOffset]
+	 */
+	public void addPoint(float[] position, int offset, float[] color, int colorOffset) {
+		if (pointVertices + 1 > maxPointVertices) return;
+		int out = pointVertices * FLOATS;
+		System.arraycopy(position, offset, points, out, 3);
+		System.arraycopy(color, colorOffset, points, out + 3, 4);
+		pointVertices++;
+	}
+
+	/**
+	 * Add a circle of the given radius around the given axis (0, 1 or 2 for
+	 * x, y or z) of the coordinate frame matrix, as CIRCLE_SEGMENTS lines
+	 */
+	public void addCircle(float[] matrix, int axis, float radius, float[] color, int colorOffset) {
+		for (int i = 0; i < CIRCLE_SEGMENTS; i++) {
+			circlePoint(axis, radius, i, circleLocal, 0);
+			circlePoint(axis, radius, i + 1, circleLocal, 4);
+			Matrix.multiplyMV(circleWorld, 0, matrix, 0, circleLocal, 0);
+			Matrix.multiplyMV(circleWorld, 4, matrix, 0, circleLocal, 4);
+			addLine(circleWorld, 0, circleWorld, 4, color, colorOffset);
+		}
+	}
+
+	private static void circlePoint(int axis, float radius, int i, float[] point, int offset) {
+		float c = radius * CIRCLE_COS[i];
+		float s = radius * CIRCLE_SIN[i];
+		switch (axis) {
+		case 0: point[offset] = 0; point[offset + 1] = c; point[offset + 2] = s; break;
+		case 1: point[offset] = c; point[offset + 1] = 0; point[offset + 2] = s; break;
+		default: point[offset] = c; point[offset + 1] = s; point[offset + 2] = 0; break;
+		}
+		point[offset + 3] = 1;
+	}
+
+	/**
+	 * Forget my GL objects without deleting them. Call from onSurfaceCreated
+	 */
+	public void contextLost() {
+		buffer = 0;
+	}
+
+	/**
+	 * Upload everything added since clear, and draw the lines, then the
+	 * points. The current program's matrices should be for world coordinates
+	 *
+	 * @return the number of draw calls made
+	 */
+	public int draw(int positionHandle, int colorHandle) {
+		if (isEmpty()) return 0;
+		vertices.position(0);
+		vertices.put(lines, 0, lineVertices * FLOATS);
+		vertices.put(points, 0, pointVertices * FLOATS);
+		int size = (lineVertices + pointVertices) * STRIDE;
+
+		// glVertexAttribPointer with a buffer offset needs API 9
+		if (Build.VERSION.SDK_INT < 9) {
+			vertices.position(0);
+			GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, STRIDE, vertices);
+			vertices.position(3);
+			GLES20.glVertexAttribPointer(colorHandle, 4, GLES20.GL_FLOAT, false, STRIDE, vertices);
+		} else {
+			if (buffer == 0) {
+				int[] handle = new int[1];
+				GLES20.glGenBuffers(1, handle, 0);
+				buffer = handle[0];
+			}
+			GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+			vertices.position(0);
+			// respecified whole every frame, so the driver needn't wait for the
+			// last frame's draws to finish with the old contents
+			GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, size, vertices, GLES20.GL_DYNAMIC_DRAW);
+			GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, STRIDE, 0);
+			GLES20.glVertexAttribPointer(colorHandle, 4, GLES20.GL_FLOAT, false, STRIDE, 3 * 4);
+		}
+		GLES20.glEnableVertexAttribArray(positionHandle);
+		GLES20.glEnableVertexAttribArray(colorHandle);
+
+		int calls = 0;
+		if (lineVertices > 0) {
+			GLES20.glDrawArrays(GLES20.GL_LINES, 0, lineVertices);
+			calls++;
+		}
+		if (pointVertices > 0) {
+			GLES20.glDrawArrays(GLES20.GL_POINTS, lineVertices, pointVertices);
+			calls++;
+		}
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		GLES20.glDisableVertexAttribArray(colorHandle);
+		return calls;
+	}
+}
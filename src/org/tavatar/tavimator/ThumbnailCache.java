@@ -0,0 +1,471 @@
+package org.tavatar.tavimator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * I keep preview images and decimated poses of animation files, so a folder
+ * of them can be browsed without parsing each one through BVH.animRead.
+ * Previews are keyed by a hash of the file's contents, so renamed or copied
+ * files share one, and an edited file gets a new one.
+ *
+ * There are two tiers: a memory LruCache, sized for the previews on screen,
+ * and a directory on disk, bounded in bytes and evicted least recently used
+ * first. Misses are made on my own background thread, which renders with an
+ * OffscreenRenderer, and delivered to the listener on the main thread.
+ *
+ * A file is rehashed when its length or modification time changes, or after
+ * invalidate
+ *
+ * @author tapple
+ */
+public class ThumbnailCache {
+	private static final String TAG = "ThumbnailCache";
+
+	/** frames sampled for a pose preview */
+	public static final int PREVIEW_FRAMES = 12;
+
+	private static final String IMAGE_SUFFIX = ".png";
+	private static final String POSES_SUFFIX = ".poses";
+	private static final int POSES_VERSION = 1;
+
+	public interface OnPreviewListener {
+		/**
+		 * The preview of the file is ready, or null if it couldn't be made
+		 */
+		void previewReady(File file, Preview preview);
+	}
+
+	/**
+	 * A thumbnail, and the figure's part transforms (16 floats each, in
+	 * FlatSkeleton order) at a few frames spread over the animation
+	 */
+	public static class Preview {
+		public final String key;
+		public final Bitmap thumbnail;
+		public final String[] partNames;
+		public final int[] frames;
+		public final float[] transforms;
+
+		public Preview(String key, Bitmap thumbnail, String[] partNames, int[] frames, float[] transforms) {
+			this.key = key;
+			this.thumbnail = thumbnail;
+			this.partNames = partNames;
+			this.frames = frames;
+			this.transforms = transforms;
+		}
+
+		int byteCount() {
+			return thumbnail.getRowBytes() * thumbnail.getHeight() + transforms.length * 4;
+		}
+	}
+
+	// what a file's key was computed from
+	private static class Stamp {
+		final long length;
+		final long modified;
+		final String key;
+
+		Stamp(File file, String key) {
+			length = file.length();
+			modified = file.lastModified();
+			this.key = key;
+		}
+
+		boolean matches(File file) {
+			return file.length() == length && file.lastModified() == modified;
+		}
+	}
+
+	private final Context context;
+	private final File directory;
+	private final long maxDiskBytes;
+	private final int thumbnailWidth;
+	private final int thumbnailHeight;
+
+	private final LruCache<String, Preview> memory;
+
+	// guarded by this
+	private final Map<String, Stamp> stamps = new HashMap<String, Stamp>();
+	private final Map<String, List<OnPreviewListener>> pending = new HashMap<String, List<OnPreviewListener>>();
+	// disk entries by key, least recently used first, and their total size;
+	// null until scanned
+	private LinkedHashMap<String, Long> diskEntries;
+	private long diskBytes;
+
+	private final ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override public Thread newThread(final Runnable r) {
+			Thread thread = new Thread(new Runnable() {
+				@Override public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, TAG);
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final Handler mainThread = new Handler(Looper.getMainLooper());
+
+	// background thread state
+	private OffscreenRenderer renderer;
+	private BVHNode joints;
+
+	/**
+	 * @param directory where to keep previews on disk; created if missing
+	 * @param maxDiskBytes how much the directory may hold
+	 * @param maxMemoryBytes how much the memory tier may hold
+	 */
+	public ThumbnailCache(Context context, File directory, long maxDiskBytes, int maxMemoryBytes,
+			int thumbnailWidth, int thumbnailHeight) {
+		this.context = context;
+		this.directory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+		this.thumbnailWidth = thumbnailWidth;
+		this.thumbnailHeight = thumbnailHeight;
+		memory = new LruCache<String, Preview>(maxMemoryBytes) {
+			@Override protected int sizeOf(String key, Preview preview) {
+				return preview.byteCount();
+			}
+		};
+	}
+
+	/**
+	 * Answers the file's preview if it's in memory, or null. Doesn't read the
+	 * file, so it's cheap enough for binding list items
+	 */
+	public Preview getIfCached(File file) {
+		Stamp stamp;
+		synchronized (this) {
+			stamp = stamps.get(file.getPath());
+		}
+		if (stamp == null || !stamp.matches(file)) return null;
+		return memory.get(stamp.key);
+	}
+
+	/**
+	 * Deliver the file's preview to the listener on the main thread: at once
+	 * if it's in memory, otherwise once it's been read from disk or made
+	 */
+	public void request(final File file, OnPreviewListener listener) {
+		Preview cached = getIfCached(file);
+		if (cached != null) {
+			listener.previewReady(file, cached);
+			return;
+		}
+		synchronized (this) {
+			List<OnPreviewListener> waiting = pending.get(file.getPath());
+			if (waiting != null) {
+				waiting.add(listener);
+				return;
+			}
+			waiting = new ArrayList<OnPreviewListener>();
+			waiting.add(listener);
+			pending.put(file.getPath(), waiting);
+		}
+		background.execute(new Runnable() {
+			@Override public void run() {
+				Preview preview = null;
+				try {
+					preview = load(file);
+				} catch (Exception e) {
+					Log.e(TAG, "could not make a preview of " + file, e);
+				}
+				deliver(file, preview);
+			}
+		});
+	}
+
+	/**
+	 * Start making previews of the files in the background, nearest the front
+	 * of the list first, so they're ready when scrolled to
+	 */
+	public void prefetch(List<File> files) {
+		OnPreviewListener ignore = new OnPreviewListener() {
+			@Override public void previewReady(File file, Preview preview) {
+			}
+		};
+		for (File file : files) request(file, ignore);
+	}
+
+	private void deliver(final File file, final Preview preview) {
+		final List<OnPreviewListener> waiting;
+		synchronized (this) {
+			waiting = pending.remove(file.getPath());
+		}
+		if (waiting == null) return;
+		mainThread.post(new Runnable() {
+			@Override public void run() {
+				for (OnPreviewListener listener : waiting) listener.previewReady(file, preview);
+			}
+		});
+	}
+
+	/**
+	 * Forget what I know about the file, so its next request rereads it. Its
+	 * old preview stays on disk until evicted, in case the contents come back
+	 */
+	public void invalidate(File file) {
+		Stamp stamp;
+		synchronized (this) {
+			stamp = stamps.remove(file.getPath());
+		}
+		if (stamp != null) memory.remove(stamp.key);
+	}
+
+	/**
+	 * Drop the memory tier, for onTrimMemory and the like
+	 */
+	public void trimMemory() {
+		memory.evictAll();
+	}
+
+	/**
+	 * Free the background thread's GL context and stop it, once the requests
+	 * already made are done
+	 */
+	public void release() {
+		memory.evictAll();
+		background.execute(new Runnable() {
+			@Override public void run() {
+				if (renderer != null) renderer.release();
+				renderer = null;
+			}
+		});
+		background.shutdown();
+	}
+
+	// background thread from here on
+
+	private Preview load(File file) throws IOException {
+		String key = keyOf(file);
+		Preview preview = memory.get(key);
+		if (preview != null) return preview;
+
+		preview = readFromDisk(key);
+		if (preview == null) {
+			preview = make(file, key);
+			writeToDisk(preview);
+		}
+		memory.put(key, preview);
+		return preview;
+	}
+
+	private String keyOf(File file) throws IOException {
+		Stamp stamp;
+		synchronized (this) {
+			stamp = stamps.get(file.getPath());
+		}
+		if (stamp != null && stamp.matches(file)) return stamp.key;
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("no SHA-1: " + e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) digest.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) key.append(String.format("%02x", b & 0xFF));
+
+		stamp = new Stamp(file, key.toString());
+		synchronized (this) {
+			stamps.put(file.getPath(), stamp);
+		}
+		return stamp.key;
+	}
+
+	private Preview make(File file, String key) throws IOException {
+		BVH bvh = new BVH();
+		if (joints == null) {
+			AssetManager assets = context.getAssets();
+			joints = bvh.animRead(assets.open("data/SLFemale.bvh"), assets.open(Animation.LIMITS_FILE), false);
+		}
+		Animation animation = new Animation(context, bvh, file.getPath());
+		FlatSkeleton skeleton = new FlatSkeleton(animation, joints, 0);
+
+		// PREVIEW_FRAMES frames, spread evenly from first to last
+		int lastFrame = Math.max(0, animation.getNumberOfFrames() - 1);
+		int count = Math.min(PREVIEW_FRAMES, lastFrame + 1);
+		int[] frames = new int[count];
+		float[] transforms = new float[count * skeleton.count * 16];
+		FlatSkeleton.Scratch scratch = new FlatSkeleton.Scratch();
+		for (int i = 0; i < count; i++) {
+			frames[i] = count == 1 ? 0 : Math.round((float) i * lastFrame / (count - 1));
+			skeleton.evaluate(frames[i], transforms, i * skeleton.count * 16, scratch);
+		}
+		String[] names = new String[skeleton.count];
+		for (int i = 0; i < skeleton.count; i++) names[i] = skeleton.nodes[i].name();
+
+		if (renderer == null) {
+			renderer = new OffscreenRenderer(context, thumbnailWidth, thumbnailHeight);
+			renderer.start();
+		}
+		renderer.render(skeleton, frames[count / 2]);
+		return new Preview(key, renderer.readBitmap(), names, frames, transforms);
+	}
+
+	private synchronized void scanDisk() {
+		if (diskEntries != null) return;
+		diskEntries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+		diskBytes = 0;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			Log.e(TAG, "could not create " + directory);
+			return;
+		}
+		File[] images = directory.listFiles();
+		if (images == null) return;
+		// oldest use first; a hit touches the image's modification time
+		Arrays.sort(images, new Comparator<File>() {
+			@Override public int compare(File a, File b) {
+				long difference = a.lastModified() - b.lastModified();
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		});
+		for (File image : images) {
+			String name = image.getName();
+			if (!name.endsWith(IMAGE_SUFFIX)) continue;
+			String key = name.substring(0, name.length() - IMAGE_SUFFIX.length());
+			long size = image.length() + posesFile(key).length();
+			diskEntries.put(key, size);
+			diskBytes += size;
+		}
+		Log.d(TAG, diskEntries.size() + " previews on disk, " + diskBytes + " bytes");
+	}
+
+	private File imageFile(String key) {
+		return new File(directory, key + IMAGE_SUFFIX);
+	}
+
+	private File posesFile(String key) {
+		return new File(directory, key + POSES_SUFFIX);
+	}
+
+	private Preview readFromDisk(String key) {
+		scanDisk();
+		synchronized (this) {
+			if (diskEntries.get(key) == null) return null;
+		}
+		File image = imageFile(key);
+		Bitmap thumbnail = BitmapFactory.decodeFile(image.getPath());
+		if (thumbnail == null) {
+			removeFromDisk(key);
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(posesFile(key))));
+			try {
+				if (in.readInt() != POSES_VERSION) throw new IOException("old poses format");
+				String[] names = new String[in.readInt()];
+				for (int i = 0; i < names.length; i++) names[i] = in.readUTF();
+				int[] frames = new int[in.readInt()];
+				for (int i = 0; i < frames.length; i++) frames[i] = in.readInt();
+				float[] transforms = new float[frames.length * names.length * 16];
+				for (int i = 0; i < transforms.length; i++) transforms[i] = in.readFloat();
+				image.setLastModified(System.currentTimeMillis());
+				return new Preview(key, thumbnail, names, frames, transforms);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "dropping unreadable preview " + key, e);
+			thumbnail.recycle();
+			removeFromDisk(key);
+			return null;
+		}
+	}
+
+	private void writeToDisk(Preview preview) {
+		scanDisk();
+		File image = imageFile(preview.key);
+		File poses = posesFile(preview.key);
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(image));
+			try {
+				preview.thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+			} finally {
+				out.close();
+			}
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(poses)));
+			try {
+				data.writeInt(POSES_VERSION);
+				data.writeInt(preview.partNames.length);
+				for (String name : preview.partNames) data.writeUTF(name);
+				data.writeInt(preview.frames.length);
+				for (int frame : preview.frames) data.writeInt(frame);
+				for (float f : preview.transforms) data.writeFloat(f);
+			} finally {
+				data.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "could not save preview " + preview.key, e);
+			image.delete();
+			poses.delete();
+			return;
+		}
+
+		synchronized (this) {
+			long size = image.length() + poses.length();
+			Long old = diskEntries.put(preview.key, size);
+			diskBytes += size - (old == null ? 0 : old);
+			evict();
+		}
+	}
+
+	// drop least recently used previews until the directory fits. Called
+	// with this locked
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> eldest = diskEntries.entrySet().iterator();
+		while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+			Map.Entry<String, Long> entry = eldest.next();
+			diskBytes -= entry.getValue();
+			imageFile(entry.getKey()).delete();
+			posesFile(entry.getKey()).delete();
+			eldest.remove();
+		}
+	}
+
+	private synchronized void removeFromDisk(String key) {
+		Long size = diskEntries.remove(key);
+		if (size != null) diskBytes -= size;
+		imageFile(key).delete();
+		posesFile(key).delete();
+	}
+}
@@ -72,6 +72,13 @@ public class Trackball extends Joint {
 		prevZoomTime = SystemClock.uptimeMillis();
 	}
 
+	/**
+	 * @return true if I will keep turning or zooming without further input
+	 */
+	public boolean isAnimating() {
+		return !mScroller.isFinished() || zoomRate != 1.0f || !getStore().animations.isEmpty();
+	}
+
 	public void basicUpdateOrientation() {
 		mScroller.computeScrollOffset();
 		int x = mScroller.getCurrX();
@@ -0,0 +1,301 @@
+package org.tavatar.tavimator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * I am an animation's undo and redo history. Every edit is bracketed by
+ * begin and end; since tracks never change, beginning costs one reference
+ * per joint, and ending keeps, for each joint whose track was replaced, only
+ * a KeyframeTrack.Delta of the keys that differ. Undoing an edit to 50
+ * joints costs their changed keys, not copies of the animation. What else an
+ * edit may change, such as the number of frames, comes from a State, and an
+ * edit that changes it keeps its values from before and after.
+ *
+ * Edits sharing a coalescing key, each within COALESCE_MILLIS of the last,
+ * merge into one, so dragging a joint around undoes in one step. The
+ * oldest edits are dropped to keep me within my byte budget.
+ *
+ * Brackets nest; only the outermost one records. Use me from the thread
+ * that edits
+ *
+ * @author tapple
+ */
+public class UndoHistory {
+	private static final String TAG = "UndoHistory";
+
+	public static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+	private static final int MAX_EDITS = 500;
+	private static final long COALESCE_MILLIS = 1000;
+	private static final int EDIT_BYTES = 64;
+
+	/**
+	 * The animation level values edits may change besides the tracks, such
+	 * as the number of frames
+	 */
+	public interface State {
+		/**
+		 * Answers the values as they are now
+		 */
+		int[] saveState();
+
+		/**
+		 * Set the values answered by an earlier saveState
+		 */
+		void restoreState(int[] state);
+	}
+
+	private static final class Edit {
+		final String label;
+		final Object coalesceKey;
+		long time;
+		final ArrayList<BVHNode> nodes = new ArrayList<BVHNode>();
+		final ArrayList<KeyframeTrack.Delta> deltas = new ArrayList<KeyframeTrack.Delta>();
+		// the state from before and after, or null if unchanged
+		int[] stateBefore;
+		int[] stateAfter;
+		int bytes = EDIT_BYTES;
+
+		boolean isEmpty() {
+			return nodes.isEmpty() && stateBefore == null;
+		}
+
+		Edit(String label, Object coalesceKey) {
+			this.label = label;
+			this.coalesceKey = coalesceKey;
+		}
+
+		void add(BVHNode node, KeyframeTrack.Delta delta) {
+			nodes.add(node);
+			deltas.add(delta);
+			bytes += delta.byteSize();
+		}
+
+		void remove(int index) {
+			bytes -= deltas.get(index).byteSize();
+			nodes.remove(index);
+			deltas.remove(index);
+		}
+	}
+
+	private final BVHNode[] nodes;
+	private final State state;
+	private final KeyframeTrack[] before;
+	private int[] stateBefore;
+	private final LinkedList<Edit> undoEdits = new LinkedList<Edit>();
+	private final LinkedList<Edit> redoEdits = new LinkedList<Edit>();
+	private final int maxBytes;
+	private int bytes;
+
+	private int depth;
+	private String label;
+	private Object coalesceKey;
+	// the edit later ones may merge into, until an undo or redo
+	private Edit lastRecorded;
+
+	/**
+	 * @param nodes every node whose track the edits may change
+	 * @param state whatever else they may change, or null
+	 */
+	public UndoHistory(BVHNode[] nodes, State state) {
+		this(nodes, state, DEFAULT_MAX_BYTES);
+	}
+
+	public UndoHistory(BVHNode[] nodes, State state, int maxBytes) {
+		this.nodes = nodes;
+		this.state = state;
+		this.maxBytes = maxBytes;
+		before = new KeyframeTrack[nodes.length];
+	}
+
+	/**
+	 * Start an edit. Within an edit already started, does nothing but nest
+	 *
+	 * @param coalesceKey edits with equal keys in quick succession merge;
+	 * null never merges
+	 */
+	public void begin(String label, Object coalesceKey) {
+		if (depth++ > 0) return;
+		this.label = label;
+		this.coalesceKey = coalesceKey;
+		for (int i = 0; i < nodes.length; i++) before[i] = nodes[i].getTrack();
+		stateBefore = state == null ? null : state.saveState();
+	}
+
+	/**
+	 * End an edit, recording what it changed once the outermost one ends
+	 *
+	 * @return whether anything was recorded
+	 */
+	public boolean end() {
+		if (depth == 0) throw new IllegalStateException("end without begin");
+		if (--depth > 0) return false;
+
+		long now = SystemClock.uptimeMillis();
+		Edit top = null;
+		if (coalesceKey != null && lastRecorded != null && coalesceKey.equals(lastRecorded.coalesceKey)
+				&& now - lastRecorded.time < COALESCE_MILLIS) {
+			top = lastRecorded;
+		}
+		Edit edit = top != null ? top : new Edit(label, coalesceKey);
+		int oldBytes = edit.bytes;
+		boolean changed = false;
+		if (state != null) {
+			int[] stateAfter = state.saveState();
+			if (!Arrays.equals(stateBefore, stateAfter)) {
+				changed = true;
+				// merging keeps the state from before the first edit
+				if (edit.stateBefore == null) edit.stateBefore = stateBefore;
+				edit.stateAfter = stateAfter;
+				if (Arrays.equals(edit.stateBefore, stateAfter)) {
+					edit.stateBefore = null;
+					edit.stateAfter = null;
+				}
+			}
+			stateBefore = null;
+		}
+		for (int i = 0; i < nodes.length; i++) {
+			KeyframeTrack after = nodes[i].getTrack();
+			KeyframeTrack original = before[i];
+			before[i] = null;
+			if (after == original) continue;
+			changed = true;
+
+			// merging: diff against the track from before the first edit
+			int existing = top == null ? -1 : top.nodes.indexOf(nodes[i]);
+			if (existing >= 0) {
+				original = top.deltas.get(existing).undo(original);
+				top.remove(existing);
+				if (original == null) {
+					Log.w(TAG, "track of " + nodes[i].name() + " changed outside the history");
+					clear();
+					return false;
+				}
+			}
+			KeyframeTrack.Delta delta = KeyframeTrack.Delta.between(original, after);
+			if (delta != null) edit.add(nodes[i], delta);
+		}
+		if (!changed) return false;
+
+		redoEdits.clear();
+		if (top != null) {
+			bytes += edit.bytes - oldBytes;
+			if (edit.isEmpty()) {
+				// dragged back where it started
+				undoEdits.removeLast();
+				bytes -= edit.bytes;
+				lastRecorded = null;
+				return false;
+			}
+		} else {
+			if (edit.isEmpty()) return false;
+			undoEdits.addLast(edit);
+			bytes += edit.bytes;
+		}
+		edit.time = now;
+		lastRecorded = edit;
+		trim();
+		return true;
+	}
+
+	private void trim() {
+		while (!undoEdits.isEmpty() && (bytes > maxBytes || undoEdits.size() > MAX_EDITS)) {
+			Edit oldest = undoEdits.removeFirst();
+			bytes -= oldest.bytes;
+			if (oldest == lastRecorded) lastRecorded = null;
+		}
+	}
+
+	public boolean canUndo() {
+		return !undoEdits.isEmpty();
+	}
+
+	public boolean canRedo() {
+		return !redoEdits.isEmpty();
+	}
+
+	/**
+	 * Answers the label of the edit undo would revert, or null
+	 */
+	public String getUndoLabel() {
+		return undoEdits.isEmpty() ? null : undoEdits.getLast().label;
+	}
+
+	public String getRedoLabel() {
+		return redoEdits.isEmpty() ? null : redoEdits.getLast().label;
+	}
+
+	/**
+	 * Answers roughly how much memory my edits hold
+	 */
+	public int getByteSize() {
+		return bytes;
+	}
+
+	/**
+	 * Revert the last edit
+	 *
+	 * @return the nodes whose tracks changed, or null if there was nothing to
+	 * undo or the tracks no longer match the history
+	 */
+	public BVHNode[] undo() {
+		if (undoEdits.isEmpty() || depth > 0) return null;
+		Edit edit = undoEdits.getLast();
+		if (!apply(edit, true)) return null;
+		undoEdits.removeLast();
+		redoEdits.addLast(edit);
+		lastRecorded = null;
+		return edit.nodes.toArray(new BVHNode[edit.nodes.size()]);
+	}
+
+	/**
+	 * Repeat the last undone edit
+	 *
+	 * @return the nodes whose tracks changed, or null if there was nothing to
+	 * redo or the tracks no longer match the history
+	 */
+	public BVHNode[] redo() {
+		if (redoEdits.isEmpty() || depth > 0) return null;
+		Edit edit = redoEdits.getLast();
+		if (!apply(edit, false)) return null;
+		redoEdits.removeLast();
+		undoEdits.addLast(edit);
+		lastRecorded = null;
+		return edit.nodes.toArray(new BVHNode[edit.nodes.size()]);
+	}
+
+	/**
+	 * Make all of an edit's tracks first, so a mismatch changes nothing
+	 */
+	private boolean apply(Edit edit, boolean undo) {
+		int count = edit.nodes.size();
+		KeyframeTrack[] tracks = new KeyframeTrack[count];
+		for (int i = 0; i < count; i++) {
+			KeyframeTrack current = edit.nodes.get(i).getTrack();
+			KeyframeTrack.Delta delta = edit.deltas.get(i);
+			tracks[i] = undo ? delta.undo(current) : delta.redo(current);
+			if (tracks[i] == null) {
+				Log.w(TAG, "track of " + edit.nodes.get(i).name() + " changed outside the history");
+				clear();
+				return false;
+			}
+		}
+		for (int i = 0; i < count; i++) edit.nodes.get(i).setTrack(tracks[i]);
+		if (edit.stateBefore != null) state.restoreState(undo ? edit.stateBefore : edit.stateAfter);
+		return true;
+	}
+
+	/**
+	 * Forget every edit, as after loading
+	 */
+	public void clear() {
+		undoEdits.clear();
+		redoEdits.clear();
+		bytes = 0;
+		lastRecorded = null;
+	}
+}
@@ -0,0 +1,90 @@
+package org.tavatar.tavimator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+/**
+ * I am the shared pool of background threads for work that splits into
+ * independent chunks, such as evaluating every frame of an animation. There
+ * is one thread per core, at background priority so the UI and GL threads
+ * are never starved.
+ *
+ * Only chunks should run on the pool. Whoever waits for the chunks (see
+ * forEachChunk) must be on some other thread, or the pool could fill up with
+ * waiters and deadlock
+ *
+ * @author tapple
+ */
+public class Workers {
+	private static final String TAG = "Workers";
+
+	/**
+	 * A piece of a job: frames (or whatever is being split) from up to, but
+	 * not including, to
+	 */
+	public interface Chunk {
+		void run(int from, int to) throws Exception;
+	}
+
+	private static ExecutorService pool;
+
+	public static synchronized ExecutorService pool() {
+		if (pool == null) {
+			final AtomicInteger count = new AtomicInteger();
+			pool = Executors.newFixedThreadPool(threadCount(), new ThreadFactory() {
+				@Override public Thread newThread(final Runnable r) {
+					Thread thread = new Thread(new Runnable() {
+						@Override public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, "Worker " + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
+	public static int threadCount() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Split from..to into chunks of at most chunkSize, run them on the pool in
+	 * parallel, and wait for all of them. The first failure is rethrown
+	 */
+	public static void forEachChunk(int from, int to, int chunkSize, final Chunk chunk)
+			throws InterruptedException, ExecutionException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int start = from; start < to; start += chunkSize) {
+			final int chunkFrom = start;
+			final int chunkTo = Math.min(start + chunkSize, to);
+			tasks.add(new Callable<Void>() {
+				@Override public Void call() throws Exception {
+					chunk.run(chunkFrom, chunkTo);
+					return null;
+				}
+			});
+		}
+		for (Future<Void> result : pool().invokeAll(tasks)) result.get();
+	}
+
+	/**
+	 * Answers a chunk size that splits count items into a few chunks per
+	 * thread, so uneven chunks still balance, but no smaller than minimum
+	 */
+	public static int chunkSize(int count, int minimum) {
+		return Math.max(minimum, (count + threadCount() * 4 - 1) / (threadCount() * 4));
+	}
+}